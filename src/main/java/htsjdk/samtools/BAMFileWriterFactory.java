@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools;
+
+import java.io.OutputStream;
+
+/**
+ * Creates BAM writers for streams with a compression level of their own.
+ * {@link SAMFileWriterFactory} takes the level only for files, streams get
+ * the process wide default of
+ * {@link htsjdk.samtools.util.BlockCompressedOutputStream}.
+ */
+public class BAMFileWriterFactory {
+
+	public static SAMFileWriter makeBAMWriter(SAMFileHeader header, boolean presorted, OutputStream os,
+			int compressionLevel) {
+		BAMFileWriter writer = new BAMFileWriter(os, null, compressionLevel);
+		writer.setSortOrder(header.getSortOrder(), presorted);
+		writer.setHeader(header);
+		return writer;
+	}
+}
@@ -6,7 +6,6 @@ import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,6 +16,7 @@ import java.util.zip.GZIPInputStream;
 
 import net.sf.cram.index.CramIndex;
 import net.sf.cram.index.CramIndex.Entry;
+import net.sf.cram.index.CramIntervalIndex;
 
 /**
  * A utility class to hide details of BAI/CRAI indexes. It will try and find a
@@ -28,7 +28,7 @@ import net.sf.cram.index.CramIndex.Entry;
 public class IndexAggregate {
 	private static Log log = Log.getInstance(IndexAggregate.class);
 	private BAMIndex bai;
-	private List<CramIndex.Entry> crai;
+	private CramIntervalIndex crai;
 
 	public static IndexAggregate forDataFile(SeekableStream stream, SAMSequenceDictionary dictionary)
 			throws IOException {
@@ -44,7 +44,7 @@ public class IndexAggregate {
 			return a;
 		}
 		if (indexFile.getName().matches("(?i).*\\.crai")) {
-			a.crai = CramIndex.readIndex(new GZIPInputStream(new FileInputStream(indexFile)));
+			a.crai = CramIntervalIndex.fromCraiFile(indexFile);
 			return a;
 		}
 
@@ -61,10 +61,17 @@ public class IndexAggregate {
 	public static IndexAggregate fromCraiFile(InputStream craiStream, SAMSequenceDictionary dictionary)
 			throws IOException {
 		IndexAggregate a = new IndexAggregate();
-		a.crai = CramIndex.readIndex(new GZIPInputStream(craiStream));
+		a.crai = new CramIntervalIndex(CramIndex.readIndex(new GZIPInputStream(craiStream)));
 		return a;
 	}
 
+	/**
+	 * @return the CRAI index or null if this is a BAI index
+	 */
+	public CramIntervalIndex getCrai() {
+		return crai;
+	}
+
 	/**
 	 * Find and seek the data stream to the position of the alignment query.
 	 * 
@@ -87,9 +94,9 @@ public class IndexAggregate {
 		return -1;
 	}
 
-	private static long seek(List<CramIndex.Entry> index, int seqId, int start, int end, SeekableStream cramStream)
+	private static long seek(CramIntervalIndex index, int seqId, int start, int end, SeekableStream cramStream)
 			throws IOException {
-		List<Entry> found = CramIndex.find(index, seqId, start, end - start + 1);
+		List<Entry> found = index.find(seqId, start, end - start + 1);
 		if (found == null || found.size() == 0)
 			return -1;
 		cramStream.seek(found.get(0).containerStartOffset);
@@ -26,7 +26,9 @@ import htsjdk.samtools.cram.encoding.ExternalIntegerEncoding;
 import htsjdk.samtools.cram.encoding.NullEncoding;
 import htsjdk.samtools.cram.encoding.huffman.codec.HuffmanIntegerEncoding;
 import htsjdk.samtools.cram.encoding.rans.RANS;
+import htsjdk.samtools.cram.encoding.readfeatures.Insertion;
 import htsjdk.samtools.cram.encoding.readfeatures.ReadFeature;
+import htsjdk.samtools.cram.encoding.readfeatures.SoftClip;
 import htsjdk.samtools.cram.encoding.readfeatures.Substitution;
 import htsjdk.samtools.cram.structure.CompressionHeader;
 import htsjdk.samtools.cram.structure.CramCompressionRecord;
@@ -50,13 +52,42 @@ import java.util.TreeMap;
 
 /**
  * Implementation of {@link htsjdk.samtools.cram.build.CramCompression} that
- * mostly relies on GZIP and RANS.
+ * mostly relies on GZIP and RANS. The compressors are picked according to a
+ * {@link CompressionProfile}.
  */
 public class CompressionHeaderFactory {
+	private final CompressionProfile profile;
+	private final ExternalCompressorChooser compressorChooser;
+	private final long container;
 	private final Map<Integer, EncodingDetails> bestEncodings = new HashMap<Integer, EncodingDetails>();
 	private final ByteArrayOutputStream baosForTagValues;
 
+	/**
+	 * A factory using the {@link CompressionProfile#BALANCED} profile.
+	 */
 	public CompressionHeaderFactory() {
+		this(CompressionProfile.BALANCED);
+	}
+
+	/**
+	 * A factory choosing compressors for the data of a single container.
+	 */
+	public CompressionHeaderFactory(final CompressionProfile profile) {
+		this(profile, new ExternalCompressorChooser(ExternalCompressorRegistry.create(profile.getCandidates())), 0);
+	}
+
+	/**
+	 * @param compressorChooser
+	 *            the chooser for the output stream, it must have been created
+	 *            with the candidates of the profile
+	 * @param container
+	 *            index of the container in the output stream
+	 */
+	public CompressionHeaderFactory(final CompressionProfile profile, final ExternalCompressorChooser compressorChooser,
+			final long container) {
+		this.profile = profile;
+		this.compressorChooser = compressorChooser;
+		this.container = container;
 		baosForTagValues = new ByteArrayOutputStream(1024 * 1024);
 	}
 
@@ -77,11 +108,12 @@ public class CompressionHeaderFactory {
 	public CompressionHeader build(final List<CramCompressionRecord> records, SubstitutionMatrix substitutionMatrix,
 			final boolean sorted) {
 
-		final CompressionHeaderBuilder builder = new CompressionHeaderBuilder(sorted);
+		final CompressionHeaderBuilder builder = new CompressionHeaderBuilder(sorted, profile.getGeneralCompressor());
 
 		builder.addExternalByteRansOrderOneEncoding(EncodingKey.BA_Base);
 		builder.addExternalByteRansOrderOneEncoding(EncodingKey.QS_QualityScore);
-		builder.addExternalByteArrayStopTabGzipEncoding(EncodingKey.RN_ReadName);
+		builder.addExternalByteArrayStopTabEncoding(EncodingKey.RN_ReadName,
+				getByteArrayCompressor(records, EncodingKey.RN_ReadName));
 		builder.addExternalIntegerRansOrderOneEncoding(EncodingKey.BF_BitFlags);
 		builder.addExternalIntegerRansOrderOneEncoding(EncodingKey.CF_CompressionBitFlags);
 		builder.addExternalIntegerRansOrderZeroEncoding(EncodingKey.RI_RefId);
@@ -90,29 +122,31 @@ public class CompressionHeaderFactory {
 		builder.addExternalIntegerRansOrderZeroEncoding(EncodingKey.AP_AlignmentPositionOffset);
 		builder.addExternalIntegerRansOrderOneEncoding(EncodingKey.RG_ReadGroup);
 		builder.addExternalIntegerRansOrderOneEncoding(EncodingKey.NF_RecordsToNextFragment);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.TC_TagCount);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.TN_TagNameAndType);
-
-		builder.addExternalIntegerGzipEncoding(EncodingKey.FN_NumberOfReadFeatures);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.FP_FeaturePosition);
-		builder.addExternalByteGzipEncoding(EncodingKey.FC_FeatureCode);
-		builder.addExternalByteGzipEncoding(EncodingKey.BS_BaseSubstitutionCode);
-
-		builder.addExternalByteArrayStopTabGzipEncoding(EncodingKey.IN_Insertion);
-		builder.addExternalByteArrayStopTabGzipEncoding(EncodingKey.SC_SoftClip);
-
-		builder.addExternalIntegerGzipEncoding(EncodingKey.DL_DeletionLength);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.HC_HardClip);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.PD_padding);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.RS_RefSkip);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.MQ_MappingQualityScore);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.MF_MateBitFlags);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.TC_TagCount);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.TN_TagNameAndType);
+
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.FN_NumberOfReadFeatures);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.FP_FeaturePosition);
+		builder.addExternalByteGeneralEncoding(EncodingKey.FC_FeatureCode);
+		builder.addExternalByteGeneralEncoding(EncodingKey.BS_BaseSubstitutionCode);
+
+		builder.addExternalByteArrayStopTabEncoding(EncodingKey.IN_Insertion,
+				getByteArrayCompressor(records, EncodingKey.IN_Insertion));
+		builder.addExternalByteArrayStopTabEncoding(EncodingKey.SC_SoftClip,
+				getByteArrayCompressor(records, EncodingKey.SC_SoftClip));
+
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.DL_DeletionLength);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.HC_HardClip);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.PD_padding);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.RS_RefSkip);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.MQ_MappingQualityScore);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.MF_MateBitFlags);
 		builder.addExternalIntegerRansOrderOneEncoding(EncodingKey.NS_NextFragmentReferenceSequenceID);
-		builder.addExternalIntegerGzipEncoding(EncodingKey.NP_NextFragmentAlignmentStart);
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.NP_NextFragmentAlignmentStart);
 		builder.addExternalIntegerRansOrderOneEncoding(EncodingKey.TS_InsetSize);
 
 		builder.setTagIdDictionary(buildTagIdDictionary(records));
-		builder.addExternalIntegerEncoding(EncodingKey.TL_TagIdList, ExternalCompressor.createGZIP());
+		builder.addExternalIntegerGeneralEncoding(EncodingKey.TL_TagIdList);
 
 		buildTagEncodings(records, builder);
 
@@ -124,6 +158,55 @@ public class CompressionHeaderFactory {
 		return builder.getHeader();
 	}
 
+	/**
+	 * The compressor for a byte array data series: the best of the profile
+	 * candidates if the profile chooses for data series, otherwise the general
+	 * compressor.
+	 */
+	private ExternalCompressor getByteArrayCompressor(final List<CramCompressionRecord> records,
+			final EncodingKey key) {
+		if (profile.isChooseForDataSeries()) {
+			final byte[] data = getDataForByteArraySeries(records, key);
+			if (data.length > 0)
+				// negative keys do not clash with tag ids:
+				return compressorChooser.choose(container, -1 - key.ordinal(), data);
+		}
+		return ExternalCompressorRegistry.create(profile.getGeneralCompressor());
+	}
+
+	/**
+	 * Collect the values of read names, insertions or soft clips as they are
+	 * written with the tab stop byte array encoding.
+	 */
+	private byte[] getDataForByteArraySeries(final List<CramCompressionRecord> records, final EncodingKey key) {
+		baosForTagValues.reset();
+
+		for (final CramCompressionRecord record : records) {
+			if (key == EncodingKey.RN_ReadName) {
+				if (record.readName != null)
+					addStopTabValue(record.readName.getBytes());
+				continue;
+			}
+			if (record.readFeatures == null) {
+				continue;
+			}
+
+			for (final ReadFeature readFeature : record.readFeatures) {
+				if (key == EncodingKey.IN_Insertion && readFeature.getOperator() == Insertion.operator)
+					addStopTabValue(((Insertion) readFeature).getSequence());
+				else if (key == EncodingKey.SC_SoftClip && readFeature.getOperator() == SoftClip.operator)
+					addStopTabValue(((SoftClip) readFeature).getSequence());
+			}
+		}
+
+		return baosForTagValues.toByteArray();
+	}
+
+	private void addStopTabValue(final byte[] value) {
+		baosForTagValues.write(value, 0, value.length);
+		baosForTagValues.write('\t');
+	}
+
 	/**
 	 * Iterate over the records and for each tag found come up with an encoding.
 	 * Tag encodings are registered via the builder.
@@ -320,29 +403,6 @@ public class CompressionHeaderFactory {
 		}
 	}
 
-	private static ExternalCompressor getBestExternalCompressor(byte[] data) {
-		final ExternalCompressor gzip = ExternalCompressor.createGZIP();
-		final int gzipLen = gzip.compress(data).length;
-
-		final ExternalCompressor rans0 = ExternalCompressor.createRANS(RANS.ORDER.ZERO);
-		final int rans0Len = rans0.compress(data).length;
-
-		final ExternalCompressor rans1 = ExternalCompressor.createRANS(RANS.ORDER.ONE);
-		final int rans1Len = rans1.compress(data).length;
-
-		final EncodingDetails d = new EncodingDetails();
-
-		// find the best of general purpose codecs:
-		final int minLen = Math.min(gzipLen, Math.min(rans0Len, rans1Len));
-		if (minLen == rans0Len) {
-			return rans0;
-		} else if (minLen == rans1Len) {
-			return rans1;
-		} else {
-			return gzip;
-		}
-	}
-
 	private byte[] getDataForTag(final List<CramCompressionRecord> records, final int tagID) {
 		baosForTagValues.reset();
 
@@ -419,7 +479,7 @@ public class CompressionHeaderFactory {
 		EncodingDetails details = new EncodingDetails();
 		final byte[] data = getDataForTag(records, tagID);
 
-		details.compressor = getBestExternalCompressor(data);
+		details.compressor = compressorChooser.choose(container, tagID, data);
 
 		final byte type = getTagType(tagID);
 		switch (type) {
@@ -492,9 +552,11 @@ public class CompressionHeaderFactory {
 	 */
 	private static class CompressionHeaderBuilder {
 		private final CompressionHeader header;
+		private final String generalCompressor;
 		private int externalBlockCounter;
 
-		CompressionHeaderBuilder(final boolean sorted) {
+		CompressionHeaderBuilder(final boolean sorted, final String generalCompressor) {
+			this.generalCompressor = generalCompressor;
 			header = new CompressionHeader();
 			header.externalIds = new ArrayList<Integer>();
 			header.tMap = new TreeMap<Integer, EncodingParams>();
@@ -520,27 +582,25 @@ public class CompressionHeaderFactory {
 			externalBlockCounter++;
 		}
 
-		void addExternalByteArrayStopTabGzipEncoding(final EncodingKey encodingKey) {
+		void addExternalByteArrayStopTabEncoding(final EncodingKey encodingKey, final ExternalCompressor compressor) {
 			addExternalEncoding(encodingKey, ByteArrayStopEncoding.toParam((byte) '\t', externalBlockCounter),
-					ExternalCompressor.createGZIP());
+					compressor);
 		}
 
 		void addExternalIntegerEncoding(final EncodingKey encodingKey, final ExternalCompressor compressor) {
 			addExternalEncoding(encodingKey, ExternalIntegerEncoding.toParam(externalBlockCounter), compressor);
 		}
 
-		void addExternalIntegerGzipEncoding(final EncodingKey encodingKey) {
-			addExternalEncoding(encodingKey, ExternalIntegerEncoding.toParam(externalBlockCounter),
-					ExternalCompressor.createGZIP());
+		void addExternalIntegerGeneralEncoding(final EncodingKey encodingKey) {
+			addExternalIntegerEncoding(encodingKey, ExternalCompressorRegistry.create(generalCompressor));
 		}
 
 		void addExternalByteEncoding(final EncodingKey encodingKey, final ExternalCompressor compressor) {
 			addExternalEncoding(encodingKey, ExternalByteEncoding.toParam(externalBlockCounter), compressor);
 		}
 
-		void addExternalByteGzipEncoding(final EncodingKey encodingKey) {
-			addExternalEncoding(encodingKey, ExternalByteEncoding.toParam(externalBlockCounter),
-					ExternalCompressor.createGZIP());
+		void addExternalByteGeneralEncoding(final EncodingKey encodingKey) {
+			addExternalByteEncoding(encodingKey, ExternalCompressorRegistry.create(generalCompressor));
 		}
 
 		void addExternalByteRansOrderOneEncoding(final EncodingKey encodingKey) {
@@ -0,0 +1,85 @@
+/**
+ * ****************************************************************************
+ * Copyright 2013 EMBL-EBI
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ****************************************************************************
+ */
+package htsjdk.samtools.cram.build;
+
+import static htsjdk.samtools.cram.build.ExternalCompressorRegistry.BZIP2;
+import static htsjdk.samtools.cram.build.ExternalCompressorRegistry.GZIP;
+import static htsjdk.samtools.cram.build.ExternalCompressorRegistry.LZMA;
+import static htsjdk.samtools.cram.build.ExternalCompressorRegistry.RANS0;
+import static htsjdk.samtools.cram.build.ExternalCompressorRegistry.RANS1;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Speed and size trade offs for the compression header factory. A profile
+ * names the compressor for data series that have no dedicated one, the
+ * candidates tried for tags and whether byte array data series, like read
+ * names, are tried with the candidates too. Compressors are looked up in the
+ * {@link ExternalCompressorRegistry}.
+ */
+public enum CompressionProfile {
+	/**
+	 * rANS only, no GZIP.
+	 */
+	FAST(RANS0, false, RANS0, RANS1),
+	/**
+	 * GZIP and rANS, the default.
+	 */
+	BALANCED(GZIP, false, RANS0, RANS1, GZIP),
+	/**
+	 * Also tries BZIP2 and LZMA, for tags and for read names, insertions and
+	 * soft clips. Slow to write.
+	 */
+	ARCHIVAL(GZIP, true, RANS0, RANS1, GZIP, BZIP2, LZMA);
+
+	private final String generalCompressor;
+	private final boolean chooseForDataSeries;
+	private final List<String> candidates;
+
+	private CompressionProfile(final String generalCompressor, final boolean chooseForDataSeries,
+			final String... candidates) {
+		this.generalCompressor = generalCompressor;
+		this.chooseForDataSeries = chooseForDataSeries;
+		this.candidates = Collections.unmodifiableList(Arrays.asList(candidates));
+	}
+
+	/**
+	 * @return name of the compressor for data series without a dedicated one
+	 */
+	public String getGeneralCompressor() {
+		return generalCompressor;
+	}
+
+	/**
+	 * @return true if byte array data series should be compressed with the
+	 *         best of the candidates
+	 */
+	public boolean isChooseForDataSeries() {
+		return chooseForDataSeries;
+	}
+
+	/**
+	 * @return names of the compressors to choose from, equal sizes are
+	 *         resolved in favour of the earlier ones
+	 */
+	public List<String> getCandidates() {
+		return candidates;
+	}
+}
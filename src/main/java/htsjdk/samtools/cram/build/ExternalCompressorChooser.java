@@ -0,0 +1,286 @@
+/**
+ * ****************************************************************************
+ * Copyright 2013 EMBL-EBI
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ****************************************************************************
+ */
+package htsjdk.samtools.cram.build;
+
+import htsjdk.samtools.cram.encoding.ExternalCompressor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Chooses the external compressor producing the smallest output for a data
+ * series by trying all candidate compressors on the data. The trials run
+ * concurrently, and for large data only on a sample of it.
+ * <p>
+ * The choice is remembered per data series and reused for the following
+ * containers as long as the data looks similar: the entropy of its bytes
+ * and its size stay close to those of the data the choice was made on. The
+ * trials are repeated after a number of reuses in any case.
+ * <p>
+ * A chooser belongs to one output stream. Containers of the stream may be
+ * built concurrently, so a choice made for a container is only reused from
+ * the container {@code lag} positions later on. If all containers that far
+ * back have been built before a container is, the choices do not depend on
+ * the order the containers are built in, and the output is the same for any
+ * number of threads.
+ */
+public class ExternalCompressorChooser {
+	/**
+	 * Data larger than twice this is tried on a sample of this size.
+	 */
+	private static final int SAMPLE_SIZE = 256 * 1024;
+	/**
+	 * The sample is taken in this many chunks spread evenly over the data, a
+	 * prefix alone misjudges data that changes along the container.
+	 */
+	private static final int SAMPLE_CHUNKS = 8;
+	/**
+	 * Data smaller than this is tried in the calling thread only.
+	 */
+	private static final int CONCURRENT_TRIAL_SIZE = 64 * 1024;
+	/**
+	 * Maximum difference in bits per byte for reusing a choice.
+	 */
+	private static final double MAX_ENTROPY_DRIFT = 0.25;
+	/**
+	 * Maximum ratio of data sizes for reusing a choice.
+	 */
+	private static final int MAX_SIZE_DRIFT = 4;
+	private static final int MAX_REUSES = 64;
+
+	private static ExecutorService trialExecutor;
+
+	private final List<ExternalCompressor> candidates;
+	private final int lag;
+	/**
+	 * Choices by data series and container index.
+	 */
+	private final Map<Integer, TreeMap<Long, Choice>> choices = new HashMap<Integer, TreeMap<Long, Choice>>();
+
+	/**
+	 * A chooser for containers built one after another.
+	 *
+	 * @param candidates
+	 *            compressors to choose from, equal sizes are resolved in
+	 *            favour of the earlier ones
+	 */
+	public ExternalCompressorChooser(final List<ExternalCompressor> candidates) {
+		this(candidates, 0);
+	}
+
+	/**
+	 * @param candidates
+	 *            compressors to choose from, equal sizes are resolved in
+	 *            favour of the earlier ones
+	 * @param lag
+	 *            number of containers after which a choice can be reused
+	 */
+	public ExternalCompressorChooser(final List<ExternalCompressor> candidates, final int lag) {
+		if (lag < 0)
+			throw new IllegalArgumentException("Negative lag: " + lag);
+		this.candidates = new ArrayList<ExternalCompressor>(candidates);
+		this.lag = lag;
+	}
+
+	/**
+	 * @param container
+	 *            index of the container in the output stream
+	 * @param key
+	 *            data series id, for example a tag id
+	 * @param data
+	 *            the data to be compressed
+	 * @return the best compressor for the data
+	 */
+	public ExternalCompressor choose(final long container, final int key, final byte[] data) {
+		final byte[] sample = sample(data);
+		final double entropy = entropy(sample);
+
+		final Choice previous = getChoice(container - lag, key);
+		if (previous != null && isReusable(previous, container, data.length, entropy))
+			return previous.compressor;
+
+		final ExternalCompressor compressor = tryAll(sample);
+		putChoice(key, new Choice(compressor, container, data.length, entropy));
+		return compressor;
+	}
+
+	/**
+	 * A choice is reused for {@link #MAX_REUSES} containers after it becomes
+	 * visible. Only the container right after those repeats the trials, the
+	 * following ones keep reusing the choice until the new one is visible.
+	 */
+	private boolean isReusable(final Choice choice, final long container, final int size, final double entropy) {
+		final long reuses = container - choice.container - lag;
+		return reuses != MAX_REUSES && reuses < MAX_REUSES + lag && choice.isSimilar(size, entropy);
+	}
+
+	/**
+	 * @return the latest choice for the data series made for a container at
+	 *         or before the given one
+	 */
+	private synchronized Choice getChoice(final long container, final int key) {
+		final TreeMap<Long, Choice> history = choices.get(key);
+		if (history == null)
+			return null;
+		final Map.Entry<Long, Choice> entry = history.floorEntry(container);
+		return entry == null ? null : entry.getValue();
+	}
+
+	private synchronized void putChoice(final int key, final Choice choice) {
+		TreeMap<Long, Choice> history = choices.get(key);
+		if (history == null) {
+			history = new TreeMap<Long, Choice>();
+			choices.put(key, history);
+		}
+		history.put(choice.container, choice);
+
+		// containers still to be built look up choices no further back than
+		// twice the lag:
+		final Long oldest = history.floorKey(choice.container - 2L * lag);
+		if (oldest != null)
+			history.headMap(oldest).clear();
+	}
+
+	private static byte[] sample(final byte[] data) {
+		if (data.length <= 2 * SAMPLE_SIZE)
+			return data;
+
+		final byte[] sample = new byte[SAMPLE_SIZE];
+		final int chunk = SAMPLE_SIZE / SAMPLE_CHUNKS;
+		for (int i = 0; i < SAMPLE_CHUNKS; i++) {
+			final int from = (int) ((long) (data.length - chunk) * i / (SAMPLE_CHUNKS - 1));
+			System.arraycopy(data, from, sample, i * chunk, chunk);
+		}
+		return sample;
+	}
+
+	private ExternalCompressor tryAll(final byte[] data) {
+		final int[] sizes = new int[candidates.size()];
+		if (data.length < CONCURRENT_TRIAL_SIZE || candidates.size() < 2) {
+			for (int i = 0; i < sizes.length; i++)
+				sizes[i] = candidates.get(i).compress(data).length;
+		} else {
+			final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int i = 1; i < sizes.length; i++)
+				futures.add(getTrialExecutor().submit(new Trial(candidates.get(i), data)));
+			sizes[0] = candidates.get(0).compress(data).length;
+			for (int i = 1; i < sizes.length; i++)
+				sizes[i] = getTrialResult(futures.get(i - 1));
+		}
+
+		int best = 0;
+		for (int i = 1; i < sizes.length; i++) {
+			if (sizes[i] < sizes[best])
+				best = i;
+		}
+		return candidates.get(best);
+	}
+
+	private static int getTrialResult(final Future<Integer> future) {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static synchronized ExecutorService getTrialExecutor() {
+		if (trialExecutor == null) {
+			trialExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						private int counter = 0;
+
+						@Override
+						public Thread newThread(final Runnable r) {
+							final Thread thread = new Thread(r, "compressor-trial-" + counter++);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return trialExecutor;
+	}
+
+	/**
+	 * @return order 0 entropy in bits per byte
+	 */
+	static double entropy(final byte[] data) {
+		if (data.length == 0)
+			return 0;
+
+		final int[] counts = new int[256];
+		for (final byte b : data)
+			counts[0xFF & b]++;
+
+		double entropy = 0;
+		for (final int count : counts) {
+			if (count == 0)
+				continue;
+			final double p = (double) count / data.length;
+			entropy -= p * Math.log(p);
+		}
+		return entropy / Math.log(2);
+	}
+
+	private static class Trial implements Callable<Integer> {
+		private final ExternalCompressor compressor;
+		private final byte[] data;
+
+		Trial(final ExternalCompressor compressor, final byte[] data) {
+			this.compressor = compressor;
+			this.data = data;
+		}
+
+		@Override
+		public Integer call() {
+			return compressor.compress(data).length;
+		}
+	}
+
+	private static class Choice {
+		final ExternalCompressor compressor;
+		final long container;
+		final int size;
+		final double entropy;
+
+		Choice(final ExternalCompressor compressor, final long container, final int size, final double entropy) {
+			this.compressor = compressor;
+			this.container = container;
+			this.size = size;
+			this.entropy = entropy;
+		}
+
+		boolean isSimilar(final int size, final double entropy) {
+			return Math.abs(entropy - this.entropy) <= MAX_ENTROPY_DRIFT && (long) size * MAX_SIZE_DRIFT >= this.size
+					&& size <= (long) this.size * MAX_SIZE_DRIFT;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * ****************************************************************************
+ * Copyright 2013 EMBL-EBI
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ****************************************************************************
+ */
+package htsjdk.samtools.cram.build;
+
+import htsjdk.samtools.cram.encoding.ExternalCompressor;
+import htsjdk.samtools.cram.encoding.rans.RANS;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * External compressors available to the compression header factory by name.
+ * The built in ones are raw, gzip, rans0, rans1, bzip2 and lzma, more can be
+ * registered as long as the block compression method they use can be read
+ * back.
+ */
+public class ExternalCompressorRegistry {
+	public static final String RAW = "raw";
+	public static final String GZIP = "gzip";
+	public static final String RANS0 = "rans0";
+	public static final String RANS1 = "rans1";
+	public static final String BZIP2 = "bzip2";
+	public static final String LZMA = "lzma";
+
+	/**
+	 * Creates a compressor.
+	 */
+	public interface Factory {
+		ExternalCompressor create();
+	}
+
+	private static final Map<String, Factory> factories = new LinkedHashMap<String, Factory>();
+
+	static {
+		register(RAW, new Factory() {
+			@Override
+			public ExternalCompressor create() {
+				return ExternalCompressor.createRAW();
+			}
+		});
+		register(GZIP, new Factory() {
+			@Override
+			public ExternalCompressor create() {
+				return ExternalCompressor.createGZIP();
+			}
+		});
+		register(RANS0, new Factory() {
+			@Override
+			public ExternalCompressor create() {
+				return ExternalCompressor.createRANS(RANS.ORDER.ZERO);
+			}
+		});
+		register(RANS1, new Factory() {
+			@Override
+			public ExternalCompressor create() {
+				return ExternalCompressor.createRANS(RANS.ORDER.ONE);
+			}
+		});
+		register(BZIP2, new Factory() {
+			@Override
+			public ExternalCompressor create() {
+				return ExternalCompressor.createBZIP2();
+			}
+		});
+		register(LZMA, new Factory() {
+			@Override
+			public ExternalCompressor create() {
+				return ExternalCompressor.createLZMA();
+			}
+		});
+	}
+
+	/**
+	 * Register a compressor, replacing any registered with the same name.
+	 */
+	public static synchronized void register(final String name, final Factory factory) {
+		factories.put(name, factory);
+	}
+
+	public static synchronized Set<String> getNames() {
+		return new LinkedHashSet<String>(factories.keySet());
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if no compressor is registered with the name
+	 */
+	public static synchronized ExternalCompressor create(final String name) {
+		final Factory factory = factories.get(name);
+		if (factory == null)
+			throw new IllegalArgumentException("Unknown external compressor: " + name);
+		return factory.create();
+	}
+
+	public static List<ExternalCompressor> create(final List<String> names) {
+		final List<ExternalCompressor> compressors = new ArrayList<ExternalCompressor>(names.size());
+		for (final String name : names)
+			compressors.add(create(name));
+		return compressors;
+	}
+}
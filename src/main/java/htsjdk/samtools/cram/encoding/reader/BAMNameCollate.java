@@ -1,6 +1,8 @@
 package htsjdk.samtools.cram.encoding.reader;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.Deflater;
 
 import htsjdk.samtools.SAMFileHeader;
@@ -13,6 +15,8 @@ import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.Log;
 import net.sf.cram.Cram2Fastq;
 import net.sf.cram.CramTools.LevelConverter;
+import net.sf.cram.common.ParallelBAMFileWriter;
+import net.sf.cram.common.ParallelBlockCompressedOutputStream;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
@@ -121,13 +125,24 @@ public class BAMNameCollate extends NameCollate<BAMRead> {
 			System.exit(1);
 		}
 		BlockCompressedOutputStream.setDefaultCompressionLevel(params.compression);
-		SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
+		final SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
 		writerFactory.setUseAsyncIo(true);
 		writerFactory.setAsyncOutputBufferSize(1024 * 100);
-		collate.writers[0] = writerFactory.makeBAMWriter(reader.getFileHeader(), false, file0);
-		collate.writers[1] = writerFactory.makeBAMWriter(reader.getFileHeader(), false, file1);
-		collate.writers[2] = writerFactory.makeBAMWriter(reader.getFileHeader(), false, file2);
-		collate.overspillWriter = writerFactory.makeBAMWriter(reader.getFileHeader(), false, overspillFile);
+		final ExecutorService compressionPool = params.compressionThreads > 1 ? ParallelBlockCompressedOutputStream
+				.createExecutor(params.compressionThreads) : null;
+		final Params p = params;
+		BAMWriterFactory bamWriterFactory = new BAMWriterFactory() {
+			@Override
+			public SAMFileWriter makeBAMWriter(SAMFileHeader header, File file) throws IOException {
+				if (compressionPool == null)
+					return writerFactory.makeBAMWriter(header, false, file);
+				return new ParallelBAMFileWriter(header, false, file, compressionPool, p.compression, p.blocksInFlight);
+			}
+		};
+		collate.writers[0] = bamWriterFactory.makeBAMWriter(reader.getFileHeader(), file0);
+		collate.writers[1] = bamWriterFactory.makeBAMWriter(reader.getFileHeader(), file1);
+		collate.writers[2] = bamWriterFactory.makeBAMWriter(reader.getFileHeader(), file2);
+		collate.overspillWriter = bamWriterFactory.makeBAMWriter(reader.getFileHeader(), overspillFile);
 
 		long time = System.currentTimeMillis();
 		long total = 0;
@@ -155,7 +170,7 @@ public class BAMNameCollate extends NameCollate<BAMRead> {
 			reader = new SAMFileReader(overspillFile);
 			SAMFileHeader header = reader.getFileHeader().clone();
 			header.setSortOrder(SAMFileHeader.SortOrder.queryname);
-			SAMFileWriter writer = writerFactory.makeBAMWriter(header, false, sorted);
+			SAMFileWriter writer = bamWriterFactory.makeBAMWriter(header, sorted);
 
 			long overfill = 0;
 			System.out.println("Sorting overfill...");
@@ -207,12 +222,19 @@ public class BAMNameCollate extends NameCollate<BAMRead> {
 				writer.close();
 		}
 
+		if (compressionPool != null)
+			compressionPool.shutdown();
+
 		if (params.cleanup) {
 			overspillFile.delete();
 			sorted.delete();
 		}
 	}
 
+	private interface BAMWriterFactory {
+		SAMFileWriter makeBAMWriter(SAMFileHeader header, File file) throws IOException;
+	}
+
 	@Parameters(commandDescription = "Split reads.")
 	static class Params {
 		@Parameter(names = { "-l", "--log-level" }, description = "Change log level: DEBUG, INFO, WARNING, ERROR.", converter = LevelConverter.class)
@@ -230,6 +252,12 @@ public class BAMNameCollate extends NameCollate<BAMRead> {
 		@Parameter(names = { "--compression" }, description = "BAM compression level. ")
 		int compression = 5;
 
+		@Parameter(names = { "--compression-threads" }, description = "Number of threads to compress BAM blocks with, 1 means the blocks are compressed in the writing thread.")
+		int compressionThreads = 1;
+
+		@Parameter(names = { "--blocks-in-flight" }, description = "Maximum number of BAM blocks being compressed or waiting to be written per output file when compressing with more than one thread.", hidden = true)
+		int blocksInFlight = 64;
+
 		@Parameter(names = { "--cleanup" }, description = "Remove tmp files.")
 		boolean cleanup = false;
 	}
@@ -6,10 +6,12 @@ import htsjdk.samtools.cram.encoding.reader.NameCollate.IRead;
 public class BAMRead implements IRead {
 	private SAMRecord record;
 	private long age = 0;
+	private long nameHash;
 
 	public BAMRead(SAMRecord record) {
 		super();
 		this.record = record;
+		nameHash = CollationCache.hash(record.getReadName());
 	}
 
 	@Override
@@ -22,6 +24,16 @@ public class BAMRead implements IRead {
 		this.age = age;
 	}
 
+	@Override
+	public long getNameHash() {
+		return nameHash;
+	}
+
+	@Override
+	public boolean hasSameName(IRead read) {
+		return record.getReadName().equals(((BAMRead) read).getRecord().getReadName());
+	}
+
 	public SAMRecord getRecord() {
 		return record;
 	};
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.encoding.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A fastq reader that decodes a slice into a byte buffer instead of writing
+ * the reads out. This allows slices to be decoded on worker threads while the
+ * buffered reads are later replayed into the actual output reader, for example
+ * {@link MultiFastqOutputter}, on a single thread and in slice order.
+ * <p>
+ * Settings affecting the decoded reads are copied from the target reader and
+ * reference switches in multi-reference slices are delegated to it.
+ *
+ * @author vadim
+ *
+ */
+public class BufferingFastqReader extends AbstractFastqReader {
+	public static final int BUF_SIZE = 1024 * 1024;
+
+	private AbstractFastqReader target;
+	private ByteBuffer buf;
+	private int readCalls = 0;
+
+	public BufferingFastqReader(AbstractFastqReader target) {
+		this(target, BUF_SIZE);
+	}
+
+	public BufferingFastqReader(AbstractFastqReader target, int bufSize) {
+		this.target = target;
+		reverseNegativeReads = target.reverseNegativeReads;
+		appendSegmentIndexToReadNames = target.appendSegmentIndexToReadNames;
+		counterOffset = target.counterOffset;
+		defaultQS = target.defaultQS;
+		ignoreReadsWithFlags = target.ignoreReadsWithFlags;
+		buf = ByteBuffer.allocate(bufSize);
+	}
+
+	/**
+	 * @return the number of times {@link #read()} has been called, this
+	 *         includes reads filtered out by flags
+	 */
+	public int getReadCalls() {
+		return readCalls;
+	}
+
+	@Override
+	public void read() throws IOException {
+		super.read();
+		readCalls++;
+	}
+
+	@Override
+	protected void writeRead(byte[] name, int flags, byte[] bases, byte[] scores) {
+		ensureCapacity(4 * 4 + name.length + 2 * readLength);
+		buf.putInt(readCalls);
+		buf.putInt(flags);
+		buf.putInt(name.length);
+		buf.put(name);
+		buf.putInt(readLength);
+		buf.put(bases, 0, readLength);
+		buf.put(scores, 0, readLength);
+	}
+
+	private void ensureCapacity(int size) {
+		if (buf.remaining() >= size)
+			return;
+
+		ByteBuffer newBuf = ByteBuffer.allocate(Math.max(2 * buf.capacity(), buf.position() + size));
+		buf.flip();
+		newBuf.put(buf);
+		buf = newBuf;
+	}
+
+	/**
+	 * Write the buffered reads into the target reader in the order they have
+	 * been decoded.
+	 *
+	 * @param maxReadCalls
+	 *            replay only the reads produced by this many first calls to
+	 *            {@link #read()}, -1 means all
+	 */
+	public void replay(long maxReadCalls) {
+		ByteBuffer in = buf.duplicate();
+		in.flip();
+		while (in.hasRemaining()) {
+			int readCall = in.getInt();
+			if (maxReadCalls > -1 && readCall >= maxReadCalls)
+				break;
+
+			int flags = in.getInt();
+			byte[] name = new byte[in.getInt()];
+			in.get(name);
+			int length = in.getInt();
+			in.get(target.bases, 0, length);
+			in.get(target.scores, 0, length);
+
+			target.readName = name;
+			target.readLength = length;
+			target.flags = flags;
+			target.writeRead(name, flags, target.bases, target.scores);
+		}
+	}
+
+	@Override
+	public void finish() {
+	}
+
+	@Override
+	protected byte[] refSeqChanged(int seqID) {
+		return target.refSeqChanged(seqID);
+	}
+}
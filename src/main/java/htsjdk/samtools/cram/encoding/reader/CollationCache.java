@@ -0,0 +1,164 @@
+package htsjdk.samtools.cram.encoding.reader;
+
+import htsjdk.samtools.cram.encoding.reader.NameCollate.IRead;
+
+/**
+ * A hash table of reads waiting for their mates, keyed on a 64 bit hash of
+ * the read name. Reads are also linked in the order they were added, so that
+ * the oldest reads can be evicted one by one in constant time without sorting
+ * the cache. Reads with the same hash are told apart with
+ * {@link IRead#hasSameName(IRead)}.
+ *
+ * @author vadim
+ */
+class CollationCache<R extends IRead> {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private Entry<R>[] table;
+	private int size = 0;
+	private Entry<R> oldest, newest;
+
+	private static class Entry<R> {
+		long hash;
+		R read;
+		Entry<R> nextInBucket;
+		Entry<R> older, newer;
+	}
+
+	CollationCache() {
+		table = newTable(INITIAL_CAPACITY);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <R> Entry<R>[] newTable(int capacity) {
+		return (Entry<R>[]) new Entry<?>[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Remove the read with the same name as the given read.
+	 *
+	 * @return the removed read or null if there was none
+	 */
+	R remove(R read) {
+		long hash = read.getNameHash();
+		int index = indexFor(hash, table.length);
+		Entry<R> previous = null;
+		for (Entry<R> entry = table[index]; entry != null; previous = entry, entry = entry.nextInBucket) {
+			if (entry.hash == hash && entry.read.hasSameName(read)) {
+				if (previous == null)
+					table[index] = entry.nextInBucket;
+				else
+					previous.nextInBucket = entry.nextInBucket;
+				unlink(entry);
+				return entry.read;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a read as the newest one. The cache must not already contain a read
+	 * with the same name.
+	 */
+	void add(R read) {
+		if (size >= table.length - (table.length >> 2))
+			resize(table.length * 2);
+
+		Entry<R> entry = new Entry<R>();
+		entry.hash = read.getNameHash();
+		entry.read = read;
+		int index = indexFor(entry.hash, table.length);
+		entry.nextInBucket = table[index];
+		table[index] = entry;
+
+		entry.older = newest;
+		if (newest == null)
+			oldest = entry;
+		else
+			newest.newer = entry;
+		newest = entry;
+		size++;
+	}
+
+	/**
+	 * Remove the read that has been in the cache for the longest time.
+	 *
+	 * @return the removed read or null if the cache is empty
+	 */
+	R removeOldest() {
+		Entry<R> entry = oldest;
+		if (entry == null)
+			return null;
+
+		int index = indexFor(entry.hash, table.length);
+		if (table[index] == entry)
+			table[index] = entry.nextInBucket;
+		else {
+			Entry<R> previous = table[index];
+			while (previous.nextInBucket != entry)
+				previous = previous.nextInBucket;
+			previous.nextInBucket = entry.nextInBucket;
+		}
+		unlink(entry);
+		return entry.read;
+	}
+
+	private void unlink(Entry<R> entry) {
+		if (entry.older == null)
+			oldest = entry.newer;
+		else
+			entry.older.newer = entry.newer;
+		if (entry.newer == null)
+			newest = entry.older;
+		else
+			entry.newer.older = entry.older;
+		entry.older = entry.newer = entry.nextInBucket = null;
+		size--;
+	}
+
+	private void resize(int capacity) {
+		Entry<R>[] newTable = newTable(capacity);
+		for (Entry<R> entry = oldest; entry != null; entry = entry.newer) {
+			int index = indexFor(entry.hash, capacity);
+			entry.nextInBucket = newTable[index];
+			newTable[index] = entry;
+		}
+		table = newTable;
+	}
+
+	private static int indexFor(long hash, int capacity) {
+		return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the given bytes.
+	 */
+	static long hash(byte[] data, int offset, int length) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			hash ^= data[i] & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the characters of the given string.
+	 */
+	static long hash(CharSequence s) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			hash ^= s.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,185 @@
+package htsjdk.samtools.cram.encoding.reader;
+
+import java.util.Arrays;
+
+import htsjdk.samtools.cram.encoding.reader.NameCollate.IRead;
+
+/**
+ * A read waiting in the collation cache for its mate. Bases are packed 2 bits
+ * each if they are all A, C, G or T, quality scores are kept as a single value
+ * if they are all the same (as for reads without preserved scores), the name
+ * is kept in a {@link NameArena} together with its precomputed hash, and the
+ * FASTQ text is only rendered by {@link #toFastq(boolean)} when the read is
+ * about to be written.
+ *
+ * @author vadim
+ */
+class CompactFastqRead implements IRead {
+	private static final byte[] BASES = new byte[] { 'A', 'C', 'G', 'T' };
+	private static final byte[] CODES = new byte[256];
+	static {
+		for (int i = 0; i < CODES.length; i++)
+			CODES[i] = -1;
+		for (int i = 0; i < BASES.length; i++)
+			CODES[BASES[i]] = (byte) i;
+	}
+
+	final byte[] nameChunk;
+	final int nameOffset;
+	final int nameLength;
+	final long nameHash;
+	final int templateIndex;
+	final int readLength;
+	private long age = 0;
+
+	/**
+	 * Bases packed 4 per byte or as they are if {@link #packed} is false.
+	 */
+	private final byte[] bases;
+	private final boolean packed;
+	/**
+	 * Quality scores or null if all of them are {@link #constantScore}.
+	 */
+	private final byte[] scores;
+	private final byte constantScore;
+
+	CompactFastqRead(NameArena arena, byte[] name, int templateIndex, int readLength, byte[] bases, byte[] scores) {
+		nameOffset = arena.add(name, 0, name.length);
+		nameChunk = arena.getChunk();
+		nameLength = name.length;
+		nameHash = CollationCache.hash(name, 0, name.length);
+		this.templateIndex = templateIndex;
+		this.readLength = readLength;
+
+		this.packed = isPackable(bases, readLength);
+		if (packed) {
+			this.bases = new byte[(readLength + 3) / 4];
+			for (int i = 0; i < readLength; i++)
+				this.bases[i >> 2] |= CODES[bases[i] & 0xFF] << ((i & 3) << 1);
+		} else {
+			this.bases = new byte[readLength];
+			System.arraycopy(bases, 0, this.bases, 0, readLength);
+		}
+
+		if (scores == null) {
+			this.scores = null;
+			constantScore = 33;
+		} else if (isConstant(scores, readLength)) {
+			this.scores = null;
+			constantScore = readLength > 0 ? scores[0] : 33;
+		} else {
+			this.scores = new byte[readLength];
+			System.arraycopy(scores, 0, this.scores, 0, readLength);
+			constantScore = 0;
+		}
+	}
+
+	private static boolean isConstant(byte[] scores, int readLength) {
+		for (int i = 1; i < readLength; i++)
+			if (scores[i] != scores[0])
+				return false;
+		return true;
+	}
+
+	private static boolean isPackable(byte[] bases, int readLength) {
+		for (int i = 0; i < readLength; i++)
+			if (CODES[bases[i] & 0xFF] < 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Unpack the bases into the given array.
+	 */
+	void getBases(byte[] dest) {
+		if (!packed) {
+			System.arraycopy(bases, 0, dest, 0, readLength);
+			return;
+		}
+		for (int i = 0; i < readLength; i++)
+			dest[i] = BASES[(bases[i >> 2] >> ((i & 3) << 1)) & 3];
+	}
+
+	/**
+	 * Copy the quality scores into the given array.
+	 */
+	void getScores(byte[] dest) {
+		if (scores == null)
+			Arrays.fill(dest, 0, readLength, constantScore);
+		else
+			System.arraycopy(scores, 0, dest, 0, readLength);
+	}
+
+	/**
+	 * Render the read as FASTQ text in the same layout as {@link FastqRead}.
+	 */
+	byte[] toFastq(boolean appendSegmentIndex) {
+		int suffixLength = appendSegmentIndex && templateIndex > 0 ? 2 : 0;
+		byte[] data = new byte[nameLength + suffixLength + 2 * readLength + 6];
+		int at = 0;
+		data[at++] = '@';
+		System.arraycopy(nameChunk, nameOffset, data, at, nameLength);
+		at += nameLength;
+		if (suffixLength > 0) {
+			data[at++] = '/';
+			data[at++] = (byte) ('0' + templateIndex);
+		}
+		data[at++] = '\n';
+
+		if (packed)
+			for (int i = 0; i < readLength; i++)
+				data[at++] = BASES[(bases[i >> 2] >> ((i & 3) << 1)) & 3];
+		else {
+			System.arraycopy(bases, 0, data, at, readLength);
+			at += readLength;
+		}
+		data[at++] = '\n';
+		data[at++] = '+';
+		data[at++] = '\n';
+		if (scores == null)
+			Arrays.fill(data, at, at + readLength, constantScore);
+		else
+			System.arraycopy(scores, 0, data, at, readLength);
+		at += readLength;
+		data[at] = '\n';
+		return data;
+	}
+
+	@Override
+	public long getNameHash() {
+		return nameHash;
+	}
+
+	@Override
+	public boolean hasSameName(IRead read) {
+		CompactFastqRead r = (CompactFastqRead) read;
+		if (nameLength != r.nameLength)
+			return false;
+		for (int i = 0; i < nameLength; i++)
+			if (nameChunk[nameOffset + i] != r.nameChunk[r.nameOffset + i])
+				return false;
+		return true;
+	}
+
+	@Override
+	public int compareTo(IRead read) {
+		CompactFastqRead r = (CompactFastqRead) read;
+		int length = Math.min(nameLength, r.nameLength);
+		for (int i = 0; i < length; i++) {
+			int result = (nameChunk[nameOffset + i] & 0xFF) - (r.nameChunk[r.nameOffset + i] & 0xFF);
+			if (result != 0)
+				return result;
+		}
+		return nameLength - r.nameLength;
+	}
+
+	@Override
+	public long getAge() {
+		return age;
+	}
+
+	@Override
+	public void setAge(long age) {
+		this.age = age;
+	}
+}
@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.encoding.reader;
+
+import htsjdk.samtools.cram.encoding.readfeatures.BaseQualityScore;
+import htsjdk.samtools.cram.encoding.readfeatures.Bases;
+import htsjdk.samtools.cram.encoding.readfeatures.Deletion;
+import htsjdk.samtools.cram.encoding.readfeatures.HardClip;
+import htsjdk.samtools.cram.encoding.readfeatures.InsertBase;
+import htsjdk.samtools.cram.encoding.readfeatures.Insertion;
+import htsjdk.samtools.cram.encoding.readfeatures.Padding;
+import htsjdk.samtools.cram.encoding.readfeatures.ReadBase;
+import htsjdk.samtools.cram.encoding.readfeatures.RefSkip;
+import htsjdk.samtools.cram.encoding.readfeatures.Scores;
+import htsjdk.samtools.cram.encoding.readfeatures.SoftClip;
+import htsjdk.samtools.cram.encoding.readfeatures.Substitution;
+import htsjdk.samtools.cram.io.ITF8;
+import htsjdk.samtools.cram.io.InputStreamUtils;
+import htsjdk.samtools.cram.structure.Block;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.EncodingID;
+import htsjdk.samtools.cram.structure.EncodingKey;
+import htsjdk.samtools.cram.structure.EncodingParams;
+import htsjdk.samtools.cram.structure.ReadTag;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A reader that decodes only selected data series, for example bit flags and
+ * alignment positions for counting records. The other data series are not
+ * read at all, so that the external blocks holding them don't need to be
+ * uncompressed.
+ * <p>
+ * A data series can be skipped only if its stream is not shared with a data
+ * series that is decoded, and only if the values deciding how many times it
+ * is read are decoded too. {@link #selectDataSeries(CompressionHeader, Set)}
+ * extends the required data series accordingly. The record is filled with the
+ * decoded values only.
+ *
+ * @author vadim
+ *
+ */
+public class CountingReader extends AbstractReader {
+	/**
+	 * Stream id used for the core block, external blocks use their content id.
+	 */
+	public static final int CORE_STREAM = -1;
+
+	private static final Set<EncodingKey> MATE_SERIES = EnumSet.of(EncodingKey.MF_MateBitFlags,
+			EncodingKey.NS_NextFragmentReferenceSequenceID, EncodingKey.NP_NextFragmentAlignmentStart,
+			EncodingKey.TS_InsetSize, EncodingKey.NF_RecordsToNextFragment);
+
+	private static final Set<EncodingKey> READ_FEATURE_SERIES = EnumSet.of(EncodingKey.BA_Base,
+			EncodingKey.QS_QualityScore, EncodingKey.BS_BaseSubstitutionCode, EncodingKey.IN_Insertion,
+			EncodingKey.SC_SoftClip, EncodingKey.HC_HardClip, EncodingKey.PD_padding, EncodingKey.DL_DeletionLength,
+			EncodingKey.RS_RefSkip, EncodingKey.BB_bases, EncodingKey.QQ_scores);
+
+	private final Set<EncodingKey> series;
+
+	/**
+	 * Alignment span of the last record, valid only if the read features
+	 * changing the span are decoded.
+	 */
+	public int alignmentSpan;
+
+	/**
+	 * @param series
+	 *            data series to decode as returned by
+	 *            {@link #selectDataSeries(CompressionHeader, Set)}
+	 */
+	public CountingReader(Set<EncodingKey> series) {
+		this.series = series;
+	}
+
+	private boolean has(EncodingKey key) {
+		return series.contains(key);
+	}
+
+	public void read(CramCompressionRecord r) throws IOException {
+		try {
+			r.flags = bitFlagsCodec.readData();
+			if (has(EncodingKey.CF_CompressionBitFlags))
+				r.compressionFlags = compressionBitFlagsCodec.readData();
+			if (refId == -2) {
+				if (has(EncodingKey.RI_RefId))
+					r.sequenceId = refIdCodec.readData();
+			} else
+				r.sequenceId = refId;
+
+			if (has(EncodingKey.RL_ReadLength))
+				r.readLength = readLengthCodec.readData();
+			if (has(EncodingKey.AP_AlignmentPositionOffset)) {
+				if (APDelta)
+					r.alignmentDelta = alignmentStartCodec.readData();
+				else
+					r.alignmentStart = alignmentStartCodec.readData();
+			}
+			if (has(EncodingKey.RG_ReadGroup))
+				r.readGroupID = readGroupCodec.readData();
+
+			if (captureReadNames && has(EncodingKey.RN_ReadName))
+				readNameCodec.readData();
+
+			if (has(EncodingKey.CF_CompressionBitFlags)) {
+				if (r.isDetached()) {
+					if (has(EncodingKey.MF_MateBitFlags))
+						r.mateFlags = mateBitFlagCodec.readData();
+					if (!captureReadNames && has(EncodingKey.RN_ReadName))
+						readNameCodec.readData();
+					if (has(EncodingKey.NS_NextFragmentReferenceSequenceID))
+						r.mateSequenceID = mateReferenceIdCodec.readData();
+					if (has(EncodingKey.NP_NextFragmentAlignmentStart))
+						r.mateAlignmentStart = mateAlignmentStartCodec.readData();
+					if (has(EncodingKey.TS_InsetSize))
+						r.templateSize = insertSizeCodec.readData();
+				} else if (r.isHasMateDownStream() && has(EncodingKey.NF_RecordsToNextFragment))
+					r.recordsToNextFragment = distanceToNextFragmentCodec.readData();
+			}
+
+			if (has(EncodingKey.TL_TagIdList)) {
+				final byte[][] ids = tagIdDictionary[tagIdListCodec.readData()];
+				for (int i = 0; i < ids.length; i++) {
+					final int id = ReadTag.name3BytesToInt(ids[i]);
+					tagValueCodecs.get(id).readData();
+				}
+			}
+
+			alignmentSpan = r.readLength;
+			if (!r.isSegmentUnmapped()) {
+				if (has(EncodingKey.FN_NumberOfReadFeatures))
+					readFeatures();
+
+				if (has(EncodingKey.MQ_MappingQualityScore))
+					r.mappingQuality = mappingScoreCodec.readData();
+				if (has(EncodingKey.QS_QualityScore) && r.isForcePreserveQualityScores())
+					qualityScoresCodec.readDataArray(r.readLength);
+			} else {
+				alignmentSpan = 0;
+				if (has(EncodingKey.BA_Base) && !r.isUnknownBases()) {
+					for (int i = 0; i < r.readLength; i++)
+						baseCodec.readData();
+				}
+				if (has(EncodingKey.QS_QualityScore) && !r.isUnknownBases() && r.isForcePreserveQualityScores())
+					qualityScoresCodec.readDataArray(r.readLength);
+			}
+
+			recordCounter++;
+		} catch (Exception e) {
+			System.err.printf("Failed at record %d. \n", recordCounter);
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void readFeatures() throws IOException {
+		final int size = numberOfReadFeaturesCodec.readData();
+		for (int i = 0; i < size; i++) {
+			if (has(EncodingKey.FP_FeaturePosition))
+				readFeaturePositionCodec.readData();
+			if (!has(EncodingKey.FC_FeatureCode))
+				continue;
+
+			final byte operator = readFeatureCodeCodec.readData();
+			switch (operator) {
+			case ReadBase.operator:
+				if (has(EncodingKey.BA_Base))
+					baseCodec.readData();
+				if (has(EncodingKey.QS_QualityScore))
+					qualityScoreCodec.readData();
+				break;
+			case Substitution.operator:
+				if (has(EncodingKey.BS_BaseSubstitutionCode))
+					baseSubstitutionCodec.readData();
+				break;
+			case Insertion.operator:
+				if (has(EncodingKey.IN_Insertion))
+					alignmentSpan -= insertionCodec.readData().length;
+				break;
+			case SoftClip.operator:
+				if (has(EncodingKey.SC_SoftClip))
+					alignmentSpan -= softClipCodec.readData().length;
+				break;
+			case HardClip.operator:
+				if (has(EncodingKey.HC_HardClip))
+					hardClipCodec.readData();
+				break;
+			case Padding.operator:
+				if (has(EncodingKey.PD_padding))
+					paddingCodec.readData();
+				break;
+			case Deletion.operator:
+				if (has(EncodingKey.DL_DeletionLength))
+					alignmentSpan += deletionLengthCodec.readData();
+				break;
+			case RefSkip.operator:
+				// not counted in the alignment span, same as in
+				// CramCompressionRecord:
+				if (has(EncodingKey.RS_RefSkip))
+					refSkipCodec.readData();
+				break;
+			case InsertBase.operator:
+				if (has(EncodingKey.BA_Base))
+					baseCodec.readData();
+				alignmentSpan--;
+				break;
+			case BaseQualityScore.operator:
+				if (has(EncodingKey.QS_QualityScore))
+					qualityScoreCodec.readData();
+				break;
+			case Bases.operator:
+				if (has(EncodingKey.BB_bases))
+					basesCodec.readData();
+				break;
+			case Scores.operator:
+				if (has(EncodingKey.QQ_scores))
+					scoresCodec.readData();
+				break;
+			default:
+				throw new RuntimeException("Unknown read feature operator: " + operator);
+			}
+		}
+	}
+
+	/**
+	 * Find the data series that must be decoded to get the values of the
+	 * required ones. Tags are decoded only if they share a stream with a
+	 * decoded data series, in which case the result contains
+	 * {@link EncodingKey#TL_TagIdList}.
+	 *
+	 * @param header
+	 *            the compression header of the container
+	 * @param required
+	 *            data series whose values are needed
+	 * @return data series to decode
+	 */
+	public static Set<EncodingKey> selectDataSeries(CompressionHeader header, Set<EncodingKey> required) {
+		Set<EncodingKey> series = EnumSet.noneOf(EncodingKey.class);
+		series.addAll(required);
+		series.add(EncodingKey.BF_BitFlags);
+
+		boolean changed = true;
+		while (changed) {
+			int size = series.size();
+
+			// data series deciding if and how many times others are read:
+			if (series.contains(EncodingKey.RN_ReadName) && !header.readNamesIncluded)
+				series.add(EncodingKey.CF_CompressionBitFlags);
+			if (!Collections.disjoint(series, MATE_SERIES))
+				series.add(EncodingKey.CF_CompressionBitFlags);
+			if (!Collections.disjoint(series, READ_FEATURE_SERIES)) {
+				series.add(EncodingKey.FC_FeatureCode);
+				series.add(EncodingKey.CF_CompressionBitFlags);
+				series.add(EncodingKey.RL_ReadLength);
+			}
+			if (series.contains(EncodingKey.FC_FeatureCode) || series.contains(EncodingKey.FP_FeaturePosition))
+				series.add(EncodingKey.FN_NumberOfReadFeatures);
+
+			// data series sharing a stream with the decoded ones:
+			Set<Integer> streams = selectStreams(header, series);
+			for (EncodingKey key : header.encodingMap.keySet()) {
+				if (!series.contains(key) && !Collections.disjoint(streams, getStreams(header.encodingMap.get(key))))
+					series.add(key);
+			}
+			if (!series.contains(EncodingKey.TL_TagIdList) && header.tMap != null) {
+				for (EncodingParams params : header.tMap.values()) {
+					if (!Collections.disjoint(streams, getStreams(params))) {
+						series.add(EncodingKey.TL_TagIdList);
+						break;
+					}
+				}
+			}
+
+			changed = series.size() != size;
+		}
+		return series;
+	}
+
+	/**
+	 * @return ids of the streams used by the data series, including
+	 *         {@link #CORE_STREAM}
+	 */
+	public static Set<Integer> selectStreams(CompressionHeader header, Set<EncodingKey> series) {
+		Set<Integer> streams = new HashSet<Integer>();
+		for (EncodingKey key : series) {
+			EncodingParams params = header.encodingMap.get(key);
+			if (params != null)
+				streams.addAll(getStreams(params));
+		}
+		if (series.contains(EncodingKey.TL_TagIdList) && header.tMap != null) {
+			for (EncodingParams params : header.tMap.values())
+				streams.addAll(getStreams(params));
+		}
+		return streams;
+	}
+
+	private static Set<Integer> getStreams(EncodingParams params) {
+		Set<Integer> streams = new HashSet<Integer>();
+		try {
+			addStreams(params.id, params.params, streams);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return streams;
+	}
+
+	private static void addStreams(EncodingID id, byte[] params, Set<Integer> streams) throws IOException {
+		InputStream is = new ByteArrayInputStream(params);
+		switch (id) {
+		case NULL:
+			break;
+		case EXTERNAL:
+			streams.add(ITF8.readUnsignedITF8(is));
+			break;
+		case BYTE_ARRAY_STOP:
+			// the stop byte:
+			is.read();
+			streams.add(ITF8.readUnsignedITF8(is));
+			break;
+		case BYTE_ARRAY_LEN:
+			for (int i = 0; i < 2; i++) {
+				EncodingID subId = EncodingID.values()[ITF8.readUnsignedITF8(is)];
+				byte[] subParams = new byte[ITF8.readUnsignedITF8(is)];
+				InputStreamUtils.readFully(is, subParams, 0, subParams.length);
+				addStreams(subId, subParams, streams);
+			}
+			break;
+
+		default:
+			streams.add(CORE_STREAM);
+			break;
+		}
+	}
+
+	/**
+	 * Build the input streams of the external blocks used by the decoded data
+	 * series. Blocks of the other data series are left compressed.
+	 */
+	public static void addInputStreams(Map<Integer, InputStream> inputMap, Set<Integer> streams,
+			Map<Integer, Block> external) {
+		for (Integer id : streams) {
+			if (id != CORE_STREAM && external.containsKey(id))
+				inputMap.put(id, new ByteArrayInputStream(external.get(id).getRawContent()));
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package htsjdk.samtools.cram.encoding.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.util.Log;
+
+/**
+ * Bounded memory name collation for FASTQ reads that could not be paired in
+ * the cache. Reads are buffered as compact binary records up to a given number
+ * of bytes, then sorted by name and written out to a temporary run file. When
+ * all reads have been added the runs are merged, so that mates come together
+ * no matter how far apart they were in the input.
+ * <p>
+ * Reads with equal names are ordered by their generation, so the pairing does
+ * not depend on the buffer size. No more than {@link #MAX_MERGE_WIDTH} runs
+ * are merged at once, larger numbers of runs are merged in several passes.
+ *
+ * @author vadim
+ */
+class ExternalFastqCollator {
+	private static final Log log = Log.getInstance(ExternalFastqCollator.class);
+
+	static final int MAX_MERGE_WIDTH = 64;
+	/**
+	 * Approximate heap overhead of a buffered record in bytes.
+	 */
+	private static final int RECORD_OVERHEAD = 32;
+	private static final int RUN_STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private final long maxBufferSize;
+	private final File tmpDir;
+
+	private final List<byte[]> buffer = new ArrayList<byte[]>();
+	private long bufferSize = 0;
+	private final LinkedList<Run> runs = new LinkedList<Run>();
+
+	/**
+	 * @param maxBufferSize
+	 *            approximate number of bytes to buffer in memory before
+	 *            spilling a sorted run to disk
+	 * @param tmpDir
+	 *            directory for the run files, null for the default temporary
+	 *            directory
+	 */
+	ExternalFastqCollator(long maxBufferSize, File tmpDir) {
+		this.maxBufferSize = maxBufferSize;
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * A decoded read.
+	 */
+	static class Record {
+		byte[] name;
+		int templateIndex;
+		long generation;
+		int readLength;
+		byte[] bases;
+		byte[] scores;
+
+		private static Record decode(byte[] data) {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			Record record = new Record();
+			record.name = new byte[buf.getInt()];
+			buf.get(record.name);
+			record.templateIndex = buf.get();
+			record.generation = buf.getLong();
+			record.readLength = buf.getInt();
+			record.bases = new byte[record.readLength];
+			buf.get(record.bases);
+			record.scores = new byte[record.readLength];
+			buf.get(record.scores);
+			return record;
+		}
+	}
+
+	interface Handler {
+		/**
+		 * Called for mates with the same name, first and second segments in
+		 * this order.
+		 */
+		void pair(Record first, Record second) throws IOException;
+
+		/**
+		 * Called for reads whose mate has not been found.
+		 */
+		void single(Record read) throws IOException;
+	}
+
+	/**
+	 * Record layout: name length, name, template index, generation, read
+	 * length, bases, scores.
+	 */
+	void add(byte[] name, int nameOffset, int nameLength, int templateIndex, long generation, int readLength,
+			byte[] bases, int basesOffset, byte[] scores, int scoresOffset) throws IOException {
+		byte[] data = new byte[4 + nameLength + 1 + 8 + 4 + 2 * readLength];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.putInt(nameLength);
+		buf.put(name, nameOffset, nameLength);
+		buf.put((byte) templateIndex);
+		buf.putLong(generation);
+		buf.putInt(readLength);
+		buf.put(bases, basesOffset, readLength);
+		buf.put(scores, scoresOffset, readLength);
+
+		buffer.add(data);
+		bufferSize += data.length + RECORD_OVERHEAD;
+		if (bufferSize >= maxBufferSize)
+			spill();
+	}
+
+	/**
+	 * @return true if no reads have been added
+	 */
+	boolean isEmpty() {
+		return buffer.isEmpty() && runs.isEmpty();
+	}
+
+	/**
+	 * Sort and merge all added reads and report them in name order. The
+	 * collator is empty afterwards.
+	 */
+	void finish(Handler handler) throws IOException {
+		try {
+			if (runs.isEmpty()) {
+				Collections.sort(buffer, byNameAndGeneration);
+				collate(new ListSource(buffer), handler);
+				return;
+			}
+
+			spill();
+			while (runs.size() > MAX_MERGE_WIDTH) {
+				List<Run> merging = new ArrayList<Run>(MAX_MERGE_WIDTH);
+				for (int i = 0; i < MAX_MERGE_WIDTH; i++)
+					merging.add(runs.removeFirst());
+
+				Run run = newRun();
+				DataOutputStream os = run.openOutput();
+				try {
+					MergingSource source = new MergingSource(merging);
+					for (byte[] data = source.next(); data != null; data = source.next())
+						run.write(os, data);
+					source.close();
+				} finally {
+					os.close();
+				}
+				for (Run merged : merging)
+					merged.delete();
+				runs.add(run);
+			}
+
+			log.info(String.format("Merging %d sorted runs.", runs.size()));
+			MergingSource source = new MergingSource(runs);
+			try {
+				collate(source, handler);
+			} finally {
+				source.close();
+			}
+		} finally {
+			buffer.clear();
+			bufferSize = 0;
+			for (Run run : runs)
+				run.delete();
+			runs.clear();
+		}
+	}
+
+	private void spill() throws IOException {
+		if (buffer.isEmpty())
+			return;
+
+		long time = System.nanoTime();
+		Collections.sort(buffer, byNameAndGeneration);
+		Run run = newRun();
+		DataOutputStream os = run.openOutput();
+		try {
+			for (byte[] data : buffer)
+				run.write(os, data);
+		} finally {
+			os.close();
+		}
+		runs.add(run);
+		log.debug(String.format("Spilled %d reads in %.2fms.", buffer.size(), (System.nanoTime() - time) / 1000000f));
+
+		buffer.clear();
+		bufferSize = 0;
+	}
+
+	private Run newRun() throws IOException {
+		File file = File.createTempFile("fastq-collate", ".run", tmpDir);
+		file.deleteOnExit();
+		return new Run(file);
+	}
+
+	/**
+	 * Pair adjacent reads with the same name from different segments.
+	 */
+	private static void collate(RecordSource source, Handler handler) throws IOException {
+		Record pending = null;
+		for (byte[] data = source.next(); data != null; data = source.next()) {
+			Record record = Record.decode(data);
+			if (pending != null && pending.templateIndex != record.templateIndex && pending.templateIndex > 0
+					&& record.templateIndex > 0 && compareNames(pending.name, record.name) == 0) {
+				if (pending.templateIndex == 1)
+					handler.pair(pending, record);
+				else
+					handler.pair(record, pending);
+				pending = null;
+			} else {
+				if (pending != null)
+					handler.single(pending);
+				pending = record;
+			}
+		}
+		if (pending != null)
+			handler.single(pending);
+	}
+
+	private static int compareNames(byte[] name1, byte[] name2) {
+		return compare(name1, 0, name1.length, name2, 0, name2.length);
+	}
+
+	private static int compare(byte[] b1, int offset1, int length1, byte[] b2, int offset2, int length2) {
+		int length = Math.min(length1, length2);
+		for (int i = 0; i < length; i++) {
+			int result = (b1[offset1 + i] & 0xFF) - (b2[offset2 + i] & 0xFF);
+			if (result != 0)
+				return result;
+		}
+		return length1 - length2;
+	}
+
+	private static int getInt(byte[] data, int at) {
+		return ((data[at] & 0xFF) << 24) | ((data[at + 1] & 0xFF) << 16) | ((data[at + 2] & 0xFF) << 8)
+				| (data[at + 3] & 0xFF);
+	}
+
+	private static long getLong(byte[] data, int at) {
+		return ((long) getInt(data, at) << 32) | (getInt(data, at + 4) & 0xFFFFFFFFL);
+	}
+
+	static final Comparator<byte[]> byNameAndGeneration = new Comparator<byte[]>() {
+
+		@Override
+		public int compare(byte[] o1, byte[] o2) {
+			int nameLength1 = getInt(o1, 0);
+			int nameLength2 = getInt(o2, 0);
+			int result = ExternalFastqCollator.compare(o1, 4, nameLength1, o2, 4, nameLength2);
+			if (result != 0)
+				return result;
+
+			long generation1 = getLong(o1, 4 + nameLength1 + 1);
+			long generation2 = getLong(o2, 4 + nameLength2 + 1);
+			return generation1 < generation2 ? -1 : (generation1 == generation2 ? 0 : 1);
+		}
+	};
+
+	private static class Run {
+		File file;
+		long records = 0;
+
+		Run(File file) {
+			this.file = file;
+		}
+
+		DataOutputStream openOutput() throws IOException {
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), RUN_STREAM_BUFFER_SIZE));
+		}
+
+		void write(DataOutputStream os, byte[] data) throws IOException {
+			os.writeInt(data.length);
+			os.write(data);
+			records++;
+		}
+
+		void delete() {
+			file.delete();
+		}
+	}
+
+	private interface RecordSource {
+		/**
+		 * @return next record or null if there are no more
+		 */
+		byte[] next() throws IOException;
+	}
+
+	private static class ListSource implements RecordSource {
+		private List<byte[]> list;
+		private int index = 0;
+
+		ListSource(List<byte[]> list) {
+			this.list = list;
+		}
+
+		@Override
+		public byte[] next() {
+			return index < list.size() ? list.get(index++) : null;
+		}
+	}
+
+	private static class RunReader {
+		private DataInputStream is;
+		private long remaining;
+		byte[] current;
+
+		RunReader(Run run) throws IOException {
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), RUN_STREAM_BUFFER_SIZE));
+			remaining = run.records;
+		}
+
+		/**
+		 * @return false if the run is exhausted
+		 */
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				current = null;
+				return false;
+			}
+			current = new byte[is.readInt()];
+			is.readFully(current);
+			remaining--;
+			return true;
+		}
+
+		void close() throws IOException {
+			is.close();
+		}
+	}
+
+	/**
+	 * K-way merge of sorted runs.
+	 */
+	private static class MergingSource implements RecordSource {
+		private List<RunReader> readers = new ArrayList<RunReader>();
+		private PriorityQueue<RunReader> queue;
+
+		MergingSource(List<Run> runs) throws IOException {
+			queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+				@Override
+				public int compare(RunReader o1, RunReader o2) {
+					return byNameAndGeneration.compare(o1.current, o2.current);
+				}
+			});
+			for (Run run : runs) {
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+				if (reader.advance())
+					queue.add(reader);
+			}
+		}
+
+		@Override
+		public byte[] next() throws IOException {
+			RunReader reader = queue.poll();
+			if (reader == null)
+				return null;
+
+			byte[] data = reader.current;
+			if (reader.advance())
+				queue.add(reader);
+			return data;
+		}
+
+		void close() throws IOException {
+			for (RunReader reader : readers)
+				reader.close();
+		}
+	}
+}
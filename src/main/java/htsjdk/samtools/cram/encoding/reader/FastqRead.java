@@ -15,6 +15,7 @@ public class FastqRead implements IRead {
 	int nameBaseLen;
 	FastqRead next;
 	long age = 0;
+	long nameHash;
 
 	public FastqRead(int readLength, byte[] name, boolean appendSegmentIndex, int templateIndex, byte[] bases,
 			byte[] scores) {
@@ -58,6 +59,8 @@ public class FastqRead implements IRead {
 				buf.put((byte) 33);
 
 		buf.put((byte) '\n');
+
+		nameHash = CollationCache.hash(data, 1, nameBaseLen);
 	}
 
 	@Override
@@ -80,6 +83,22 @@ public class FastqRead implements IRead {
 		return 0;
 	}
 
+	@Override
+	public long getNameHash() {
+		return nameHash;
+	}
+
+	@Override
+	public boolean hasSameName(IRead read) {
+		FastqRead r = (FastqRead) read;
+		if (nameBaseLen != r.nameBaseLen)
+			return false;
+		for (int i = 1; i <= nameBaseLen; i++)
+			if (data[i] != r.data[i])
+				return false;
+		return true;
+	}
+
 	@Override
 	public long getAge() {
 		return age;
@@ -2,42 +2,35 @@ package htsjdk.samtools.cram.encoding.reader;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
-import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.Log;
 import net.sf.cram.ref.ReferenceSource;
 
 public class MultiFastqOutputter extends AbstractFastqReader {
 	private static final Log log = Log.getInstance(MultiFastqOutputter.class);
-	private Map<FastqRead, FastqRead> readSet = new TreeMap<FastqRead, FastqRead>();
+	private CollationCache<CompactFastqRead> readSet = new CollationCache<CompactFastqRead>();
+	private NameArena names = new NameArena();
+	private byte[] spillBases, spillScores;
 	private int maxCacheSize = Integer
 			.parseInt(System.getProperty("fastq-dumper.cache-size", Integer.toString(100000)));
 
+	private long spillBufferSize = Long.parseLong(System.getProperty("fastq-dumper.spill-buffer-size",
+			Long.toString(64L * 1024 * 1024)));
+
 	private long generation = 0;
 	private OutputStream[] streams;
 
-	private SAMFileHeader headerForOverflowWriter;
-	private SAMFileWriter writer;
-	private OutputStream cacheOverFlowStream;
+	private ExternalFastqCollator collator;
 	private byte[] prefix;
 	private long counter = 1;
 	private ReferenceSource referenceSource;
 	private SAMFileHeader header;
 
-	public MultiFastqOutputter(OutputStream[] streams, OutputStream cacheOverFlowStream,
-			ReferenceSource referenceSource, SAMFileHeader header, long counter) {
+	public MultiFastqOutputter(OutputStream[] streams, ReferenceSource referenceSource, SAMFileHeader header,
+			long counter) {
 		this.streams = streams;
-		this.cacheOverFlowStream = cacheOverFlowStream;
 		this.referenceSource = referenceSource;
 		this.header = header;
 		super.counterOffset = counter;
@@ -56,76 +49,102 @@ public class MultiFastqOutputter extends AbstractFastqReader {
 	}
 
 	protected void write(FastqRead read, OutputStream stream) throws IOException {
+		write(read.data, read.templateIndex, stream);
+	}
+
+	/**
+	 * @param data
+	 *            FASTQ text of the read as laid out by {@link FastqRead}
+	 */
+	protected void write(byte[] data, int templateIndex, OutputStream stream) throws IOException {
 		if (prefix == null) {
-			stream.write(read.data);
+			stream.write(data);
 		} else {
-			streams[read.templateIndex].write('@');
-			streams[read.templateIndex].write(prefix);
-			streams[read.templateIndex].write('.');
-			streams[read.templateIndex].write(String.valueOf(counter).getBytes());
-			streams[read.templateIndex].write(' ');
-			streams[read.templateIndex].write(read.data, 1, read.data.length - 1);
+			streams[templateIndex].write('@');
+			streams[templateIndex].write(prefix);
+			streams[templateIndex].write('.');
+			streams[templateIndex].write(String.valueOf(counter).getBytes());
+			streams[templateIndex].write(' ');
+			streams[templateIndex].write(data, 1, data.length - 1);
 		}
 	}
 
-	protected void foundCollision(FastqRead read) {
-		FastqRead anchor = readSet.remove(read);
+	protected void foundCollision(CompactFastqRead anchor, CompactFastqRead read) {
 		try {
-			write(anchor, streams[anchor.templateIndex]);
-			write(read, streams[read.templateIndex]);
+			write(anchor.toFastq(appendSegmentIndexToReadNames), anchor.templateIndex,
+					streams[anchor.templateIndex]);
+			write(read.toFastq(appendSegmentIndexToReadNames), read.templateIndex, streams[read.templateIndex]);
 			counter++;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private static Comparator<FastqRead> byGenerationComparator = new Comparator<FastqRead>() {
-
-		@Override
-		public int compare(FastqRead o1, FastqRead o2) {
-			return (int) (o1.generation - o2.generation);
+	/**
+	 * Reads kicked from the cache are collated on disk and written out when
+	 * all reads have been seen.
+	 */
+	protected void kickedFromCache(CompactFastqRead read) {
+		if (collator == null) {
+			log.info("Spilling unpaired reads to disk.");
+			collator = new ExternalFastqCollator(spillBufferSize, null);
+			spillBases = new byte[maxReadBufferLength];
+			spillScores = new byte[maxReadBufferLength];
 		}
-	};
-
-	protected void kickedFromCache(FastqRead read) {
-		if (writer == null) {
-			log.info("Creating overflow BAM file.");
-			headerForOverflowWriter = header.clone();
-			headerForOverflowWriter.setSortOrder(SAMFileHeader.SortOrder.queryname);
-
-			writer = new SAMFileWriterFactory().makeBAMWriter(headerForOverflowWriter, false, cacheOverFlowStream);
+		try {
+			read.getBases(spillBases);
+			read.getScores(spillScores);
+			collator.add(read.nameChunk, read.nameOffset, read.nameLength, read.templateIndex, read.getAge(),
+					read.readLength, spillBases, 0, spillScores, 0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		SAMRecord r = read.toSAMRecord(writer.getFileHeader());
-		writer.addAlignment(r);
 	}
 
-	List<FastqRead> list = new ArrayList<FastqRead>();
+	private FastqRead toFastqRead(ExternalFastqCollator.Record record, int templateIndex) {
+		return new FastqRead(record.readLength, record.name, appendSegmentIndexToReadNames, templateIndex,
+				record.bases, record.scores);
+	}
+
+	private void writeSpilledReads() throws IOException {
+		collator.finish(new ExternalFastqCollator.Handler() {
+
+			@Override
+			public void pair(ExternalFastqCollator.Record first, ExternalFastqCollator.Record second)
+					throws IOException {
+				write(toFastqRead(first, 1), streams[1]);
+				write(toFastqRead(second, 2), streams[2]);
+				counter++;
+			}
+
+			@Override
+			public void single(ExternalFastqCollator.Record read) throws IOException {
+				write(toFastqRead(read, 0), streams[0]);
+				counter++;
+			}
+		});
+	}
 
+	/**
+	 * Evict the older half of the cache.
+	 */
 	protected void purgeCache() {
 		long time1 = System.nanoTime();
-		list.clear();
-		for (FastqRead read : readSet.keySet())
-			list.add(read);
-
-		Collections.sort(list, byGenerationComparator);
-		for (int i = 0; i < list.size() / 2; i++) {
-			readSet.remove(list.get(i));
-			kickedFromCache(list.get(i));
-		}
+		for (int i = readSet.size() / 2; i > 0; i--)
+			kickedFromCache(readSet.removeOldest());
 
-		list.clear();
 		long time2 = System.nanoTime();
 		log.debug(String.format("Cache purged in %.2fms.\n", (time2 - time1) / 1000000f));
 	}
 
 	@Override
 	protected void writeRead(byte[] name, int flags, byte[] bases, byte[] scores) {
-		FastqRead read = new FastqRead(readLength, name, appendSegmentIndexToReadNames,
-				getSegmentIndexInTemplate(flags), bases, scores);
-		read.generation = generation++;
-		if (read.templateIndex == 0) {
+		int templateIndex = getSegmentIndexInTemplate(flags);
+		if (templateIndex == 0) {
+			generation++;
 			try {
-				write(read, streams[0]);
+				write(new FastqRead(readLength, name, appendSegmentIndexToReadNames, templateIndex, bases, scores),
+						streams[0]);
 				counter++;
 			} catch (IOException e) {
 				throw new RuntimeException(e);
@@ -133,10 +152,13 @@ public class MultiFastqOutputter extends AbstractFastqReader {
 			return;
 		}
 
-		if (readSet.containsKey(read)) {
-			foundCollision(read);
+		CompactFastqRead read = new CompactFastqRead(names, name, templateIndex, readLength, bases, scores);
+		read.setAge(generation++);
+		CompactFastqRead anchor = readSet.remove(read);
+		if (anchor != null) {
+			foundCollision(anchor, read);
 		} else {
-			readSet.put(read, read);
+			readSet.add(read);
 
 			if (readSet.size() > maxCacheSize)
 				purgeCache();
@@ -145,13 +167,17 @@ public class MultiFastqOutputter extends AbstractFastqReader {
 
 	@Override
 	public void finish() {
-		for (FastqRead read : readSet.keySet())
-			kickedFromCache(read);
+		while (!readSet.isEmpty())
+			kickedFromCache(readSet.removeOldest());
 
-		readSet.clear();
-		if (writer != null)
-			writer.close();
-		writer = null;
+		if (collator != null) {
+			try {
+				writeSpilledReads();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		collator = null;
 	}
 
 	@Override
@@ -0,0 +1,55 @@
+package htsjdk.samtools.cram.encoding.reader;
+
+/**
+ * Read names of cached reads packed one after another into shared chunks
+ * instead of an array per name. A read keeps a reference to the chunk
+ * holding its name, so a chunk is garbage collected once all of its reads
+ * have left the cache. Because the oldest reads are evicted first, chunks are
+ * released roughly in the order they were filled.
+ * <p>
+ * A read waiting long for its mate keeps its whole chunk alive, together
+ * with the names of reads that are gone already. Chunks are therefore kept
+ * small, holding a few dozen names each: the array header is still shared
+ * by many names, and a lingering read pins about 1KB at most.
+ *
+ * @author vadim
+ */
+class NameArena {
+	private static final int DEFAULT_CHUNK_SIZE = 1024;
+
+	private final int chunkSize;
+	private byte[] chunk;
+	private int used = 0;
+
+	NameArena() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	NameArena(int chunkSize) {
+		this.chunkSize = chunkSize;
+		chunk = new byte[chunkSize];
+	}
+
+	/**
+	 * Copy a name into the arena. The name is stored in the chunk returned by
+	 * {@link #getChunk()} afterwards.
+	 *
+	 * @return offset of the name in the chunk
+	 */
+	int add(byte[] name, int offset, int length) {
+		if (used + length > chunk.length) {
+			chunk = new byte[Math.max(chunkSize, length)];
+			used = 0;
+		}
+		System.arraycopy(name, offset, chunk, used, length);
+		used += length;
+		return used - length;
+	}
+
+	/**
+	 * @return the chunk the last name has been added to
+	 */
+	byte[] getChunk() {
+		return chunk;
+	}
+}
@@ -34,6 +34,7 @@ class ReadFeatureBuffer {
             int pos = prevPos + reader.readFeaturePositionCodec.readData();
             prevPos = pos;
 
+            ensureCapacity(1 + 4 + 4);
             readFeatureBuffer.put(operator);
             readFeatureBuffer.putInt(pos);
 
@@ -47,11 +48,13 @@ class ReadFeatureBuffer {
                     break;
                 case Insertion.operator:
                     byte[] ins = reader.insertionCodec.readData();
+                    ensureCapacity(4 + ins.length);
                     readFeatureBuffer.putInt(ins.length);
                     readFeatureBuffer.put(ins);
                     break;
                 case SoftClip.operator:
                     byte[] softClip = reader.softClipCodec.readData();
+                    ensureCapacity(4 + softClip.length);
                     readFeatureBuffer.putInt(softClip.length);
                     readFeatureBuffer.put(softClip);
                     break;
@@ -80,6 +83,17 @@ class ReadFeatureBuffer {
         readFeatureBuffer.flip();
     }
 
+    private void ensureCapacity(int size) {
+        if (readFeatureBuffer.remaining() >= size)
+            return;
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * readFeatureBuffer.capacity(), readFeatureBuffer.position()
+                + size));
+        readFeatureBuffer.flip();
+        larger.put(readFeatureBuffer);
+        readFeatureBuffer = larger;
+    }
+
     public final void restoreReadBases(int readLength, int prevAlStart, byte[] ref,
                                        SubstitutionMatrix substitutionMatrix, byte[] bases) {
         readFeatureBuffer.rewind();
@@ -158,6 +172,175 @@ class ReadFeatureBuffer {
 
     }
 
+    /**
+     * Restore read bases exactly like CramNormalizer does: reference bases
+     * beyond the end of the reference become 'N' and, if the read has any
+     * read features, all bases are normalized to upper case ACGTN.
+     *
+     * @param alignmentStart
+     *            1-based alignment start of the read
+     * @param refOffset
+     *            zero-based reference position of the first base in the ref
+     *            array
+     */
+    public final void restoreNormalizedBases(int readLength, int alignmentStart, byte[] ref, int refOffset,
+                                             SubstitutionMatrix substitutionMatrix, byte[] bases) {
+        readFeatureBuffer.rewind();
+        int start = alignmentStart - 1 - refOffset;
+
+        if (readFeatureSize == 0) {
+            if (ref.length < start + readLength) {
+                Arrays.fill(bases, 0, readLength, (byte) 'N');
+                System.arraycopy(ref, start, bases, 0, Math.min(readLength, ref.length - start));
+            } else
+                System.arraycopy(ref, start, bases, 0, readLength);
+            return;
+        }
+
+        int posInRead = 1;
+        int posInSeq = 0;
+        for (int r = 0; r < readFeatureSize; r++) {
+            byte op = readFeatureBuffer.get();
+            int rfPos = readFeatureBuffer.getInt();
+
+            for (; posInRead < rfPos; posInRead++)
+                bases[posInRead - 1] = getByteOrDefault(ref, start + posInSeq++, (byte) 'N');
+
+            int len = 0;
+            switch (op) {
+                case Substitution.operator:
+                    byte refBase = normalizeBase(getByteOrDefault(ref, start + posInSeq, (byte) 'N'));
+                    bases[posInRead++ - 1] = substitutionMatrix.base(refBase, readFeatureBuffer.get());
+                    posInSeq++;
+                    break;
+                case Insertion.operator:
+                case SoftClip.operator:
+                    len = readFeatureBuffer.getInt();
+                    readFeatureBuffer.get(bases, posInRead - 1, len);
+                    posInRead += len;
+                    break;
+                case Deletion.operator:
+                case RefSkip.operator:
+                    posInSeq += readFeatureBuffer.getInt();
+                    break;
+                case InsertBase.operator:
+                    bases[posInRead++ - 1] = readFeatureBuffer.get();
+                    break;
+                case ReadBase.operator:
+                    // the base is set below:
+                    readFeatureBuffer.get();
+                    readFeatureBuffer.get();
+                    break;
+                case HardClip.operator:
+                case Padding.operator:
+                    readFeatureBuffer.getInt();
+                    break;
+                case BaseQualityScore.operator:
+                    readFeatureBuffer.get();
+                    break;
+                default:
+                    throw new RuntimeException("Unkown operator: " + op);
+            }
+        }
+        for (; posInRead <= readLength && start + posInSeq < ref.length; posInRead++)
+            bases[posInRead - 1] = ref[start + posInSeq++];
+        if (posInRead <= readLength)
+            Arrays.fill(bases, posInRead - 1, readLength, (byte) 'N');
+
+        readFeatureBuffer.rewind();
+        for (int r = 0; r < readFeatureSize; r++) {
+            byte op = readFeatureBuffer.get();
+            int rfPos = readFeatureBuffer.getInt();
+            if (op == ReadBase.operator) {
+                bases[rfPos - 1] = readFeatureBuffer.get();
+                readFeatureBuffer.get();
+            } else
+                skipReadFeature(op);
+        }
+
+        for (int i = 0; i < readLength; i++)
+            bases[i] = normalizeBase(bases[i]);
+    }
+
+    private void skipReadFeature(byte op) {
+        switch (op) {
+            case ReadBase.operator:
+                readFeatureBuffer.get();
+                readFeatureBuffer.get();
+                break;
+            case Substitution.operator:
+            case InsertBase.operator:
+            case BaseQualityScore.operator:
+                readFeatureBuffer.get();
+                break;
+            case Insertion.operator:
+            case SoftClip.operator:
+                int len = readFeatureBuffer.getInt();
+                readFeatureBuffer.position(readFeatureBuffer.position() + len);
+                break;
+            default:
+                readFeatureBuffer.getInt();
+                break;
+        }
+    }
+
+    private static byte normalizeBase(byte base) {
+        switch (base) {
+        case 'a':
+        case 'A':
+            return 'A';
+        case 'c':
+        case 'C':
+            return 'C';
+        case 'g':
+        case 'G':
+            return 'G';
+        case 't':
+        case 'T':
+            return 'T';
+        default:
+            return 'N';
+        }
+    }
+
+    private static byte getByteOrDefault(byte[] array, int pos, byte defaultValue) {
+        return pos >= array.length ? defaultValue : array[pos];
+    }
+
+    /**
+     * @return number of reference bases covered by the read, counted the
+     *         same way as by CramCompressionRecord: reference skips and
+     *         paddings are not included
+     */
+    public final int getAlignmentSpan(int readLength) {
+        readFeatureBuffer.rewind();
+        int span = readLength;
+        for (int r = 0; r < readFeatureSize; r++) {
+            byte op = readFeatureBuffer.get();
+            readFeatureBuffer.getInt();
+
+            switch (op) {
+                case InsertBase.operator:
+                    span--;
+                    readFeatureBuffer.get();
+                    break;
+                case Insertion.operator:
+                case SoftClip.operator:
+                    int len = readFeatureBuffer.getInt();
+                    span -= len;
+                    readFeatureBuffer.position(readFeatureBuffer.position() + len);
+                    break;
+                case Deletion.operator:
+                    span += readFeatureBuffer.getInt();
+                    break;
+                default:
+                    skipReadFeature(op);
+                    break;
+            }
+        }
+        return span;
+    }
+
     public final Cigar getCigar(int readLength) {
         readFeatureBuffer.rewind();
         if (!readFeatureBuffer.hasRemaining()) {
@@ -224,6 +407,10 @@ class ReadFeatureBuffer {
                     rfLen = readFeatureBuffer.getInt();
                     break;
                 case Substitution.operator:
+                    co = CigarOperator.MATCH_OR_MISMATCH;
+                    rfLen = 1;
+                    readFeatureBuffer.get();
+                    break;
                 case ReadBase.operator:
                     co = CigarOperator.MATCH_OR_MISMATCH;
                     rfLen = 1;
@@ -274,10 +461,14 @@ class ReadFeatureBuffer {
         return new Cigar(list);
     }
 
-    public void restoreQualityScores(int readLength, int prevAlStart, byte[] scores) {
+    /**
+     * @return number of quality scores set from the read features
+     */
+    public int restoreQualityScores(int readLength, int prevAlStart, byte[] scores) {
         readFeatureBuffer.rewind();
 
         int posInRead = 1;
+        int restored = 0;
 
         for (int r = 0; r < readFeatureSize; r++) {
             byte op = readFeatureBuffer.get();
@@ -316,13 +507,16 @@ class ReadFeatureBuffer {
                 case ReadBase.operator:
                     readFeatureBuffer.get();
                     scores[posInRead - 1] = readFeatureBuffer.get();
+                    restored++;
                     break;
                 case BaseQualityScore.operator:
                     scores[posInRead - 1] = readFeatureBuffer.get();
+                    restored++;
                     break;
                 default:
                     throw new RuntimeException("Unkown operator: " + op);
             }
         }
+        return restored;
     }
 }
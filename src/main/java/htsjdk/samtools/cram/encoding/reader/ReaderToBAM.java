@@ -1,12 +1,12 @@
 /*******************************************************************************
  * Copyright 2013 EMBL-EBI
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -16,163 +16,270 @@
 package htsjdk.samtools.cram.encoding.reader;
 
 import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.TextCigarCodec;
-import htsjdk.samtools.cram.structure.CramCompressionRecord;
 import htsjdk.samtools.cram.structure.ReadTag;
 import htsjdk.samtools.cram.structure.SubstitutionMatrix;
 
 import java.io.IOException;
-
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes CRAM records straight into BAM records, without creating
+ * CramCompressionRecord or SAMRecord objects. The records of a container are
+ * written into a buffer which grows as needed and is reused for the next
+ * container: call {@link #reset()}, then {@link #read()} for every record of
+ * every slice of the container and {@link #fixMateInfo()} before the records
+ * are written out.
+ * <p>
+ * The records are restored the same way as by CramNormalizer and
+ * Cram2SamRecordFactory: read names missing in the CRAM are generated from
+ * the record counter, mate information and template sizes are restored for
+ * the mates attached to each other, tags are sorted by tag code and the read
+ * group is added as RG tag. Optionally MD and NM tags are calculated.
+ *
+ * @author vadim
+ *
+ */
 public class ReaderToBAM extends AbstractReader {
-	protected static int detachedCount = 0;
-	protected int recordCounter = 0;
-	protected CramCompressionRecord prevRecord;
+	private static final byte DEFAULT_QUALITY_SCORE = 30;
+	private static final int FLAGS_MASK = 0xFFF & ~(BamFlags.MATE_UNMAPPED_FLAG | BamFlags.MATE_STRAND_FLAG);
+
+	/**
+	 * Tag codes as they appear in BAM, first letter in the lowest byte.
+	 */
+	private static final int RG_CODE = 'R' | 'G' << 8;
+	private static final int MD_CODE = 'M' | 'D' << 8;
+	private static final int NM_CODE = 'N' | 'M' << 8;
 
-	public int refId;
 	public SubstitutionMatrix substitutionMatrix;
-	public boolean AP_delta = true;
+	public byte[] ref = new byte[0];
+	/**
+	 * Zero-based reference position of the first base in the ref array.
+	 */
+	public int refOffset = 0;
+	public int prevAlStart = 1;
 
-	public byte[] buf = new byte[1024 * 1024 * 100];
-	public int[] index = new int[4 * 100000];
-	public int[] distances = new int[4 * 100000];
-	private int[] names = new int[4 * 100000];
-	private int[] next = new int[distances.length];
-	private int[] prev = new int[distances.length];
+	public boolean calculateMdTag = false;
+	public boolean calculateNmTag = false;
 
-	private BAMRecordView view = new BAMRecordView(buf);
+	private final byte[][] readGroups;
+	/**
+	 * Number of records read before the current container.
+	 */
+	private long counterOffset = 0;
+
+	private byte[] buf = new byte[1024 * 1024];
+	private final BAMRecordView view = new BAMRecordView(buf);
+	/**
+	 * Used to access the finished records, so that the position of the
+	 * written record is not disturbed.
+	 */
+	private final BAMRecordView recordView = new BAMRecordView(buf);
+
+	// per record of the container:
+	private int[] index = new int[1024];
+	private int[] alignmentEnds = new int[index.length];
+	private int[] next = new int[index.length];
+	private int[] prev = new int[index.length];
+	private boolean[] generatedNames = new boolean[index.length];
 
 	private int flags;
 	private int compressionFlags;
+	private int sequenceId;
 	private int readLength;
-	public int prevAlStart = 1;
 	private int readGroupID;
-	private byte mateFlags;
-
+	private int mateFlags;
+
+	private byte[] bases = new byte[1024];
+	private byte[] scores = new byte[1024];
+
+	private byte[] tagData = new byte[1024];
+	private byte[] sortedTagData = new byte[1024];
+	private int[] tagCodes = new int[16];
+	private int[] tagOffsets = new int[16];
+	private int[] tagLengths = new int[16];
+	private int nofTags;
+	private int unsortedTagDataLen;
 	private int tagDataLen;
-	private byte[] tagData = new byte[1024 * 1024];
+	private final StringBuilder md = new StringBuilder();
 
-	public byte[] ref;
-	public static final int maxReadBufferLength = 1024 * 1024;
-	public byte[] bases = new byte[maxReadBufferLength];
-	public byte[] scores = new byte[maxReadBufferLength];
+	private int refBasesSequenceId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+	private byte[] refBases;
 
-	private ReadFeatureBuffer rfBuf = new ReadFeatureBuffer();
+	private final ReadFeatureBuffer rfBuf = new ReadFeatureBuffer();
 
-	private byte[][] readGroups = null;
+	public ReaderToBAM(SAMFileHeader header) {
+		List<SAMReadGroupRecord> list = header.getReadGroups();
+		readGroups = new byte[list.size()][];
+		for (int i = 0; i < readGroups.length; i++)
+			readGroups[i] = list.get(i).getId().getBytes();
 
-	public void read() throws IOException {
-		index[recordCounter] = view.position();
+		Arrays.fill(prev, -1);
+	}
+
+	/**
+	 * Start a new container. The records of the previous container are
+	 * discarded.
+	 */
+	public void reset() {
+		counterOffset += recordCounter;
+		for (int i = 0; i < recordCounter; i++)
+			if (next[i] >= 0)
+				prev[next[i]] = -1;
+		recordCounter = 0;
+		view.position(0);
+	}
+
+	/**
+	 * Called for mapped reads in multi-reference slices.
+	 *
+	 * @return the reference bases for the sequence
+	 */
+	protected byte[] refSeqChanged(int seqID) {
+		return ref;
+	}
 
+	public void read() throws IOException {
 		try {
-			flags = bitFlagsCodec.readData();
+			ensureRecordCapacity(recordCounter + 1);
+			index[recordCounter] = view.position();
 
+			flags = bitFlagsCodec.readData();
 			compressionFlags = compressionBitFlagsCodec.readData();
 			if (refId == -2)
-				view.setRefID(refIdCodec.readData());
+				sequenceId = refIdCodec.readData();
 			else
-				view.setRefID(refId);
+				sequenceId = refId;
 
 			readLength = readLengthCodec.readData();
-			if (AP_delta)
+			if (APDelta)
 				prevAlStart += alignmentStartCodec.readData();
 			else
 				prevAlStart = alignmentStartCodec.readData();
 
-			view.setAlignmentStart(prevAlStart);
-
 			readGroupID = readGroupCodec.readData();
 
+			byte[] readName = null;
 			if (captureReadNames)
-				view.setReadName(readNameCodec.readData());
+				readName = readNameCodec.readData();
 
-			// mate record:
+			int mateSequenceId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+			int mateAlignmentStart = SAMRecord.NO_ALIGNMENT_START;
+			int templateSize = 0;
+			mateFlags = 0;
+			next[recordCounter] = -1;
 			if ((compressionFlags & CramFlags.DETACHED_FLAG) != 0) {
 				mateFlags = mateBitFlagCodec.readData();
 				if (!captureReadNames)
-					view.setReadName(readNameCodec.readData());
+					readName = readNameCodec.readData();
 
-				view.setMateRefID(mateReferenceIdCodec.readData());
-				view.setMateAlStart(mateAlignmentStartCodec.readData());
-				view.setInsertSize(insertSizeCodec.readData());
+				mateSequenceId = mateReferenceIdCodec.readData();
+				mateAlignmentStart = mateAlignmentStartCodec.readData();
+				templateSize = insertSizeCodec.readData();
 				detachedCount++;
-				distances[recordCounter] = 0;
-				next[recordCounter] = -1;
-				prev[recordCounter] = -1;
-				flags |= (mateFlags & CramFlags.MATE_NEG_STRAND_FLAG) != 0 ? BamFlags.MATE_STRAND_FLAG : 0;
-				flags |= (mateFlags & CramFlags.MATE_UNMAPPED_FLAG) != 0 ? BamFlags.MATE_UNMAPPED_FLAG : 0;
 			} else if ((compressionFlags & CramFlags.HAS_MATE_DOWNSTREAM_FLAG) != 0) {
-				mateFlags = 0;
-				distances[recordCounter] = distanceToNextFragmentCodec.readData();
-				next[recordCounter] = recordCounter + distances[recordCounter] + 1;
-				prev[next[recordCounter]] = recordCounter;
-				names[recordCounter + distances[recordCounter]] = recordCounter;
+				int distance = distanceToNextFragmentCodec.readData();
+				if ((flags & CramFlags.MULTI_FRAGMENT_FLAG) != 0) {
+					int mate = recordCounter + distance + 1;
+					ensureRecordCapacity(mate + 1);
+					next[recordCounter] = mate;
+					prev[mate] = recordCounter;
+				}
 			}
-			view.setFlags(flags);
 
-			if (!view.isReadNameSet()) {
-				if (names[recordCounter] == 0)
-					view.setReadName(String.valueOf(recordCounter).getBytes());
-				else
-					view.setReadName(String.valueOf(names[recordCounter]).getBytes());
-			}
+			generatedNames[recordCounter] = false;
+			if (readName == null)
+				readName = generateReadName(recordCounter);
 
-			tagDataLen = 0;
-			if (readGroupID >= 0) {
-				tagData[tagDataLen++] = (byte) 'R';
-				tagData[tagDataLen++] = (byte) 'G';
-				tagData[tagDataLen++] = (byte) 'Z';
+			readTags();
 
-				System.arraycopy(readGroups[readGroupID], 0, tagData, tagDataLen, readGroups[readGroupID].length);
-				tagDataLen += readGroups[readGroupID].length;
+			boolean unmapped = (flags & CramFlags.SEGMENT_UNMAPPED_FLAG) != 0;
+			boolean unknownBases = (compressionFlags & CramFlags.UNKNOWN_BASES) != 0;
+			boolean forcePreserveQS = (compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0;
+			ensureReadCapacity(readLength);
 
-				tagData[tagDataLen++] = (byte) 0;
-			}
-			Integer tagIdList = tagIdListCodec.readData();
-			byte[][] ids = tagIdDictionary[tagIdList];
-			if (ids.length > 0) {
-				for (int i = 0; i < ids.length; i++) {
-					int id = ReadTag.name3BytesToInt(ids[i]);
-					DataReader<byte[]> dataReader = tagValueCodecs.get(id);
-					byte[] data = dataReader.readData();
-
-					tagData[tagDataLen++] = (byte) ((id >> 16) & 0xFF);
-					tagData[tagDataLen++] = (byte) ((id >> 8) & 0xFF);
-					tagData[tagDataLen++] = (byte) (id & 0xFF);
-					System.arraycopy(data, 0, tagData, tagDataLen, data.length);
-					tagDataLen += data.length;
-				}
-			}
-
-			if ((flags & CramFlags.SEGMENT_UNMAPPED_FLAG) == 0) {
+			Cigar cigar;
+			int mappingScore = 0;
+			int basesLength = unknownBases ? 0 : readLength;
+			boolean hasScores = false;
+			byte[] recordRef = ref;
+			int recordRefOffset = refOffset;
+			if (!unmapped) {
 				rfBuf.readReadFeatures(this);
-				rfBuf.restoreReadBases(readLength, prevAlStart, ref, substitutionMatrix, bases);
+				mappingScore = mappingScoreCodec.readData();
+				if (forcePreserveQS)
+					hasScores = readQualityScores();
+				else {
+					Arrays.fill(scores, 0, readLength, DEFAULT_QUALITY_SCORE);
+					hasScores = rfBuf.restoreQualityScores(readLength, prevAlStart, scores) > 0;
+				}
 
-				// mapping quality:
-				view.setMappingScore(mappingScoreCodec.readData());
-				if ((compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0)
-					for (int i=0; i<readLength; i++)
-					scores[i]=qualityScoreCodec.readData();
+				if (refId == -2) {
+					if (sequenceId != refBasesSequenceId) {
+						refBases = refSeqChanged(sequenceId);
+						refBasesSequenceId = sequenceId;
+					}
+					recordRef = refBases;
+					recordRefOffset = 0;
+				}
+				if (basesLength > 0)
+					rfBuf.restoreNormalizedBases(readLength, prevAlStart, recordRef, recordRefOffset,
+							substitutionMatrix, bases);
+				cigar = rfBuf.getCigar(readLength);
+				alignmentEnds[recordCounter] = prevAlStart + rfBuf.getAlignmentSpan(readLength) - 1;
 			} else {
-				view.setMappingScore(SAMRecord.NO_MAPPING_QUALITY);
-				for (int i = 0; i < readLength; i++)
-					bases[i] = baseCodec.readData();
+				if (!unknownBases) {
+					for (int i = 0; i < readLength; i++)
+						bases[i] = baseCodec.readData();
+					if (forcePreserveQS)
+						hasScores = readQualityScores();
+				}
+				cigar = new Cigar();
+				alignmentEnds[recordCounter] = 0;
+			}
 
-				if ((compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0)
-					for (int i=0; i<readLength; i++)
-						scores[i]=qualityScoreCodec.readData();
+			int alignmentStart = prevAlStart;
+			if (sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+				alignmentStart = SAMRecord.NO_ALIGNMENT_START;
+				mappingScore = 0;
 			}
 
-			if ((flags & CramFlags.SEGMENT_UNMAPPED_FLAG) != 0) {
-				Cigar noCigar = TextCigarCodec.decode(SAMRecord.NO_ALIGNMENT_CIGAR);
-				view.setCigar(noCigar);
-			} else
-				view.setCigar(rfBuf.getCigar(readLength));
+			if (calculateMdTag || calculateNmTag)
+				addMdAndNmTags(cigar, basesLength, alignmentStart, recordRef, recordRefOffset);
 
-			view.setBases(bases, 0, readLength);
-			view.setQualityScores(scores, 0, readLength);
+			int bamFlags = flags & FLAGS_MASK;
+			if ((bamFlags & BamFlags.READ_PAIRED_FLAG) != 0) {
+				bamFlags |= (mateFlags & CramFlags.MATE_NEG_STRAND_FLAG) != 0 ? BamFlags.MATE_STRAND_FLAG : 0;
+				bamFlags |= (mateFlags & CramFlags.MATE_UNMAPPED_FLAG) != 0 ? BamFlags.MATE_UNMAPPED_FLAG : 0;
+			} else {
+				mateSequenceId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+				mateAlignmentStart = SAMRecord.NO_ALIGNMENT_START;
+			}
 
-			view.setTagData(tagData, 0, tagDataLen);
+			int size = BAMRecordView.READ_NAME + readName.length + 1 + 4 * cigar.numCigarElements() + (basesLength + 1)
+					/ 2 + basesLength + tagDataLen;
+			ensureBufferCapacity(view.position() + size);
+
+			view.setRefID(sequenceId);
+			view.setAlignmentStart(alignmentStart);
+			view.setMappingScore(mappingScore);
+			view.setIndexBin(computeIndexingBin(sequenceId, alignmentStart, unmapped, cigar));
+			view.setFlags(bamFlags);
+			view.setMateRefID(mateSequenceId);
+			view.setMateAlStart(Math.max(mateAlignmentStart, SAMRecord.NO_ALIGNMENT_START));
+			view.setInsertSize(templateSize);
+			view.setReadName(readName);
+			view.setCigar(cigar);
+			view.setBases(bases, 0, basesLength);
+			view.setQualityScores(scores, 0, hasScores ? basesLength : 0);
+			view.setTagData(sortedTagData, 0, tagDataLen);
+			view.finish();
 
 			recordCounter++;
 		} catch (Exception e) {
@@ -181,213 +288,388 @@ public class ReaderToBAM extends AbstractReader {
 		}
 	}
 
-	private int getFlagsForRecord(int record) {
-		view.start = index[record];
-		return view.getFlags();
+	/**
+	 * Names are generated like in CramNormalizer: the first record of a mate
+	 * chain without a name names itself and its neighbours with its 1-based
+	 * index in the stream, a record named by its neighbour passes the name
+	 * on.
+	 */
+	private byte[] generateReadName(int record) {
+		int namedBy;
+		if (prev[record] >= 0 && generatedNames[prev[record]])
+			namedBy = next[record] >= 0 ? next[record] : prev[record];
+		else {
+			generatedNames[record] = true;
+			namedBy = record;
+		}
+		return Long.toString(counterOffset + namedBy + 1).getBytes();
 	}
 
-	private void setFlagsForRecord(int record, int flags) {
-		view.start = index[record];
-		view.setFlags(flags);
+	/**
+	 * @return false if all scores are missing
+	 */
+	private boolean readQualityScores() throws IOException {
+		int missing = 0;
+		for (int i = 0; i < readLength; i++) {
+			scores[i] = qualityScoreCodec.readData();
+			if (scores[i] == -1) {
+				scores[i] = DEFAULT_QUALITY_SCORE;
+				missing++;
+			}
+		}
+		return missing < readLength;
 	}
 
-	private int getAlignmentStartForRecord(int record) {
-		view.start = index[record];
-		return view.getAlignmentStart();
+	private void readTags() throws IOException {
+		nofTags = 0;
+		unsortedTagDataLen = 0;
+
+		byte[][] ids = tagIdDictionary[tagIdListCodec.readData()];
+		for (int i = 0; i < ids.length; i++) {
+			int id = ReadTag.name3BytesToInt(ids[i]);
+			DataReader<byte[]> dataReader = tagValueCodecs.get(id);
+			byte[] data = dataReader.readData();
+
+			ensureTagDataCapacity(unsortedTagDataLen + 3 + data.length);
+			tagData[unsortedTagDataLen] = (byte) ((id >> 16) & 0xFF);
+			tagData[unsortedTagDataLen + 1] = (byte) ((id >> 8) & 0xFF);
+			tagData[unsortedTagDataLen + 2] = (byte) (id & 0xFF);
+			System.arraycopy(data, 0, tagData, unsortedTagDataLen + 3, data.length);
+			addTag(tagData[unsortedTagDataLen] & 0xFF | (tagData[unsortedTagDataLen + 1] & 0xFF) << 8, unsortedTagDataLen,
+					3 + data.length);
+			unsortedTagDataLen += 3 + data.length;
+		}
+
+		if (readGroupID >= 0) {
+			byte[] id = readGroups[readGroupID];
+			ensureTagDataCapacity(unsortedTagDataLen + 3 + id.length + 1);
+			tagData[unsortedTagDataLen] = 'R';
+			tagData[unsortedTagDataLen + 1] = 'G';
+			tagData[unsortedTagDataLen + 2] = 'Z';
+			System.arraycopy(id, 0, tagData, unsortedTagDataLen + 3, id.length);
+			tagData[unsortedTagDataLen + 3 + id.length] = 0;
+			addTag(RG_CODE, unsortedTagDataLen, 3 + id.length + 1);
+			unsortedTagDataLen += 3 + id.length + 1;
+		}
+
+		writeSortedTags();
 	}
 
 	/**
-	 * @param record
-	 * @return inclusive 0-based coordinate of the last base alignment
+	 * Insert a tag keeping the tags sorted by code, a tag with the same code
+	 * is replaced.
 	 */
-	private int getAlignmentEndForRecord(int record) {
-		view.start = index[record];
-		return view.calculateAlignmentEnd();
-	}
+	private void addTag(int code, int offset, int length) {
+		int i = nofTags;
+		while (i > 0 && tagCodes[i - 1] > code)
+			i--;
+
+		if (i > 0 && tagCodes[i - 1] == code) {
+			tagOffsets[i - 1] = offset;
+			tagLengths[i - 1] = length;
+			return;
+		}
 
-	private int getRefIDForRecord(int record) {
-		view.start = index[record];
-		return view.getRefID();
+		if (nofTags == tagCodes.length) {
+			tagCodes = Arrays.copyOf(tagCodes, 2 * nofTags);
+			tagOffsets = Arrays.copyOf(tagOffsets, 2 * nofTags);
+			tagLengths = Arrays.copyOf(tagLengths, 2 * nofTags);
+		}
+		System.arraycopy(tagCodes, i, tagCodes, i + 1, nofTags - i);
+		System.arraycopy(tagOffsets, i, tagOffsets, i + 1, nofTags - i);
+		System.arraycopy(tagLengths, i, tagLengths, i + 1, nofTags - i);
+		tagCodes[i] = code;
+		tagOffsets[i] = offset;
+		tagLengths[i] = length;
+		nofTags++;
 	}
 
-	private void setInsertSizeForRecord(int record, int insertSize) {
-		view.start = index[record];
-		view.setInsertSize(insertSize);
+	private void writeSortedTags() {
+		tagDataLen = 0;
+		for (int i = 0; i < nofTags; i++)
+			tagDataLen += tagLengths[i];
+		if (sortedTagData.length < tagDataLen)
+			sortedTagData = new byte[Math.max(2 * sortedTagData.length, tagDataLen)];
+
+		int at = 0;
+		for (int i = 0; i < nofTags; i++) {
+			System.arraycopy(tagData, tagOffsets[i], sortedTagData, at, tagLengths[i]);
+			at += tagLengths[i];
+		}
 	}
 
-	private void setMateRefIDForRecord(int record, int refId) {
-		view.start = index[record];
-		view.setMateRefID(refId);
-	}
+	/**
+	 * Calculate MD and NM tags the same way as
+	 * net.sf.cram.common.Utils.calculateMdAndNmTags does for SAM records.
+	 */
+	private void addMdAndNmTags(Cigar cigar, int basesLength, int alignmentStart, byte[] ref, int refOffset) {
+		if (basesLength == 0 && cigar.numCigarElements() > 0)
+			return;
+
+		md.setLength(0);
+		int x = alignmentStart - 1 - refOffset;
+		int y = 0;
+		int u = 0;
+		int nm = 0;
+		for (CigarElement ce : cigar.getCigarElements()) {
+			int j, l = ce.getLength();
+			CigarOperator op = ce.getOperator();
+			if (op == CigarOperator.MATCH_OR_MISMATCH || op == CigarOperator.EQ || op == CigarOperator.X) {
+				for (j = 0; j < l; ++j) {
+					if (ref.length <= x + j)
+						break; // out of boundary
+
+					int c1 = bases[y + j];
+					int c2 = ref[x + j];
+					if ((c1 == c2 && c1 != 15 && c2 != 15) || c1 == 0)
+						++u;
+					else {
+						md.append(u);
+						md.append((char) ref[x + j]);
+						u = 0;
+						++nm;
+					}
+				}
+				if (j < l)
+					break;
+				x += l;
+				y += l;
+			} else if (op == CigarOperator.DELETION) {
+				md.append(u);
+				md.append('^');
+				for (j = 0; j < l; ++j) {
+					if (ref[x + j] == 0)
+						break;
+					md.append((char) ref[x + j]);
+				}
+				u = 0;
+				if (j < l)
+					break;
+				x += l;
+				nm += l;
+			} else if (op == CigarOperator.INSERTION || op == CigarOperator.SOFT_CLIP) {
+				y += l;
+				if (op == CigarOperator.INSERTION)
+					nm += l;
+			} else if (op == CigarOperator.SKIPPED_REGION)
+				x += l;
+		}
+		md.append(u);
+
+		if (calculateMdTag) {
+			ensureTagDataCapacity(unsortedTagDataLen + 3 + md.length() + 1);
+			tagData[unsortedTagDataLen] = 'M';
+			tagData[unsortedTagDataLen + 1] = 'D';
+			tagData[unsortedTagDataLen + 2] = 'Z';
+			for (int i = 0; i < md.length(); i++)
+				tagData[unsortedTagDataLen + 3 + i] = (byte) md.charAt(i);
+			tagData[unsortedTagDataLen + 3 + md.length()] = 0;
+			addTag(MD_CODE, unsortedTagDataLen, 3 + md.length() + 1);
+			unsortedTagDataLen += 3 + md.length() + 1;
+		}
 
-	private void setMateAlignmentStartForRecord(int record, int astart) {
-		view.start = index[record];
-		view.setMateAlStart(astart);
-	}
+		if (calculateNmTag) {
+			ensureTagDataCapacity(unsortedTagDataLen + 3 + 4);
+			tagData[unsortedTagDataLen] = 'N';
+			tagData[unsortedTagDataLen + 1] = 'M';
+			int len = 3;
+			if (nm <= Byte.MAX_VALUE) {
+				tagData[unsortedTagDataLen + 2] = 'c';
+				tagData[unsortedTagDataLen + len++] = (byte) nm;
+			} else if (nm <= 0xFF) {
+				tagData[unsortedTagDataLen + 2] = 'C';
+				tagData[unsortedTagDataLen + len++] = (byte) nm;
+			} else {
+				tagData[unsortedTagDataLen + 2] = (byte) (nm <= Short.MAX_VALUE ? 's' : nm <= 0xFFFF ? 'S' : 'i');
+				int bytes = nm <= 0xFFFF ? 2 : 4;
+				for (int i = 0; i < bytes; i++)
+					tagData[unsortedTagDataLen + len++] = (byte) (nm >> (8 * i));
+			}
+			addTag(NM_CODE, unsortedTagDataLen, len);
+			unsortedTagDataLen += len;
+		}
 
-	private boolean recordHasMoreMates(int record) {
-		return next[record] > 0;
+		writeSortedTags();
 	}
 
-	private int nextRecord(int record) {
-		if (next[record] > 0)
-			return next[record];
+	private static int computeIndexingBin(int sequenceId, int alignmentStart, boolean unmapped, Cigar cigar) {
+		if (sequenceId < 0)
+			return 0;
 
-		return -1;
+		int start = alignmentStart - 1;
+		int end = unmapped ? 0 : alignmentStart + cigar.getReferenceLength() - 1;
+		if (end <= 0)
+			end = start + 1;
+		return reg2bin(start, end);
 	}
 
-	private boolean isFirstInPairBitOnForRecord(int record) {
-		return (getFlagsForRecord(record) & CramFlags.FIRST_SEGMENT_FLAG) != 0;
+	/**
+	 * The binning scheme from the SAM specification, zero-based half-open
+	 * coordinates.
+	 */
+	private static int reg2bin(int beg, int end) {
+		--end;
+		if (beg >> 14 == end >> 14)
+			return ((1 << 15) - 1) / 7 + (beg >> 14);
+		if (beg >> 17 == end >> 17)
+			return ((1 << 12) - 1) / 7 + (beg >> 17);
+		if (beg >> 20 == end >> 20)
+			return ((1 << 9) - 1) / 7 + (beg >> 20);
+		if (beg >> 23 == end >> 23)
+			return ((1 << 6) - 1) / 7 + (beg >> 23);
+		if (beg >> 26 == end >> 26)
+			return ((1 << 3) - 1) / 7 + (beg >> 26);
+		return 0;
 	}
 
+	/**
+	 * Restore mate information and template sizes of the records attached to
+	 * their mates, the same way as CramNormalizer and Cram2Bam do.
+	 */
 	public void fixMateInfo() {
-		int fixes = 0;
 		for (int record = 0; record < recordCounter; record++) {
-			if (prev[record] >= 0)
-				// skip non-first reads
+			if (next[record] < 0)
 				continue;
 
-			if (recordHasMoreMates(record)) {
-				int id1 = record;
-				int id2 = record;
-				int refid = getRefIDForRecord(record);
-				do {
-					id1 = id2;
-					id2 = nextRecord(id1);
-
-					int flags1 = getFlagsForRecord(id1);
-					int flags2 = getFlagsForRecord(id2);
-
-					if (refid != getRefIDForRecord(id2))
-						refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-
-					if ((flags2 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-						flags1 |= BamFlags.MATE_UNMAPPED_FLAG;
-						refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-					}
-					if ((flags1 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-						flags2 |= BamFlags.MATE_UNMAPPED_FLAG;
-						refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-					}
-
-					if ((flags2 & BamFlags.READ_STRAND_FLAG) != 0)
-						flags1 |= BamFlags.MATE_STRAND_FLAG;
-					if ((flags1 & BamFlags.READ_STRAND_FLAG) != 0)
-						flags2 |= BamFlags.MATE_STRAND_FLAG;
-
-					setFlagsForRecord(id1, flags1);
-					setFlagsForRecord(id2, flags2);
-
-					setMateRefIDForRecord(id1, getRefIDForRecord(id2));
-					setMateAlignmentStartForRecord(id1, 1 + getAlignmentStartForRecord(id2));
-					fixes++;
-				} while (recordHasMoreMates(id2));
-
-				id1 = record;
-				int flags1 = getFlagsForRecord(id1);
-				int flags2 = getFlagsForRecord(id2);
+			int last = record;
+			while (next[last] >= 0) {
+				if (next[last] >= recordCounter)
+					throw new RuntimeException("Mate record not found: " + (counterOffset + next[last] + 1));
+				setNextMate(last, next[last]);
+				last = next[last];
+			}
+			setNextMate(last, record);
 
-				if (refid != getRefIDForRecord(id1))
-					refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+			int templateSize = computeInsertSize(record, last);
+			setInsertSize(record, templateSize);
+			setInsertSize(last, -templateSize);
+		}
+	}
 
-				if ((flags2 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-					flags1 |= BamFlags.MATE_UNMAPPED_FLAG;
-					refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-				}
-				if ((flags1 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-					flags2 |= BamFlags.MATE_UNMAPPED_FLAG;
-					refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-				}
+	private void setNextMate(int record, int mate) {
+		recordView.start = index[mate];
+		int mateSequenceId = recordView.getRefID();
+		int mateAlignmentStart = recordView.getAlignmentStart() + 1;
+		int mateFlags = recordView.getFlags();
+
+		recordView.start = index[record];
+		int flags = recordView.getFlags();
+		if ((flags & BamFlags.READ_PAIRED_FLAG) == 0)
+			return;
+
+		flags &= ~(BamFlags.MATE_UNMAPPED_FLAG | BamFlags.MATE_STRAND_FLAG);
+		if ((mateFlags & BamFlags.READ_UNMAPPED_FLAG) != 0)
+			flags |= BamFlags.MATE_UNMAPPED_FLAG;
+		if ((mateFlags & BamFlags.READ_STRAND_FLAG) != 0)
+			flags |= BamFlags.MATE_STRAND_FLAG;
+		recordView.setFlags(flags);
+
+		recordView.setMateRefID(mateSequenceId);
+		if (mateSequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX)
+			recordView.setMateAlStart(SAMRecord.NO_ALIGNMENT_START);
+		else
+			recordView.setMateAlStart(mateAlignmentStart);
+	}
 
-				if ((flags2 & BamFlags.READ_STRAND_FLAG) != 0)
-					flags1 |= BamFlags.MATE_STRAND_FLAG;
-				if ((flags1 & BamFlags.READ_STRAND_FLAG) != 0)
-					flags2 |= BamFlags.MATE_STRAND_FLAG;
+	private int computeInsertSize(int first, int second) {
+		if ((getFlags(first) & BamFlags.READ_UNMAPPED_FLAG) != 0
+				|| (getFlags(second) & BamFlags.READ_UNMAPPED_FLAG) != 0)
+			return 0;
+		if (getSequenceId(first) != getSequenceId(second))
+			return 0;
+
+		int firstEnd = (getFlags(first) & BamFlags.READ_STRAND_FLAG) != 0 ? getAlignmentEnd(first)
+				: getAlignmentStart(first);
+		int secondEnd = (getFlags(second) & BamFlags.READ_STRAND_FLAG) != 0 ? getAlignmentEnd(second)
+				: getAlignmentStart(second);
+		int sign = secondEnd >= firstEnd ? 1 : -1;
+		return secondEnd - firstEnd + sign;
+	}
 
-				setFlagsForRecord(id1, flags1);
-				setFlagsForRecord(id2, flags2);
+	private void setInsertSize(int record, int insertSize) {
+		recordView.start = index[record];
+		recordView.setInsertSize(insertSize);
+	}
 
-				setMateRefIDForRecord(id2, getRefIDForRecord(record));
-				setMateAlignmentStartForRecord(id2, 1 + getAlignmentStartForRecord(record));
-				fixes++;
+	/**
+	 * @return number of records read since the last {@link #reset()}
+	 */
+	public int getRecordCount() {
+		return recordCounter;
+	}
 
-				if (refid == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-					id1 = record;
-					id2 = record;
-					do {
-						id1 = id2;
-						id2 = nextRecord(id1);
+	public int getSequenceId(int record) {
+		recordView.start = index[record];
+		return recordView.getRefID();
+	}
 
-						setInsertSizeForRecord(id1, 0);
-						setInsertSizeForRecord(id2, 0);
+	/**
+	 * @return 1-based alignment start, 0 for records without a reference
+	 */
+	public int getAlignmentStart(int record) {
+		recordView.start = index[record];
+		return recordView.getAlignmentStart() + 1;
+	}
 
-						fixes++;
-					} while (recordHasMoreMates(id2));
-				} else
-					calculateTemplateSize(record);
-			}
-		}
+	/**
+	 * @return 1-based inclusive alignment end as calculated by
+	 *         CramCompressionRecord, 0 for unmapped records
+	 */
+	public int getAlignmentEnd(int record) {
+		return alignmentEnds[record];
 	}
 
-	private int calculateTemplateSize(int record) {
-		int aleft = getAlignmentStartForRecord(record);
-		int aright = getAlignmentEndForRecord(record);
+	/**
+	 * @return SAM bit flags
+	 */
+	public int getFlags(int record) {
+		recordView.start = index[record];
+		return recordView.getFlags();
+	}
 
-		int id1 = record, id2 = record;
-		int tlen = 0;
-		int ref = getRefIDForRecord(id1);
-		// System.out.println("Calculating template size for record " + record);
+	/**
+	 * Write the BAM record including the block size.
+	 */
+	public void write(int record, OutputStream os) throws IOException {
+		int end = record + 1 < recordCounter ? index[record + 1] : view.position();
+		os.write(buf, index[record], end - index[record]);
+	}
 
-		while (recordHasMoreMates(id2)) {
-			id2 = nextRecord(id2);
-			// System.out.println("\tnext=" + id2);
-			if (aleft > getAlignmentStartForRecord(id2))
-				aleft = getAlignmentStartForRecord(id2);
+	private void ensureRecordCapacity(int size) {
+		if (index.length >= size)
+			return;
+
+		int newSize = Math.max(2 * index.length, size);
+		int oldSize = index.length;
+		index = Arrays.copyOf(index, newSize);
+		alignmentEnds = Arrays.copyOf(alignmentEnds, newSize);
+		next = Arrays.copyOf(next, newSize);
+		prev = Arrays.copyOf(prev, newSize);
+		Arrays.fill(prev, oldSize, newSize, -1);
+		generatedNames = Arrays.copyOf(generatedNames, newSize);
+	}
 
-			if (aright < getAlignmentEndForRecord(id2))
-				aright = getAlignmentEndForRecord(id2);
+	private void ensureReadCapacity(int size) {
+		if (bases.length >= size)
+			return;
 
-			if (ref != getRefIDForRecord(id2))
-				ref = -1;
-		}
+		bases = new byte[Math.max(2 * bases.length, size)];
+		scores = new byte[bases.length];
+	}
 
-		if (ref == -1) {
-			tlen = 0;
-			id1 = id2 = record;
-			setInsertSizeForRecord(id1, tlen);
+	private void ensureTagDataCapacity(int size) {
+		if (tagData.length < size)
+			tagData = Arrays.copyOf(tagData, Math.max(2 * tagData.length, size));
+	}
 
-			while (recordHasMoreMates(id1)) {
-				id1 = nextRecord(id1);
-				setInsertSizeForRecord(id1, tlen);
-			}
-		} else {
-			tlen = aright - aleft + 1;
-			id1 = id2 = record;
-
-			if (getAlignmentStartForRecord(id2) == aleft) {
-				if (getAlignmentEndForRecord(id2) != aright)
-					setInsertSizeForRecord(id2, tlen);
-				else if (isFirstInPairBitOnForRecord(id2))
-					setInsertSizeForRecord(id2, tlen);
-				else
-					setInsertSizeForRecord(id2, -tlen);
-			} else
-				setInsertSizeForRecord(id2, -tlen);
-
-			while (recordHasMoreMates(id2)) {
-				id2 = nextRecord(id2);
-				if (getAlignmentStartForRecord(id2) == aleft) {
-					if (getAlignmentEndForRecord(id2) != aright)
-						setInsertSizeForRecord(id2, tlen);
-					else if (isFirstInPairBitOnForRecord(id2))
-						setInsertSizeForRecord(id2, tlen);
-					else
-						setInsertSizeForRecord(id2, -tlen);
-				} else
-					setInsertSizeForRecord(id2, -tlen);
-			}
-		}
+	private void ensureBufferCapacity(int size) {
+		if (buf.length >= size)
+			return;
 
-		return tlen;
+		int position = view.position();
+		buf = Arrays.copyOf(buf, Math.max(2 * buf.length, size));
+		view.setData(buf);
+		view.position(position);
+		recordView.setData(buf);
 	}
 }
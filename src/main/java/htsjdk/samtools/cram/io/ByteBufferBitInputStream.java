@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BitInputStream} reading the bytes of a {@link ByteBuffer} directly,
+ * most significant bit first like {@link DefaultBitInputStream}. The buffer
+ * can be replaced, so that one instance serves many blocks.
+ *
+ * @author vadim
+ *
+ */
+public class ByteBufferBitInputStream implements BitInputStream {
+	private static final long[] masks = new long[] { 0, 1, 3, 7, 15, 31, 63, 127, 255 };
+
+	private ByteBuffer buffer;
+	private int nofBufferedBits = 0;
+	private int byteBuffer = 0;
+
+	public ByteBufferBitInputStream() {
+		this(ByteBuffer.allocate(0));
+	}
+
+	public ByteBufferBitInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Start reading from the current position of the buffer.
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+		nofBufferedBits = 0;
+		byteBuffer = 0;
+	}
+
+	@Override
+	public final boolean readBit() throws IOException {
+		if (--nofBufferedBits >= 0)
+			return ((byteBuffer >>> nofBufferedBits) & 1) == 1;
+
+		nofBufferedBits = 7;
+		byteBuffer = nextByte();
+		return ((byteBuffer >>> 7) & 1) == 1;
+	}
+
+	@Override
+	public final int readBits(int n) throws IOException {
+		if (n == 0)
+			return 0;
+
+		int value = 0;
+		while (n > nofBufferedBits) {
+			n -= nofBufferedBits;
+			value |= rightBits(nofBufferedBits, byteBuffer) << n;
+			byteBuffer = nextByte();
+			nofBufferedBits = 8;
+		}
+		nofBufferedBits -= n;
+		return value | rightBits(n, byteBuffer >>> nofBufferedBits);
+	}
+
+	@Override
+	public final long readLongBits(int n) throws IOException {
+		if (n > 64)
+			throw new RuntimeException("More then 64 bits are requested in one read from bit stream.");
+		if (n == 0)
+			return 0;
+
+		long result = 0;
+		long value = byteBuffer;
+		if (nofBufferedBits == 0) {
+			value = nextByte();
+			nofBufferedBits = 8;
+		}
+		value &= masks[nofBufferedBits];
+
+		while (n > nofBufferedBits) {
+			n -= nofBufferedBits;
+			result |= value << n;
+			value = nextByte();
+			nofBufferedBits = 8;
+		}
+		nofBufferedBits -= n;
+		byteBuffer = (int) (value & masks[nofBufferedBits]);
+		return result | (value >>> nofBufferedBits);
+	}
+
+	private int nextByte() throws EOFException {
+		if (!buffer.hasRemaining())
+			throw new EOFException("End of stream.");
+		return 0xFF & buffer.get();
+	}
+
+	private static int rightBits(int n, int value) {
+		return value & ((1 << n) - 1);
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.io;
+
+import htsjdk.samtools.cram.encoding.rans.RANS;
+import htsjdk.samtools.util.IOUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.tools.bzip2.CBZip2InputStream;
+
+/**
+ * Methods to compress and uncompress external blocks. Unlike the htsjdk
+ * version {@link #bzip2(byte[])} compresses the data, so that BZIP2 can be
+ * used for writing external blocks.
+ */
+public class ExternalCompression {
+	private static final int GZIP_COMPRESSION_LEVEL = Integer.valueOf(System.getProperty("gzip.compression.level",
+			"5"));
+
+	public static byte[] gzip(final byte[] data) throws IOException {
+		final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		final GZIPOutputStream gos = new GZIPOutputStream(byteArrayOutputStream) {
+			{
+				def.setLevel(GZIP_COMPRESSION_LEVEL);
+			}
+		};
+		IOUtil.copyStream(new ByteArrayInputStream(data), gos);
+		gos.close();
+
+		return byteArrayOutputStream.toByteArray();
+	}
+
+	public static byte[] gunzip(final byte[] data) throws IOException {
+		final java.util.zip.GZIPInputStream gzipInputStream = new java.util.zip.GZIPInputStream(
+				new ByteArrayInputStream(data));
+		return InputStreamUtils.readFully(gzipInputStream);
+	}
+
+	public static byte[] bzip2(final byte[] data) throws IOException {
+		final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		final OutputStream bos = new BZip2CompressorOutputStream(byteArrayOutputStream);
+		bos.write(data);
+		bos.close();
+		return byteArrayOutputStream.toByteArray();
+	}
+
+	public static byte[] unbzip2(final byte[] data) throws IOException {
+		final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(data);
+		// skip the 'BZ' magic, the rest is read by the stream:
+		byteArrayInputStream.read();
+		byteArrayInputStream.read();
+		return InputStreamUtils.readFully(new CBZip2InputStream(byteArrayInputStream));
+	}
+
+	public static byte[] rans(final byte[] data, final RANS.ORDER order) {
+		final ByteBuffer buffer = RANS.compress(ByteBuffer.wrap(data), order, null);
+		return toByteArray(buffer);
+	}
+
+	public static byte[] rans(final byte[] data, final int order) {
+		final ByteBuffer buffer = RANS.compress(ByteBuffer.wrap(data), RANS.ORDER.fromInt(order), null);
+		return toByteArray(buffer);
+	}
+
+	public static byte[] unrans(final byte[] data) {
+		final ByteBuffer buffer = RANS.uncompress(ByteBuffer.wrap(data), null);
+		return toByteArray(buffer);
+	}
+
+	public static byte[] xz(final byte[] data) throws IOException {
+		final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(data.length * 2);
+		final XZCompressorOutputStream xzCompressorOutputStream = new XZCompressorOutputStream(
+				byteArrayOutputStream);
+		xzCompressorOutputStream.write(data);
+		xzCompressorOutputStream.close();
+		return byteArrayOutputStream.toByteArray();
+	}
+
+	public static byte[] unxz(final byte[] data) throws IOException {
+		final XZCompressorInputStream xzCompressorInputStream = new XZCompressorInputStream(new ByteArrayInputStream(
+				data));
+		return InputStreamUtils.readFully(xzCompressorInputStream);
+	}
+
+	private static byte[] toByteArray(final ByteBuffer buffer) {
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.limit())
+			return buffer.array();
+
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.structure;
+
+import htsjdk.samtools.BinaryTagCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.common.CramVersions;
+import htsjdk.samtools.cram.io.CRC32InputStream;
+import htsjdk.samtools.cram.io.CramArray;
+import htsjdk.samtools.cram.io.CramInt;
+import htsjdk.samtools.cram.io.ITF8;
+import htsjdk.samtools.cram.io.InputStreamUtils;
+import htsjdk.samtools.cram.io.LTF8;
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads a container without reading all of its slices. The container header
+ * is read first, so that the caller can decide if the container is needed at
+ * all, then the compression header and only the requested slices are read by
+ * seeking to their landmarks.
+ * <p>
+ * Slice data blocks are not uncompressed when read, this is deferred until the
+ * block content is requested, so that blocks of data series that are not
+ * decoded are never uncompressed.
+ *
+ * @author vadim
+ *
+ */
+public class PartialContainerIO {
+
+	/**
+	 * Read the compression header and the slices of a container from the first
+	 * to the last requested one. Slices in between are read too, so that the
+	 * records form a single run and mate links between adjacent slices can be
+	 * resolved. The stream must be positioned right after the container header
+	 * and is left at the end of the container.
+	 *
+	 * @param major
+	 *            CRAM major version
+	 * @param container
+	 *            the container with the header read by
+	 *            {@link ContainerIO#readContainerHeader(int, java.io.InputStream)}
+	 * @param stream
+	 *            the data stream
+	 * @param sliceOffsets
+	 *            landmarks of the slices to read, null means all slices
+	 * @throws IOException
+	 */
+	public static void readSlices(int major, Container container, SeekableStream stream,
+			Collection<Integer> sliceOffsets) throws IOException {
+		int first = container.landmarks.length;
+		int last = -1;
+		for (int i = 0; i < container.landmarks.length; i++) {
+			if (sliceOffsets == null || sliceOffsets.contains(container.landmarks[i])) {
+				first = Math.min(first, i);
+				last = i;
+			}
+		}
+		readSlices(major, container, stream, first, last);
+	}
+
+	/**
+	 * Read the compression header and the slices with indexes from first to
+	 * last inclusive. The stream must be positioned right after the container
+	 * header and is left at the end of the container.
+	 */
+	public static void readSlices(int major, Container container, SeekableStream stream, int first, int last)
+			throws IOException {
+		long time = System.nanoTime();
+		long dataStart = stream.position();
+
+		readCompressionHeader(major, container, stream);
+
+		List<Slice> slices = new ArrayList<Slice>();
+		for (int i = Math.max(first, 0); i <= last && i < container.landmarks.length; i++) {
+			stream.seek(dataStart + container.landmarks[i]);
+			Slice slice = new Slice();
+			readSlice(major, slice, stream);
+			setSliceOffsetAndSize(container, slice, i);
+			slices.add(slice);
+		}
+		container.slices = slices.toArray(new Slice[slices.size()]);
+
+		stream.seek(dataStart + container.containerByteSize);
+		container.readTime = System.nanoTime() - time;
+	}
+
+	/**
+	 * Read a whole container from a stream without uncompressing the slice
+	 * data blocks.
+	 *
+	 * @return the container or an EOF container
+	 */
+	public static Container readContainer(int major, InputStream is) throws IOException {
+		long time = System.nanoTime();
+		Container container = ContainerIO.readContainerHeader(major, is);
+		if (container.isEOF())
+			return container;
+
+		readCompressionHeader(major, container, is);
+		container.slices = new Slice[container.landmarks.length];
+		for (int i = 0; i < container.landmarks.length; i++) {
+			Slice slice = new Slice();
+			readSlice(major, slice, is);
+			setSliceOffsetAndSize(container, slice, i);
+			container.slices[i] = slice;
+		}
+		container.readTime = System.nanoTime() - time;
+		return container;
+	}
+
+	private static void readCompressionHeader(int major, Container container, InputStream is) throws IOException {
+		Block block = Block.readFromInputStream(major, is);
+		if (block.getContentType() != BlockContentType.COMPRESSION_HEADER)
+			throw new RuntimeException("Content type does not match: " + block.getContentType().name());
+		container.header = new CompressionHeader();
+		container.header.read(block.getRawContent());
+	}
+
+	private static void setSliceOffsetAndSize(Container container, Slice slice, int index) {
+		slice.index = index;
+		slice.offset = container.landmarks[index];
+		if (index < container.landmarks.length - 1)
+			slice.size = container.landmarks[index + 1] - container.landmarks[index];
+		else
+			slice.size = container.containerByteSize - container.landmarks[index];
+		slice.containerOffset = container.offset;
+	}
+
+	/**
+	 * Read a slice, the slice header block is uncompressed and parsed, the
+	 * other blocks are kept compressed.
+	 */
+	public static void readSlice(int major, Slice slice, InputStream is) throws IOException {
+		slice.headerBlock = Block.readFromInputStream(major, is);
+		parseSliceHeader(major, slice);
+
+		slice.external = new HashMap<Integer, Block>();
+		for (int i = 0; i < slice.nofBlocks; i++) {
+			Block block = readBlock(major, is);
+			switch (block.getContentType()) {
+			case CORE:
+				slice.coreBlock = block;
+				break;
+			case EXTERNAL:
+				if (slice.embeddedRefBlockContentID == block.getContentId())
+					slice.embeddedRefBlock = block;
+				slice.external.put(block.getContentId(), block);
+				break;
+
+			default:
+				throw new RuntimeException("Not a slice block, content type id " + block.getContentType().name());
+			}
+		}
+	}
+
+	private static void parseSliceHeader(int major, Slice slice) throws IOException {
+		InputStream is = new ByteArrayInputStream(slice.headerBlock.getRawContent());
+		slice.sequenceId = ITF8.readUnsignedITF8(is);
+		slice.alignmentStart = ITF8.readUnsignedITF8(is);
+		slice.alignmentSpan = ITF8.readUnsignedITF8(is);
+		slice.nofRecords = ITF8.readUnsignedITF8(is);
+		slice.globalRecordCounter = LTF8.readUnsignedLTF8(is);
+		slice.nofBlocks = ITF8.readUnsignedITF8(is);
+		slice.contentIDs = CramArray.array(is);
+		slice.embeddedRefBlockContentID = ITF8.readUnsignedITF8(is);
+		slice.refMD5 = new byte[16];
+		InputStreamUtils.readFully(is, slice.refMD5, 0, slice.refMD5.length);
+
+		byte[] tags = InputStreamUtils.readFully(is);
+		if (major >= CramVersions.CRAM_v3.major)
+			slice.sliceTags = BinaryTagCodec.readTags(tags, 0, tags.length, ValidationStringency.DEFAULT_STRINGENCY);
+	}
+
+	/**
+	 * Read a block without uncompressing it. The content is uncompressed when
+	 * {@link Block#getRawContent()} is called for the first time.
+	 */
+	public static Block readBlock(int major, InputStream inputStream) throws IOException {
+		boolean crc = major >= CramVersions.CRAM_v3.major;
+		InputStream is = crc ? new CRC32InputStream(inputStream) : inputStream;
+
+		Block block = new Block();
+		block.setMethod(BlockCompressionMethod.values()[is.read()]);
+		block.setContentType(BlockContentType.values()[is.read()]);
+		block.setContentId(ITF8.readUnsignedITF8(is));
+		int compressedSize = ITF8.readUnsignedITF8(is);
+		// the raw size is known only after uncompressing:
+		ITF8.readUnsignedITF8(is);
+
+		byte[] compressed = new byte[compressedSize];
+		InputStreamUtils.readFully(is, compressed, 0, compressed.length);
+		if (crc) {
+			int actual = ((CRC32InputStream) is).getCRC32();
+			int expected = CramInt.int32(inputStream);
+			if (actual != expected)
+				throw new RuntimeException(String.format("Block CRC32 mismatch: %04x vs %04x", expected, actual));
+		}
+		block.setCompressedContent(compressed);
+		return block;
+	}
+
+	/**
+	 * @return true if some of the container slices have not been read
+	 */
+	public static boolean isPartial(Container container) {
+		return container.slices.length < container.landmarks.length;
+	}
+}
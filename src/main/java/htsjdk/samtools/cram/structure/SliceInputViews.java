@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.structure;
+
+import htsjdk.samtools.cram.io.BitInputStream;
+import htsjdk.samtools.cram.io.ByteBufferBitInputStream;
+import htsjdk.samtools.cram.io.ByteBufferInputStream;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Input streams for decoding the records of a slice, reused from slice to
+ * slice. The streams read the uncompressed block contents in place, instead of
+ * wrapping every block in new streams for every slice.
+ * <p>
+ * The streams of a slice are valid until the next call to
+ * {@link #reset(Slice)}. External blocks missing from the slice read as empty.
+ * The views are not thread safe, use one per decoding thread.
+ *
+ * @author vadim
+ *
+ */
+public class SliceInputViews {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private final ByteBufferBitInputStream core = new ByteBufferBitInputStream();
+	private final Map<Integer, InputStream> external = new HashMap<Integer, InputStream>();
+
+	/**
+	 * Point the streams at the blocks of the slice.
+	 */
+	public void reset(Slice slice) {
+		core.setBuffer(ByteBuffer.wrap(slice.coreBlock.getRawContent()));
+
+		for (Map.Entry<Integer, InputStream> entry : external.entrySet()) {
+			if (!slice.external.containsKey(entry.getKey()))
+				((ByteBufferInputStream) entry.getValue()).setBuffer(EMPTY);
+		}
+
+		for (Map.Entry<Integer, Block> entry : slice.external.entrySet()) {
+			ByteBuffer content = ByteBuffer.wrap(entry.getValue().getRawContent());
+			ByteBufferInputStream view = (ByteBufferInputStream) external.get(entry.getKey());
+			if (view == null)
+				external.put(entry.getKey(), new ByteBufferInputStream(content));
+			else
+				view.setBuffer(content);
+		}
+	}
+
+	public BitInputStream getCoreInputStream() {
+		return core;
+	}
+
+	/**
+	 * @return input streams by external block content id
+	 */
+	public Map<Integer, InputStream> getExternalInputStreams() {
+		return external;
+	}
+}
@@ -15,6 +15,15 @@
  ******************************************************************************/
 package net.sf.cram;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 public class AlignmentSliceQuery {
 	public String sequence;
 	public int sequenceId;
@@ -35,6 +44,125 @@ public class AlignmentSliceQuery {
 
 	}
 
+	/**
+	 * @param sequence
+	 *            reference sequence name
+	 * @param start
+	 *            1-based inclusive start
+	 * @param end
+	 *            1-based inclusive end
+	 */
+	public AlignmentSliceQuery(String sequence, int start, int end) {
+		this.sequence = sequence;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Read queries from a BED file. BED coordinates are 0-based half-open and
+	 * are converted to 1-based inclusive. Empty, comment, track and browser
+	 * lines are skipped. A line with only a sequence name means the whole
+	 * sequence.
+	 */
+	public static List<AlignmentSliceQuery> fromBedFile(File file) throws IOException {
+		List<AlignmentSliceQuery> list = new ArrayList<AlignmentSliceQuery>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty() || line.startsWith("#") || line.startsWith("track")
+						|| line.startsWith("browser"))
+					continue;
+
+				String[] chunks = line.split("\\s+");
+				if (chunks.length == 1)
+					list.add(new AlignmentSliceQuery(chunks[0]));
+				else if (chunks.length >= 3)
+					list.add(new AlignmentSliceQuery(chunks[0], Integer.valueOf(chunks[1]) + 1, Integer
+							.valueOf(chunks[2])));
+				else
+					throw new RuntimeException("Invalid BED line: " + line);
+			}
+		} finally {
+			reader.close();
+		}
+		return list;
+	}
+
+	/**
+	 * Sort queries by sequence id and start and merge overlapping or adjacent
+	 * queries. Sequence ids must be set.
+	 * 
+	 * @return a new list of non-overlapping queries
+	 */
+	public static List<AlignmentSliceQuery> merge(List<AlignmentSliceQuery> queries) {
+		List<AlignmentSliceQuery> sorted = new ArrayList<AlignmentSliceQuery>(queries);
+		Collections.sort(sorted, new Comparator<AlignmentSliceQuery>() {
+
+			@Override
+			public int compare(AlignmentSliceQuery o1, AlignmentSliceQuery o2) {
+				if (o1.sequenceId != o2.sequenceId)
+					return o1.sequenceId - o2.sequenceId;
+				return o1.start - o2.start;
+			}
+		});
+
+		List<AlignmentSliceQuery> merged = new ArrayList<AlignmentSliceQuery>();
+		AlignmentSliceQuery current = null;
+		for (AlignmentSliceQuery q : sorted) {
+			if (current != null && current.sequenceId == q.sequenceId && q.start <= (long) current.end + 1) {
+				current.end = Math.max(current.end, q.end);
+				continue;
+			}
+			current = new AlignmentSliceQuery(q.sequence, q.start, q.end);
+			current.sequenceId = q.sequenceId;
+			merged.add(current);
+		}
+		return merged;
+	}
+
+	/**
+	 * @param regions
+	 *            sorted non-overlapping regions as returned by
+	 *            {@link #merge(List)}
+	 * @param alignmentEnd
+	 *            1-based inclusive end, an end before the start (0 for
+	 *            unmapped reads) means the alignment covers only its start
+	 * @return true if the alignment does not overlap any region on its
+	 *         sequence
+	 */
+	public static boolean isOutside(List<AlignmentSliceQuery> regions, int sequenceId, int alignmentStart,
+			int alignmentEnd) {
+		alignmentEnd = Math.max(alignmentStart, alignmentEnd);
+
+		// find the first region on the sequence ending at or after the
+		// alignment start:
+		int low = 0;
+		int high = regions.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			AlignmentSliceQuery q = regions.get(mid);
+			if (q.sequenceId < sequenceId || (q.sequenceId == sequenceId && q.end < alignmentStart))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		if (low < regions.size() && regions.get(low).sequenceId == sequenceId)
+			return regions.get(low).start > alignmentEnd;
+
+		// alignments on sequences without regions are not filtered:
+		return low > 0 && regions.get(low - 1).sequenceId == sequenceId;
+	}
+
+	/**
+	 * @return true if the alignment starts after the last region
+	 */
+	public static boolean isAfter(List<AlignmentSliceQuery> regions, int sequenceId, int alignmentStart) {
+		AlignmentSliceQuery last = regions.get(regions.size() - 1);
+		return last.sequenceId == sequenceId && last.end < alignmentStart;
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer(sequence);
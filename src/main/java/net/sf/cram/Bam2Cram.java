@@ -15,16 +15,17 @@
  ******************************************************************************/
 package net.sf.cram;
 
-import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.build.CompressionProfile;
 import htsjdk.samtools.cram.build.ContainerFactory;
 import htsjdk.samtools.cram.build.CramIO;
-import htsjdk.samtools.cram.build.CramNormalizer;
 import htsjdk.samtools.cram.build.Sam2CramRecordFactory;
 import htsjdk.samtools.cram.common.CramVersions;
 import htsjdk.samtools.cram.lossy.QualityScorePreservation;
@@ -45,12 +46,11 @@ import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import net.sf.cram.ref.ReferenceSource;
+import net.sf.cram.ref.ReferenceTracksAccumulator;
 import cipheronly.CipherOutputStream_256;
 
 import com.beust.jcommander.JCommander;
@@ -76,45 +76,43 @@ public class Bam2Cram {
 		return set;
 	}
 
-	public static void updateTracks(List<SAMRecord> samRecords, ReferenceTracks tracks) {
-		for (SAMRecord samRecord : samRecords) {
-			if (samRecord.getReadBases().length == 0)
-				continue;
-			if (samRecord.getAlignmentStart() != SAMRecord.NO_ALIGNMENT_START) {
-				int refPos = samRecord.getAlignmentStart();
-				int readPos = 0;
-				for (CigarElement ce : samRecord.getCigar().getCigarElements()) {
-					if (ce.getOperator().consumesReferenceBases()) {
-						for (int i = 0; i < ce.getLength(); i++)
-							tracks.addCoverage(refPos + i, 1);
-					}
-					switch (ce.getOperator()) {
-					case M:
-					case X:
-					case EQ:
-						for (int i = readPos; i < ce.getLength(); i++) {
-							byte readBase = samRecord.getReadBases()[readPos + i];
-							byte refBase = tracks.baseAt(refPos + i);
-							if (readBase != refBase)
-								tracks.addMismatches(refPos + i, 1);
-						}
-						break;
-
-					default:
-						break;
-					}
-
-					readPos += ce.getOperator().consumesReadBases() ? ce.getLength() : 0;
-					refPos += ce.getOperator().consumesReferenceBases() ? ce.getLength() : 0;
-				}
-			}
-		}
+	public static void updateTracks(List<SAMRecord> samRecords, byte[] ref, ReferenceTracks tracks) {
+		ReferenceTracksAccumulator accumulator = new ReferenceTracksAccumulator(tracks, ref);
+		for (SAMRecord samRecord : samRecords)
+			accumulator.add(samRecord);
+		accumulator.flush();
 	}
 
 	public static List<CramCompressionRecord> convert(List<SAMRecord> samRecords, CramHeader header, byte[] ref,
 			ReferenceTracks tracks, QualityScorePreservation preservation, boolean captureAllTags, String captureTags,
 			String ignoreTags) {
 
+		long createNanos = System.nanoTime();
+		List<CramCompressionRecord> cramRecords = createRecords(samRecords, header, ref, captureAllTags, captureTags,
+				ignoreTags);
+		createNanos = System.nanoTime() - createNanos;
+
+		long tracksNanos = System.nanoTime();
+		addQualityScores(samRecords, cramRecords, ref, tracks, preservation);
+		tracksNanos = System.nanoTime() - tracksNanos;
+
+		long mateNanos = System.nanoTime();
+		mate(cramRecords, header);
+		mateNanos = System.nanoTime() - mateNanos;
+		log.info(String.format("create: tracks %dms, records %dms, mating %dms.", tracksNanos / 1000000,
+				createNanos / 1000000, mateNanos / 1000000));
+
+		return cramRecords;
+	}
+
+	/**
+	 * Create CRAM records for the SAM records. This does not depend on any
+	 * state shared between batches of records and therefore can be run
+	 * concurrently for different batches.
+	 */
+	static List<CramCompressionRecord> createRecords(List<SAMRecord> samRecords, CramHeader header, byte[] ref,
+			boolean captureAllTags, String captureTags, String ignoreTags) {
+
 		int sequenceId = samRecords.get(0).getReferenceIndex();
 		String sequenceName = samRecords.get(0).getReferenceName();
 
@@ -125,15 +123,10 @@ public class Bam2Cram {
 		f.captureTags.addAll(tagsNamesToSet(captureTags));
 		f.ignoreTags.addAll(tagsNamesToSet(ignoreTags));
 
-		List<CramCompressionRecord> cramRecords = new ArrayList<CramCompressionRecord>();
+		List<CramCompressionRecord> cramRecords = new ArrayList<CramCompressionRecord>(samRecords.size());
 		int prevAlStart = samRecords.get(0).getAlignmentStart();
 		int index = 0;
 
-		long tracksNanos = System.nanoTime();
-		updateTracks(samRecords, tracks);
-		tracksNanos = System.nanoTime() - tracksNanos;
-
-		long createNanos = System.nanoTime();
 		for (SAMRecord samRecord : samRecords) {
 			CramCompressionRecord cramRecord = f.createCramRecord(samRecord);
 			cramRecord.index = ++index;
@@ -142,122 +135,35 @@ public class Bam2Cram {
 			prevAlStart = samRecord.getAlignmentStart();
 
 			cramRecords.add(cramRecord);
-
-			preservation.addQualityScores(samRecord, cramRecord, tracks);
 		}
 
 		if (f.getBaseCount() < 3 * f.getFeatureCount())
 			log.warn("Abnormally high number of mismatches, possibly wrong reference.");
 
-		createNanos = System.nanoTime() - createNanos;
-
-		{
-			long mateNanos = System.nanoTime();
-			if (header.getSamFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate) {
-				// mating:
-				Map<String, CramCompressionRecord> primaryMateMap = new TreeMap<String, CramCompressionRecord>();
-				Map<String, CramCompressionRecord> secondaryMateMap = new TreeMap<String, CramCompressionRecord>();
-				for (CramCompressionRecord r : cramRecords) {
-					if (!r.isMultiFragment()) {
-						r.setDetached(true);
-
-						r.setHasMateDownStream(false);
-						r.recordsToNextFragment = -1;
-						r.next = null;
-						r.previous = null;
-					} else {
-						String name = r.readName;
-						Map<String, CramCompressionRecord> mateMap = r.isSecondaryAlignment() ? secondaryMateMap
-								: primaryMateMap;
-						CramCompressionRecord mate = mateMap.get(name);
-						if (mate == null) {
-							mateMap.put(name, r);
-						} else {
-							CramCompressionRecord prev = mate;
-							while (prev.next != null)
-								prev = prev.next;
-							prev.recordsToNextFragment = r.index - prev.index - 1;
-							prev.next = r;
-							r.previous = prev;
-							r.previous.setHasMateDownStream(true);
-							r.setHasMateDownStream(false);
-							r.setDetached(false);
-							r.previous.setDetached(false);
-						}
-					}
-				}
-
-				// mark unpredictable reads as detached:
-				for (CramCompressionRecord r : cramRecords) {
-					if (r.next == null || r.previous != null)
-						continue;
-					CramCompressionRecord last = r;
-					while (last.next != null)
-						last = last.next;
-
-					if (r.isFirstSegment() && last.isLastSegment()) {
-
-						final int templateLength = CramNormalizer.computeInsertSize(r, last);
-						if (r.templateSize == templateLength) {
-							last = r.next;
-							while (last.next != null) {
-								if (last.templateSize != -templateLength)
-									break;
-
-								last = last.next;
-							}
-							if (last.templateSize != -templateLength)
-								detach(r);
-						} else
-							detach(r);
-					} else
-						detach(r);
-
-					if (r.mateSequenceID != last.sequenceId || r.sequenceId != last.mateSequenceID)
-						detach(r);
-				}
-
-				for (CramCompressionRecord r : primaryMateMap.values()) {
-					if (r.next != null)
-						continue;
-					r.setDetached(true);
-
-					r.setHasMateDownStream(false);
-					r.recordsToNextFragment = -1;
-					r.next = null;
-					r.previous = null;
-				}
-
-				for (CramCompressionRecord r : secondaryMateMap.values()) {
-					if (r.next != null)
-						continue;
-					r.setDetached(true);
-
-					r.setHasMateDownStream(false);
-					r.recordsToNextFragment = -1;
-					r.next = null;
-					r.previous = null;
-				}
-			} else {
-				for (CramCompressionRecord r : cramRecords) {
-					r.setDetached(true);
-				}
-			}
-			mateNanos = System.nanoTime() - mateNanos;
-			log.info(String.format("create: tracks %dms, records %dms, mating %dms.", tracksNanos / 1000000,
-					createNanos / 1000000, mateNanos / 1000000));
-		}
-
 		return cramRecords;
 	}
 
-	private static void detach(CramCompressionRecord cramRecord) {
-		do {
-			cramRecord.setDetached(true);
+	/**
+	 * Update the reference tracks and apply quality score preservation policy.
+	 * The tracks are shared between consecutive batches of records, so the
+	 * batches must go through this method one at a time and in order.
+	 */
+	static void addQualityScores(List<SAMRecord> samRecords, List<CramCompressionRecord> cramRecords, byte[] ref,
+			ReferenceTracks tracks, QualityScorePreservation preservation) {
+		updateTracks(samRecords, ref, tracks);
+
+		for (int i = 0; i < samRecords.size(); i++)
+			preservation.addQualityScores(samRecords.get(i), cramRecords.get(i), tracks);
+	}
 
-			cramRecord.setHasMateDownStream(false);
-			cramRecord.recordsToNextFragment = -1;
-		} while ((cramRecord = cramRecord.next) != null);
+	static void mate(List<CramCompressionRecord> cramRecords, CramHeader header) {
+		if (header.getSamFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate) {
+			MateResolver.resolve(cramRecords);
+		} else {
+			for (CramCompressionRecord r : cramRecords) {
+				r.setDetached(true);
+			}
+		}
 	}
 
 	private static void printUsage(JCommander jc) {
@@ -312,6 +218,21 @@ public class Bam2Cram {
 			log.warn("No reference file specified, remote access over internet may be used to download public sequences. ");
 		ReferenceSource referenceSource = new ReferenceSource(params.referenceFasta);
 
+		try {
+			run(params, referenceSource);
+		} catch (FixBAMFileHeader.MD5MismatchError e) {
+			log.error(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Convert a BAM file to CRAM as specified by the parameters. Reference
+	 * bases are taken from the given source, so that a reference cache can be
+	 * shared between conversions running in the same JVM.
+	 */
+	static void run(Params params, ReferenceSource referenceSource) throws IOException, IllegalArgumentException,
+			IllegalAccessException {
 		char[] pass = null;
 		if (params.encrypt) {
 			if (System.console() == null)
@@ -320,130 +241,190 @@ public class Bam2Cram {
 		}
 
 		File bamFile = params.bamFile;
-		SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
-
-		SAMFileReader samFileReader = null;
-		if (params.bamFile == null) {
-			log.warn("No input file, reading from input...");
-			samFileReader = new SAMFileReader(System.in);
-		} else
-			samFileReader = new SAMFileReader(bamFile);
-		SAMFileHeader samFileHeader = samFileReader.getFileHeader().clone();
-
-		SAMSequenceRecord samSequenceRecord = null;
-		List<SAMRecord> samRecords = new ArrayList<SAMRecord>(params.maxSliceSize);
-		int prevSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-		SAMRecordIterator iterator = samFileReader.iterator();
-		if (!iterator.hasNext()) {
-			log.debug("No records found, writing out empty cram file...");
-			CramHeader h = new CramHeader(CramVersions.CRAM_v3, bamFile.getName(), samFileHeader);
-
-			OutputStream os = openOutputStream(params.outputCramFile, params.encrypt, pass);
-			CramIO.writeCramHeader(h, os);
-			CramIO.issueEOF(h.getVersion(), os);
-			os.close();
-			return;
-		}
+		SamReaderFactory readerFactory = SamReaderFactory.make().validationStringency(ValidationStringency.SILENT);
 
-		{
-			String seqName = null;
-			SAMRecord samRecord = iterator.next();
-			if (samRecord == null)
-				throw new RuntimeException("No records found.");
-			seqName = samRecord.getReferenceName();
-			prevSeqId = samRecord.getReferenceIndex();
-			samRecords.add(samRecord);
-
-			if (SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(seqName))
-				samSequenceRecord = null;
-			else
-				samSequenceRecord = samFileHeader.getSequence(seqName);
-		}
+		SamReader samFileReader = null;
+		SAMRecordIterator iterator = null;
+		OutputStream os = null;
+		ContainerPipeline pipeline = null;
+		long bases = 0;
+		try {
+			if (params.bamFile == null) {
+				log.warn("No input file, reading from input...");
+				samFileReader = readerFactory.open(SamInputResource.of(System.in));
+			} else
+				samFileReader = readerFactory.open(bamFile);
+			SAMFileHeader samFileHeader = samFileReader.getFileHeader().clone();
+
+			SAMSequenceRecord samSequenceRecord = null;
+			List<SAMRecord> samRecords = new ArrayList<SAMRecord>(params.maxSliceSize);
+			int prevSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+			iterator = samFileReader.iterator();
+			if (!iterator.hasNext()) {
+				log.debug("No records found, writing out empty cram file...");
+				CramHeader h = new CramHeader(CramVersions.CRAM_v3, bamFile.getName(), samFileHeader);
+
+				os = openOutputStream(params.outputCramFile, params.encrypt, pass);
+				CramIO.writeCramHeader(h, os);
+				CramIO.issueEOF(h.getVersion(), os);
+				return;
+			}
 
-		QualityScorePreservation preservation;
-		if (params.losslessQS)
-			preservation = new QualityScorePreservation("*40");
-		else
-			preservation = new QualityScorePreservation(params.qsSpec);
-
-		byte[] ref = null;
-		ReferenceTracks tracks = null;
-		if (samSequenceRecord == null) {
-			ref = new byte[0];
-			tracks = new ReferenceTracks(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX, SAMRecord.NO_ALIGNMENT_REFERENCE_NAME,
-					ref);
-		} else {
-			ref = referenceSource.getReferenceBases(samSequenceRecord, true);
-			log.debug(String.format("Creating tracks for reference: name=%s, length=%d.\n",
-					samSequenceRecord.getSequenceName(), ref.length));
-			tracks = new ReferenceTracks(samSequenceRecord.getSequenceIndex(), samSequenceRecord.getSequenceName(), ref);
-		}
+			{
+				String seqName = null;
+				SAMRecord samRecord = iterator.next();
+				if (samRecord == null)
+					throw new RuntimeException("No records found.");
+				seqName = samRecord.getReferenceName();
+				prevSeqId = samRecord.getReferenceIndex();
+				samRecords.add(samRecord);
 
-		OutputStream os;
-		if (params.outputCramFile != null) {
-			FileOutputStream fos = new FileOutputStream(params.outputCramFile);
-			os = new BufferedOutputStream(fos);
-		} else {
-			log.warn("No output file, writint to STDOUT.");
-			os = System.out;
-		}
+				if (SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(seqName))
+					samSequenceRecord = null;
+				else
+					samSequenceRecord = samFileHeader.getSequence(seqName);
+			}
 
-		if (params.encrypt) {
-			CipherOutputStream_256 cos = new CipherOutputStream_256(os, pass, 128);
-			os = cos.getCipherOutputStream();
-		}
+			QualityScorePreservation preservation;
+			if (params.losslessQS)
+				preservation = new QualityScorePreservation("*40");
+			else
+				preservation = new QualityScorePreservation(params.qsSpec);
+
+			byte[] ref = null;
+			ReferenceTracks tracks = null;
+			if (samSequenceRecord == null) {
+				ref = new byte[0];
+				tracks = new ReferenceTracks(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX, SAMRecord.NO_ALIGNMENT_REFERENCE_NAME,
+						ref);
+			} else {
+				ref = referenceSource.getReferenceBases(samSequenceRecord, true);
+				log.debug(String.format("Creating tracks for reference: name=%s, length=%d.\n",
+						samSequenceRecord.getSequenceName(), ref.length));
+				tracks = new ReferenceTracks(samSequenceRecord.getSequenceIndex(), samSequenceRecord.getSequenceName(), ref);
+			}
 
-		FixBAMFileHeader fixBAMFileHeader = new FixBAMFileHeader(referenceSource);
-		fixBAMFileHeader.setConfirmMD5(params.confirmMD5);
-		fixBAMFileHeader.setInjectURI(params.injectURI);
-		fixBAMFileHeader.setIgnoreMD5Mismatch(params.ignoreMD5Mismatch);
-		try {
+			if (params.outputCramFile != null) {
+				FileOutputStream fos = new FileOutputStream(params.outputCramFile);
+				os = new BufferedOutputStream(fos);
+			} else {
+				log.warn("No output file, writint to STDOUT.");
+				os = System.out;
+			}
+
+			if (params.encrypt) {
+				CipherOutputStream_256 cos = new CipherOutputStream_256(os, pass, 128);
+				os = cos.getCipherOutputStream();
+			}
+
+			FixBAMFileHeader fixBAMFileHeader = new FixBAMFileHeader(referenceSource);
+			fixBAMFileHeader.setConfirmMD5(params.confirmMD5);
+			fixBAMFileHeader.setInjectURI(params.injectURI);
+			fixBAMFileHeader.setIgnoreMD5Mismatch(params.ignoreMD5Mismatch);
 			fixBAMFileHeader.fixSequences(samFileHeader.getSequenceDictionary().getSequences());
-		} catch (FixBAMFileHeader.MD5MismatchError e) {
-			log.error(e.getMessage());
-			System.exit(1);
-		}
-		fixBAMFileHeader.addCramtoolsPG(samFileHeader);
+			fixBAMFileHeader.addCramtoolsPG(samFileHeader);
+
+			CramHeader h = new CramHeader(CramVersions.CRAM_v3,
+					params.bamFile == null ? "STDIN" : params.bamFile.getName(), samFileHeader);
+			long offset = CramIO.writeCramHeader(h, os);
+
+			// long coreBytes = 0;
+			// long[] 90 = new long[10];
+
+			ContainerFactory cf = new ContainerFactory(samFileHeader, params.maxSliceSize, params.compressionProfile,
+					ContainerPlanner.ESTIMATE_LAG);
+			ContainerPlanner planner = new ContainerPlanner(params.maxContainerSize, params.maxContainerBases,
+					params.maxContainerSpan, params.targetContainerBytes);
+			planner.add(samRecords.get(0));
+			if (params.threads > 1)
+				pipeline = new ContainerPipeline(params.threads, h, os, offset, cf, preservation,
+						params.captureAllTags, params.captureTags, params.ignoreTags, planner);
+			do {
+				if (params.outputCramFile == null && System.out.checkError())
+					return;
+
+				if (!iterator.hasNext())
+					break;
+				SAMRecord samRecord = iterator.next();
+
+				if (samRecord.getReferenceIndex() != prevSeqId || planner.isFull(samRecord)) {
+					planner.cut();
+					long convertNanos = 0;
+					if (!samRecords.isEmpty() && pipeline != null) {
+						pipeline.submit(samRecords, ref, tracks);
+						samRecords = new ArrayList<SAMRecord>(params.maxSliceSize);
+					} else if (!samRecords.isEmpty()) {
+						convertNanos = System.nanoTime();
+						List<CramCompressionRecord> records = convert(samRecords, h, ref, tracks, preservation,
+								params.captureAllTags, params.captureTags, params.ignoreTags);
+						convertNanos = System.nanoTime() - convertNanos;
+						samRecords.clear();
+
+						Container container = cf.buildContainer(records);
+						for (Slice s : container.slices) {
+							s.setRefMD5(ref);
+						}
+						records.clear();
+						long len = ContainerIO.writeContainer(h.getVersion(), container, os);
+						container.offset = offset;
+						offset += len;
+						planner.written(container.bases, len);
+
+						log.info(String
+								.format("CONTAINER WRITE TIMES: records build time %dms, header build time %dms, slices build time %dms, io time %dms.",
+										convertNanos / 1000000, container.buildHeaderTime / 1000000,
+										container.buildSlicesTime / 1000000, container.writeTime / 1000000));
+
+						// for (Slice s : container.slices) {
+						// coreBytes += s.coreBlock.getCompressedContentSize();
+						// for (Integer i : s.external.keySet())
+						// externalBytes[i] +=
+						// s.external.get(i).getCompressedContentSize();
+						// }
+					}
+				}
 
-		CramHeader h = new CramHeader(CramVersions.CRAM_v3,
-				params.bamFile == null ? "STDIN" : params.bamFile.getName(), samFileHeader);
-		long offset = CramIO.writeCramHeader(h, os);
+				if (prevSeqId != samRecord.getReferenceIndex()) {
+					if (samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+						samSequenceRecord = samFileHeader.getSequence(samRecord.getReferenceName());
+						ref = referenceSource.getReferenceBases(samSequenceRecord, true);
+						tracks = new ReferenceTracks(samSequenceRecord.getSequenceIndex(),
+								samSequenceRecord.getSequenceName(), ref);
 
-		long bases = 0;
-		// long coreBytes = 0;
-		// long[] 90 = new long[10];
+					} else {
+						ref = new byte[] {};
+						tracks = new ReferenceTracks(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX,
+								SAMRecord.NO_ALIGNMENT_REFERENCE_NAME, ref);
+					}
+					prevSeqId = samRecord.getReferenceIndex();
+				}
 
-		ContainerFactory cf = new ContainerFactory(samFileHeader, params.maxSliceSize);
-		do {
-			if (params.outputCramFile == null && System.out.checkError())
-				return;
+				samRecords.add(samRecord);
+				planner.add(samRecord);
+				bases += samRecord.getReadLength();
 
-			if (!iterator.hasNext())
-				break;
-			SAMRecord samRecord = iterator.next();
+				if (params.maxRecords-- < 1)
+					break;
+			} while (iterator.hasNext());
 
-			if (samRecord.getReferenceIndex() != prevSeqId || samRecords.size() >= params.maxContainerSize) {
-				long convertNanos = 0;
-				if (!samRecords.isEmpty()) {
-					convertNanos = System.nanoTime();
+			{ // copied for now, should be a subroutine:
+				if (!samRecords.isEmpty() && pipeline != null) {
+					pipeline.submit(samRecords, ref, tracks);
+					samRecords = new ArrayList<SAMRecord>(params.maxSliceSize);
+				} else if (!samRecords.isEmpty()) {
 					List<CramCompressionRecord> records = convert(samRecords, h, ref, tracks, preservation,
 							params.captureAllTags, params.captureTags, params.ignoreTags);
-					convertNanos = System.nanoTime() - convertNanos;
 					samRecords.clear();
-
 					Container container = cf.buildContainer(records);
-					for (Slice s : container.slices) {
+					for (Slice s : container.slices)
 						s.setRefMD5(ref);
-					}
-					records.clear();
-					long len = ContainerIO.writeContainer(h.getVersion(), container, os);
-					container.offset = offset;
-					offset += len;
 
-					log.info(String
-							.format("CONTAINER WRITE TIMES: records build time %dms, header build time %dms, slices build time %dms, io time %dms.",
-									convertNanos / 1000000, container.buildHeaderTime / 1000000,
-									container.buildSlicesTime / 1000000, container.writeTime / 1000000));
+					records.clear();
+					ContainerIO.writeContainer(h.getVersion(), container, os);
+					log.info(String.format(
+							"CONTAINER WRITE TIMES: header build time %dms, slices build time %dms, io time %dms.",
+							container.buildHeaderTime / 1000000, container.buildSlicesTime / 1000000,
+							container.writeTime / 1000000));
 
 					// for (Slice s : container.slices) {
 					// coreBytes += s.coreBlock.getCompressedContentSize();
@@ -454,59 +435,26 @@ public class Bam2Cram {
 				}
 			}
 
-			if (prevSeqId != samRecord.getReferenceIndex()) {
-				if (samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-					samSequenceRecord = samFileHeader.getSequence(samRecord.getReferenceName());
-					ref = referenceSource.getReferenceBases(samSequenceRecord, true);
-					tracks = new ReferenceTracks(samSequenceRecord.getSequenceIndex(),
-							samSequenceRecord.getSequenceName(), ref);
-
-				} else {
-					ref = new byte[] {};
-					tracks = new ReferenceTracks(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX,
-							SAMRecord.NO_ALIGNMENT_REFERENCE_NAME, ref);
-				}
-				prevSeqId = samRecord.getReferenceIndex();
+			if (pipeline != null) {
+				// finish() stops the workers itself, even if it fails:
+				ContainerPipeline finishing = pipeline;
+				pipeline = null;
+				offset = finishing.finish();
 			}
 
-			samRecords.add(samRecord);
-			bases += samRecord.getReadLength();
-
-			if (params.maxRecords-- < 1)
-				break;
-		} while (iterator.hasNext());
-
-		{ // copied for now, should be a subroutine:
-			if (!samRecords.isEmpty()) {
-				List<CramCompressionRecord> records = convert(samRecords, h, ref, tracks, preservation,
-						params.captureAllTags, params.captureTags, params.ignoreTags);
-				samRecords.clear();
-				Container container = cf.buildContainer(records);
-				for (Slice s : container.slices)
-					s.setRefMD5(ref);
-
-				records.clear();
-				ContainerIO.writeContainer(h.getVersion(), container, os);
-				log.info(String.format(
-						"CONTAINER WRITE TIMES: header build time %dms, slices build time %dms, io time %dms.",
-						container.buildHeaderTime / 1000000, container.buildSlicesTime / 1000000,
-						container.writeTime / 1000000));
-
-				// for (Slice s : container.slices) {
-				// coreBytes += s.coreBlock.getCompressedContentSize();
-				// for (Integer i : s.external.keySet())
-				// externalBytes[i] +=
-				// s.external.get(i).getCompressedContentSize();
-				// }
-			}
+			if (params.addEOF)
+				CramIO.issueEOF(h.getVersion(), os);
+		} finally {
+			if (pipeline != null)
+				pipeline.abort();
+			if (iterator != null)
+				iterator.close();
+			if (samFileReader != null)
+				samFileReader.close();
+			if (os != null)
+				os.close();
 		}
 
-		iterator.close();
-		samFileReader.close();
-		if (params.addEOF)
-			CramIO.issueEOF(h.getVersion(), os);
-		os.close();
-
 		StringBuilder sb = new StringBuilder();
 		// sb.append(String.format("STATS: core %.2f b/b", 8f * coreBytes /
 		// bases));
@@ -549,6 +497,21 @@ public class Bam2Cram {
 		@Parameter(names = { "--max-container-size" }, hidden = true)
 		int maxContainerSize = 10000;
 
+		@Parameter(names = { "--max-container-bases" }, description = "Maximum number of bases in a container, 0 for no limit.")
+		long maxContainerBases = 20000000;
+
+		@Parameter(names = { "--max-container-span" }, description = "Maximum reference span of a container, 0 for no limit.")
+		int maxContainerSpan = 0;
+
+		@Parameter(names = { "--target-container-bytes" }, description = "Maximum compressed size of a container estimated from the container cut 32 containers before, 0 for no limit. The estimate does not depend on the number of threads.")
+		long targetContainerBytes = 16 * 1024 * 1024;
+
+		@Parameter(names = { "--compression-profile" }, description = "Compression speed and size trade off: FAST, BALANCED or ARCHIVAL. ARCHIVAL also tries BZIP2 and LZMA, FAST does not use GZIP.", converter = CramTools.CompressionProfileConverter.class)
+		CompressionProfile compressionProfile = CompressionProfile.BALANCED;
+
+		@Parameter(names = { "--threads", "-t" }, description = "Number of threads to convert and compress containers with, 1 means all work is done in the main thread.")
+		int threads = 1;
+
 		@Parameter(names = { "--preserve-read-names", "-n" }, description = "Preserve all read names.")
 		boolean preserveReadNames = false;
 
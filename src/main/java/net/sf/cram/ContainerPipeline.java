@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.build.ContainerFactory;
+import htsjdk.samtools.cram.lossy.QualityScorePreservation;
+import htsjdk.samtools.cram.ref.ReferenceTracks;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.ContainerIO;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts batches of SAM records into CRAM containers on a pool of worker
+ * threads and writes the containers out in the order the batches were
+ * submitted.
+ * <p>
+ * Record conversion, mating, compression header building and block
+ * compression run concurrently. Reference tracks are shared between batches
+ * on the same reference, so updating them and applying quality score
+ * preservation is chained batch after batch. The global record counters are
+ * assigned at write time, which keeps the output byte-identical to the
+ * single-threaded conversion. So that containers cut on the estimated
+ * compressed size and the compressors chosen for them are the same too, no
+ * more containers are kept in flight than {@link ContainerPlanner#ESTIMATE_LAG}
+ * allows, and the container factory must have been created with this lag.
+ *
+ * @author vadim
+ */
+class ContainerPipeline {
+	private static Log log = Log.getInstance(ContainerPipeline.class);
+
+	private final ExecutorService executor;
+	private final LinkedList<Future<Container>> inFlight = new LinkedList<Future<Container>>();
+	private final int maxInFlight;
+
+	private final CramHeader header;
+	private final OutputStream os;
+	private final ContainerFactory containerFactory;
+	private final QualityScorePreservation preservation;
+	private final boolean captureAllTags;
+	private final String captureTags;
+	private final String ignoreTags;
+	private final ContainerPlanner planner;
+
+	private long offset;
+	private long globalRecordCounter = 0;
+	private long containerCounter = 0;
+	private CountDownLatch previousTracksDone = null;
+
+	/**
+	 * @param containerFactory
+	 *            the factory for the output stream, created with
+	 *            {@link ContainerPlanner#ESTIMATE_LAG} as the choice lag
+	 */
+	public ContainerPipeline(int threads, CramHeader header, OutputStream os, long offset,
+			ContainerFactory containerFactory, QualityScorePreservation preservation, boolean captureAllTags,
+			String captureTags, String ignoreTags, ContainerPlanner planner) {
+		this.header = header;
+		this.os = os;
+		this.offset = offset;
+		this.containerFactory = containerFactory;
+		this.preservation = preservation;
+		this.captureAllTags = captureAllTags;
+		this.captureTags = captureTags;
+		this.ignoreTags = ignoreTags;
+		this.planner = planner;
+
+		maxInFlight = getMaxInFlight(threads);
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int counter = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "container-pipeline-" + counter++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		log.info("Starting container pipeline, threads ", threads);
+	}
+
+	private static int getMaxInFlight(int threads) {
+		// the container ESTIMATE_LAG before the one being collected must be
+		// written already, both for the size estimate and the compressor
+		// choices:
+		return Math.min(2 * threads, ContainerPlanner.ESTIMATE_LAG - 1);
+	}
+
+	/**
+	 * Schedule a batch of records to be written as a container. The caller
+	 * must not modify the list, the reference or the tracks afterwards other
+	 * than by submitting further batches. Blocks while too many containers are
+	 * in flight.
+	 *
+	 * @param samRecords
+	 *            records for one container, all on the same reference
+	 * @param ref
+	 *            reference bases for the records
+	 * @param tracks
+	 *            reference tracks for the reference
+	 * @throws IOException
+	 *             if a container could not be written
+	 */
+	public void submit(List<SAMRecord> samRecords, byte[] ref, ReferenceTracks tracks) throws IOException {
+		CountDownLatch tracksDone = new CountDownLatch(1);
+		inFlight.add(executor.submit(new ContainerTask(containerCounter++, samRecords, ref, tracks,
+				previousTracksDone, tracksDone)));
+		previousTracksDone = tracksDone;
+
+		while (!inFlight.isEmpty() && (inFlight.size() > maxInFlight || inFlight.getFirst().isDone()))
+			write(inFlight.removeFirst());
+	}
+
+	/**
+	 * Write out all pending containers and stop the worker threads.
+	 *
+	 * @return the offset in the output stream after the last container
+	 * @throws IOException
+	 *             if a container could not be written
+	 */
+	public long finish() throws IOException {
+		try {
+			while (!inFlight.isEmpty())
+				write(inFlight.removeFirst());
+		} finally {
+			executor.shutdownNow();
+		}
+		return offset;
+	}
+
+	/**
+	 * Stop the worker threads discarding any pending containers.
+	 */
+	public void abort() {
+		inFlight.clear();
+		executor.shutdownNow();
+	}
+
+	private void write(Future<Container> future) throws IOException {
+		Container container;
+		try {
+			container = future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+
+		container.globalRecordCounter = globalRecordCounter;
+		long sliceRecordCounter = globalRecordCounter;
+		for (Slice s : container.slices) {
+			s.globalRecordCounter = sliceRecordCounter;
+			sliceRecordCounter += s.nofRecords;
+		}
+		globalRecordCounter += container.nofRecords;
+
+		long len = ContainerIO.writeContainer(header.getVersion(), container, os);
+		container.offset = offset;
+		offset += len;
+		planner.written(container.bases, len);
+
+		log.info(String.format(
+				"CONTAINER WRITE TIMES: header build time %dms, slices build time %dms, io time %dms.",
+				container.buildHeaderTime / 1000000, container.buildSlicesTime / 1000000,
+				container.writeTime / 1000000));
+	}
+
+	private class ContainerTask implements Callable<Container> {
+		private final long index;
+		private List<SAMRecord> samRecords;
+		private byte[] ref;
+		private ReferenceTracks tracks;
+		private CountDownLatch previousTracksDone;
+		private CountDownLatch tracksDone;
+
+		ContainerTask(long index, List<SAMRecord> samRecords, byte[] ref, ReferenceTracks tracks,
+				CountDownLatch previousTracksDone, CountDownLatch tracksDone) {
+			this.index = index;
+			this.samRecords = samRecords;
+			this.ref = ref;
+			this.tracks = tracks;
+			this.previousTracksDone = previousTracksDone;
+			this.tracksDone = tracksDone;
+		}
+
+		@Override
+		public Container call() throws Exception {
+			List<CramCompressionRecord> records;
+			try {
+				long createNanos = System.nanoTime();
+				records = Bam2Cram.createRecords(samRecords, header, ref, captureAllTags, captureTags, ignoreTags);
+				createNanos = System.nanoTime() - createNanos;
+
+				if (previousTracksDone != null)
+					previousTracksDone.await();
+
+				long tracksNanos = System.nanoTime();
+				Bam2Cram.addQualityScores(samRecords, records, ref, tracks, preservation);
+				tracksNanos = System.nanoTime() - tracksNanos;
+				log.debug(String.format("create: tracks %dms, records %dms.", tracksNanos / 1000000,
+						createNanos / 1000000));
+			} finally {
+				tracksDone.countDown();
+			}
+			samRecords = null;
+
+			Bam2Cram.mate(records, header);
+
+			Container container = containerFactory.buildContainer(records, index);
+			for (Slice s : container.slices)
+				s.setRefMD5(ref);
+
+			return container;
+		}
+	}
+}
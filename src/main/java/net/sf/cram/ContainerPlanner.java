@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Decides where to cut containers when converting SAM records. A container is
+ * cut before a record that would exceed any of the limits: number of
+ * records, number of bases, reference span or the estimated compressed size.
+ * Limits of 0 are not applied, except for the number of records.
+ * <p>
+ * The compressed size is estimated from the bytes per base of a previously
+ * written container. To keep the containers the same from run to run, and
+ * the same for any number of threads, the estimate for a container always
+ * uses the container cut {@link #ESTIMATE_LAG} containers before it. A
+ * concurrent writer must therefore never have more than ESTIMATE_LAG - 1
+ * containers cut but not written. Containers must be reported with
+ * {@link #written(long, long)} in the order they were cut.
+ *
+ * @author vadim
+ *
+ */
+public class ContainerPlanner {
+	/**
+	 * How many containers before the current one the size estimate is taken
+	 * from.
+	 */
+	public static final int ESTIMATE_LAG = 32;
+
+	private final int maxRecords;
+	private final long maxBases;
+	private final int maxSpan;
+	private final long targetBytes;
+
+	// bytes per base of the recently written containers by container number:
+	private final double[] ratios;
+	private int containersCut = 0;
+	private int containersWritten = 0;
+
+	private int records = 0;
+	private long bases = 0;
+	private int alignmentStart = 0;
+
+	/**
+	 * @param maxRecords
+	 *            maximum number of records in a container
+	 * @param maxBases
+	 *            maximum number of bases in a container
+	 * @param maxSpan
+	 *            maximum reference span of a container
+	 * @param targetBytes
+	 *            maximum estimated compressed size of a container
+	 */
+	public ContainerPlanner(int maxRecords, long maxBases, int maxSpan, long targetBytes) {
+		this.maxRecords = maxRecords;
+		this.maxBases = maxBases;
+		this.maxSpan = maxSpan;
+		this.targetBytes = targetBytes;
+		ratios = new double[ESTIMATE_LAG + 1];
+	}
+
+	/**
+	 * @return true if the container must be cut before the record
+	 */
+	public boolean isFull(SAMRecord next) {
+		if (records == 0)
+			return false;
+		if (records >= maxRecords)
+			return true;
+
+		long newBases = bases + next.getReadLength();
+		if (maxBases > 0 && newBases > maxBases)
+			return true;
+
+		if (maxSpan > 0 && alignmentStart > 0 && next.getAlignmentStart() != SAMRecord.NO_ALIGNMENT_START
+				&& next.getAlignmentEnd() - alignmentStart + 1 > maxSpan)
+			return true;
+
+		return targetBytes > 0 && newBases * getBytesPerBase() > targetBytes;
+	}
+
+	public void add(SAMRecord record) {
+		if (alignmentStart == 0)
+			alignmentStart = record.getAlignmentStart();
+		records++;
+		bases += record.getReadLength();
+	}
+
+	/**
+	 * Start a new container.
+	 */
+	public void cut() {
+		containersCut++;
+		records = 0;
+		bases = 0;
+		alignmentStart = 0;
+	}
+
+	/**
+	 * Report the size of the next written container.
+	 */
+	public void written(long containerBases, long containerBytes) {
+		ratios[containersWritten % ratios.length] = containerBases > 0 ? (double) containerBytes / containerBases
+				: 0;
+		containersWritten++;
+	}
+
+	/**
+	 * @return bytes per base of the container cut ESTIMATE_LAG containers
+	 *         before the current one, 0 if there is no such container
+	 */
+	double getBytesPerBase() {
+		int container = containersCut - ESTIMATE_LAG;
+		if (container < 0 || container >= containersWritten)
+			return 0;
+		return ratios[container % ratios.length];
+	}
+}
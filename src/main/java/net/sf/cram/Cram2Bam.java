@@ -15,39 +15,67 @@
  ******************************************************************************/
 package net.sf.cram;
 
+import htsjdk.samtools.BAMFileWriterFactory;
 import htsjdk.samtools.Defaults;
 import htsjdk.samtools.IndexAggregate;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.cram.build.ContainerParser;
 import htsjdk.samtools.cram.build.Cram2SamRecordFactory;
 import htsjdk.samtools.cram.build.CramIO;
 import htsjdk.samtools.cram.build.CramNormalizer;
+import htsjdk.samtools.cram.encoding.reader.DataReaderFactory;
+import htsjdk.samtools.cram.encoding.reader.ReaderToBAM;
+import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramCompressionRecord;
 import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.cram.structure.PartialContainerIO;
 import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.cram.structure.SliceInputViews;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BinaryCodec;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.Log;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.StringWriter;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import net.sf.cram.CramTools.LevelConverter;
 import net.sf.cram.FixBAMFileHeader.MD5MismatchError;
+import net.sf.cram.common.ParallelBAMFileWriter;
+import net.sf.cram.common.ParallelBlockCompressedOutputStream;
 import net.sf.cram.common.Utils;
+import net.sf.cram.index.CramIndex.Entry;
+import net.sf.cram.ref.ReferenceRegion;
 import net.sf.cram.ref.ReferenceSource;
 
 import com.beust.jcommander.JCommander;
@@ -91,8 +119,12 @@ public class Cram2Bam {
 		if (params.reference == null)
 			log.warn("No reference file specified, remote access over internet may be used to download public sequences. ");
 
-		if (params.locations == null)
-			params.locations = new ArrayList<String>();
+		if (params.directBAM
+				&& (params.countOnly || params.outputFastq || params.outputFastqGz || (params.outputFile == null ? !params.outputBAM
+						: !params.outputFile.getName().endsWith(".bam")))) {
+			log.error("Direct BAM encoding requires BAM output: use -b or an output file with .bam extension.");
+			System.exit(1);
+		}
 
 		InputStream is = null;
 		try {
@@ -102,6 +134,46 @@ public class Cram2Bam {
 			System.exit(1);
 		}
 
+		if (params.bamCompressionLevel < Deflater.NO_COMPRESSION || params.bamCompressionLevel > Deflater.BEST_COMPRESSION) {
+			log.error("Invalid BAM compression level, expecting an integer from 0 to 9.");
+			System.exit(1);
+		}
+
+		ReferenceSource referenceSource = new ReferenceSource(params.reference);
+		referenceSource.setDownloadTriesBeforeFailing(params.downloadTriesBeforeFailing);
+
+		try {
+			run(params, is, referenceSource);
+		} catch (MD5MismatchError e) {
+			log.error(e.getMessage());
+			System.exit(1);
+		} catch (SliceMD5MismatchException e) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Thrown when the reference bases of a slice do not match the MD5 checksum
+	 * stored in the slice and the decoding is not resilient.
+	 */
+	static class SliceMD5MismatchException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		SliceMD5MismatchException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Decode a CRAM stream as specified by the parameters. Reference bases are
+	 * taken from the given source, so that a reference cache can be shared
+	 * between conversions running in the same JVM. The stream is not closed.
+	 */
+	static void run(Params params, InputStream is, ReferenceSource referenceSource) throws IOException,
+			IllegalArgumentException, IllegalAccessException {
+		if (params.locations == null)
+			params.locations = new ArrayList<String>();
+
 		CramHeader cramHeader = CramIO.readCramHeader(is);
 
 		if (params.printSAMHeaderOnly) {
@@ -109,158 +181,616 @@ public class Cram2Bam {
 			return;
 		}
 
-		ReferenceSource referenceSource = new ReferenceSource(params.reference);
-		referenceSource.setDownloadTriesBeforeFailing(params.downloadTriesBeforeFailing);
-
 		FixBAMFileHeader fix = new FixBAMFileHeader(referenceSource);
 		fix.setConfirmMD5(!params.skipMD5Checks);
 		fix.setInjectURI(params.injectURI);
 		fix.setIgnoreMD5Mismatch(params.ignoreMD5Mismatch);
-		try {
-			log.info("Preparing the header...");
-			fix.fixSequences(cramHeader.getSamFileHeader().getSequenceDictionary().getSequences());
-		} catch (MD5MismatchError e) {
-			log.error(e.getMessage());
-			System.exit(1);
-		}
+		log.info("Preparing the header...");
+		fix.fixSequences(cramHeader.getSamFileHeader().getSequenceDictionary().getSequences());
 		fix.addCramtoolsPG(cramHeader.getSamFileHeader());
 
-		BlockCompressedOutputStream.setDefaultCompressionLevel(Defaults.COMPRESSION_LEVEL);
 		SAMFileWriterFactory samFileWriterFactory = new SAMFileWriterFactory();
 		samFileWriterFactory.setAsyncOutputBufferSize(params.asyncBamBuffer);
 		samFileWriterFactory.setCreateIndex(false);
 		samFileWriterFactory.setCreateMd5File(false);
 		samFileWriterFactory.setUseAsyncIo(params.syncBamOutput);
 
-		SAMFileWriter writer = createSAMFileWriter(params, cramHeader, samFileWriterFactory);
-
-		htsjdk.samtools.cram.structure.Container c = null;
-		AlignmentSliceQuery location = null;
-		if (!params.locations.isEmpty()) {
-			if (params.locations.size() > 1)
-				throw new RuntimeException("Only one location is supported.");
-			if (!(is instanceof SeekableStream))
-				throw new RuntimeException("Cannot use random access on a stream.");
+		ExecutorService compressionPool = null;
+		ExecutorService decodePool = null;
+		SAMFileWriter writer = null;
+		try {
+			if (params.bamCompressionThreads > 1)
+				compressionPool = ParallelBlockCompressedOutputStream.createExecutor(params.bamCompressionThreads);
+			if (!params.directBAM)
+				writer = createSAMFileWriter(params, cramHeader, samFileWriterFactory, compressionPool);
+
+			Container c = null;
+			List<AlignmentSliceQuery> regions = null;
+			RegionSeeker regionSeeker = null;
+			if (!params.locations.isEmpty() || params.bedFile != null) {
+				if (!(is instanceof SeekableStream))
+					throw new RuntimeException("Cannot use random access on a stream.");
+
+				List<AlignmentSliceQuery> queries = new ArrayList<AlignmentSliceQuery>();
+				for (String spec : params.locations)
+					queries.add(new AlignmentSliceQuery(spec));
+				if (params.bedFile != null)
+					queries.addAll(AlignmentSliceQuery.fromBedFile(params.bedFile));
+
+				for (Iterator<AlignmentSliceQuery> iterator = queries.iterator(); iterator.hasNext();) {
+					AlignmentSliceQuery query = iterator.next();
+					query.sequenceId = cramHeader.getSamFileHeader().getSequenceIndex(query.sequence);
+					if (query.sequenceId < 0) {
+						log.error("Reference sequence not found for name: " + query.sequence);
+						iterator.remove();
+					}
+				}
+				if (queries.isEmpty())
+					return;
 
-			location = new AlignmentSliceQuery(params.locations.get(0));
-			location.sequenceId = cramHeader.getSamFileHeader().getSequenceIndex(location.sequence);
-			if (location.sequenceId < 0) {
-				log.error("Reference sequence not found for name: " + location.sequence);
-				return;
-			}
+				regions = AlignmentSliceQuery.merge(queries);
+				log.info(String.format("Querying %d regions merged from %d.", regions.size(), queries.size()));
 
-			try {
-				log.info("Seeking for the query " + location.toString());
 				SeekableStream cramStream = (SeekableStream) is;
 				IndexAggregate ia = IndexAggregate.forDataFile(cramStream, cramHeader.getSamFileHeader()
 						.getSequenceDictionary());
-				long offset = ia.seek(location.sequenceId, location.start, location.end, cramStream);
-				if (offset < 0)
-					throw new ReadNotFoundException();
+				regionSeeker = new RegionSeeker(regions, ia, cramStream, cramHeader);
+			}
 
-			} catch (ReadNotFoundException e) {
-				log.warn("Nothing found for query " + location);
+			if (params.directBAM) {
+				new DirectBAMWriter(params, cramHeader, regions, referenceSource).write(is, regionSeeker, compressionPool);
 				return;
 			}
+
+			RecordWriter recordWriter = new RecordWriter(params, cramHeader, writer, regions, referenceSource);
+			RecordCounter counter = null;
+			if (params.countOnly)
+				counter = new RecordCounter(params.requiredFlags, params.filteringFlags, true, regions);
+			long readTime = 0;
+			long parseTime = 0;
+			long normTime = 0;
+			long time = 0;
+
+			CramNormalizer n = new CramNormalizer(cramHeader.getSamFileHeader(), referenceSource);
+
+			byte[] ref = null;
+			int prevSeqId = -1;
+			int readCounter = 0;
+
+			LinkedList<Future<DecodedContainer>> inFlight = new LinkedList<Future<DecodedContainer>>();
+			if (params.decodeThreads > 1) {
+				log.info("Starting decode thread pool, size ", params.decodeThreads);
+				decodePool = Executors.newFixedThreadPool(params.decodeThreads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+
+			ContainerParser parser = new ContainerParser(cramHeader.getSamFileHeader());
+			boolean enough = false;
+			while (!enough) {
+				if (params.maxContainers-- <= 0)
+					break;
+
+				time = System.nanoTime();
+				if (regionSeeker == null) {
+					if (counter != null)
+						// the blocks are uncompressed only if needed for counting:
+						c = PartialContainerIO.readContainer(cramHeader.getVersion().major, is);
+					else
+						c = ContainerIO.readContainer(cramHeader.getVersion(), is);
+					if (c.isEOF())
+						break;
+				} else {
+					// random access, only containers overlapping the regions:
+					c = regionSeeker.next();
+					if (c == null)
+						break;
+				}
+
+				readTime += System.nanoTime() - time;
+
+				if (counter != null) {
+					if (counter.needsMates() && PartialContainerIO.isPartial(c))
+						c = regionSeeker.reread(c, 0, c.landmarks.length - 1);
+					enough = counter.count(c);
+					continue;
+				}
+
+				SAMSequenceRecord regionSequence = null;
+				switch (c.sequenceId) {
+				case SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX:
+				case -2:
+					ref = new byte[] {};
+					break;
+
+				default:
+					if (regions != null) {
+						// only the part of the reference covered by the container
+						// will be loaded by the decoder:
+						regionSequence = cramHeader.getSamFileHeader().getSequence(c.sequenceId);
+						ref = null;
+					} else if (prevSeqId < 0 || prevSeqId != c.sequenceId) {
+						SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(c.sequenceId);
+						log.info("Loading reference sequence " + sequence.getSequenceName());
+						ref = referenceSource.getReferenceBases(sequence, true);
+						prevSeqId = c.sequenceId;
+					}
+					break;
+				}
+
+				if (decodePool == null) {
+					ContainerDecoder decoder = new ContainerDecoder(c, ref, parser, n);
+					if (regionSequence != null)
+						decoder.setRegionReference(referenceSource, regionSequence, regionSeeker);
+					DecodedContainer d = decoder.call();
+					parseTime += d.parseTime;
+					normTime += d.normTime;
+					enough = recordWriter.write(d);
+				} else {
+					// the parser keeps unsynchronized timing stats, so each decoder
+					// running on the pool gets its own:
+					ContainerDecoder decoder = new ContainerDecoder(c, ref, new ContainerParser(
+							cramHeader.getSamFileHeader()), new CramNormalizer(cramHeader.getSamFileHeader(),
+							referenceSource), true);
+					if (regionSequence != null)
+						decoder.setRegionReference(referenceSource, regionSequence, regionSeeker);
+					inFlight.add(decodePool.submit(decoder));
+
+					while (!enough && !inFlight.isEmpty()
+							&& (inFlight.size() > 2 * params.decodeThreads || inFlight.getFirst().isDone())) {
+						DecodedContainer d = getDecodedContainer(inFlight.removeFirst());
+						d.shiftIndexes(readCounter);
+						readCounter += d.records.size();
+						parseTime += d.parseTime;
+						normTime += d.normTime;
+						enough = recordWriter.write(d);
+					}
+				}
+			}
+
+			while (!enough && !inFlight.isEmpty()) {
+				DecodedContainer d = getDecodedContainer(inFlight.removeFirst());
+				d.shiftIndexes(readCounter);
+				readCounter += d.records.size();
+				parseTime += d.parseTime;
+				normTime += d.normTime;
+				enough = recordWriter.write(d);
+			}
+
+			if (counter != null) {
+				System.out.printf("READS: %d; BASES: %d\n", counter.getRecordCount(), counter.getBaseCount());
+			}
+
+			log.warn(String.format("TIMES: io %ds, parse %ds, norm %ds, convert %ds, BAM write %ds",
+					readTime / 1000000000, parseTime / 1000000000, normTime / 1000000000,
+					recordWriter.samTime / 1000000000, recordWriter.writeTime / 1000000000));
+		} finally {
+			if (decodePool != null)
+				decodePool.shutdownNow();
+			if (writer != null)
+				writer.close();
+			if (compressionPool != null)
+				compressionPool.shutdown();
 		}
+	}
 
-		long recordCount = 0;
-		long baseCount = 0;
-		long readTime = 0;
-		long parseTime = 0;
-		long normTime = 0;
-		long samTime = 0;
-		long writeTime = 0;
-		long time = 0;
-		ArrayList<CramCompressionRecord> cramRecords = new ArrayList<CramCompressionRecord>(10000);
+	private static DecodedContainer getDecodedContainer(Future<DecodedContainer> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
 
-		CramNormalizer n = new CramNormalizer(cramHeader.getSamFileHeader(), referenceSource);
+	private static class DecodedContainer {
+		Container container;
+		ArrayList<CramCompressionRecord> records;
+		byte[] ref;
+		/**
+		 * Zero-based reference position of the first base in the ref array.
+		 */
+		int refOffset = 0;
+		/**
+		 * True if the ref array may hold only a part of the sequence.
+		 */
+		boolean refRegion = false;
+		/**
+		 * Read names before normalization, null if the indexes don't need
+		 * shifting.
+		 */
+		String[] names;
+		long parseTime;
+		long normTime;
 
-		byte[] ref = null;
-		int prevSeqId = -1;
+		/**
+		 * Shift the record indexes and the generated read names by the number
+		 * of records decoded before this container.
+		 */
+		void shiftIndexes(int readCounter) {
+			if (names == null || readCounter == 0)
+				return;
+			for (int i = 0; i < names.length; i++) {
+				CramCompressionRecord r = records.get(i);
+				r.index += readCounter;
+				if (r.readName != names[i])
+					r.readName = String.valueOf(Integer.valueOf(r.readName) + readCounter);
+			}
+		}
+	}
 
-		ContainerParser parser = new ContainerParser(cramHeader.getSamFileHeader());
-		while (true) {
-			if (params.maxContainers-- <= 0)
-				break;
+	/**
+	 * Parses and normalizes records of a container. The normalizer assigns
+	 * sequential record indexes which are also used to generate missing read
+	 * names. When containers are decoded out of order each decoder gets its own
+	 * normalizer and the indexes and generated names are shifted later by the
+	 * number of records in the preceding containers.
+	 * <p>
+	 * If a region reference is set, only the part of the reference sequence
+	 * covered by the container records is loaded instead of the whole sequence.
+	 * If the container has been read only partially, more slices are read
+	 * until all mates linked to the decoded records are found.
+	 */
+	private static class ContainerDecoder implements Callable<DecodedContainer> {
+		private Container container;
+		private byte[] ref;
+		private ContainerParser parser;
+		private CramNormalizer normalizer;
+		private boolean shiftIndexes;
+		private ReferenceSource referenceSource;
+		private SAMSequenceRecord regionSequence;
+		private RegionSeeker seeker;
+
+		ContainerDecoder(Container container, byte[] ref, ContainerParser parser, CramNormalizer normalizer) {
+			this(container, ref, parser, normalizer, false);
+		}
 
-			time = System.nanoTime();
-			c = ContainerIO.readContainer(cramHeader.getVersion(), is);
-			if (c.isEOF())
-				break;
+		ContainerDecoder(Container container, byte[] ref, ContainerParser parser, CramNormalizer normalizer,
+				boolean shiftIndexes) {
+			this.container = container;
+			this.ref = ref;
+			this.parser = parser;
+			this.normalizer = normalizer;
+			this.shiftIndexes = shiftIndexes;
+		}
 
-			readTime += System.nanoTime() - time;
+		void setRegionReference(ReferenceSource referenceSource, SAMSequenceRecord sequence, RegionSeeker seeker) {
+			this.referenceSource = referenceSource;
+			this.regionSequence = sequence;
+			this.seeker = seeker;
+		}
 
-			// for random access check if the sequence is the one we are looking
-			// for:
-			if (location != null && location.sequenceId != c.sequenceId)
-				break;
+		private void loadRegion(DecodedContainer d) {
+			// only the slices read from the container count:
+			long start = Long.MAX_VALUE;
+			long end = Long.MIN_VALUE;
+			for (Slice s : container.slices) {
+				if (s.sequenceId != regionSequence.getSequenceIndex())
+					continue;
+				start = Math.min(start, s.alignmentStart);
+				end = Math.max(end, (long) s.alignmentStart + s.alignmentSpan - 1);
+			}
+			for (CramCompressionRecord r : d.records) {
+				if (r.sequenceId != regionSequence.getSequenceIndex() || r.alignmentStart < 1)
+					continue;
+				start = Math.min(start, r.alignmentStart);
+				end = Math.max(end, r.getAlignmentEnd());
+			}
+
+			ReferenceRegion region = referenceSource.getRegion(regionSequence, start, end);
+			if (region == null)
+				throw new RuntimeException("Reference sequence not found: " + regionSequence.getSequenceName());
+			d.ref = region.array;
+			d.refOffset = region.refOffset();
+			d.refRegion = true;
+		}
+
+		/**
+		 * Check if the records are linked to mates in the slices that have
+		 * not been read.
+		 *
+		 * @return two flags: mates missing before and after the records
+		 */
+		private static boolean[] findMissingMates(List<CramCompressionRecord> records) {
+			boolean[] missing = new boolean[2];
+			boolean[] linked = new boolean[records.size()];
+			for (int i = 0; i < records.size(); i++) {
+				CramCompressionRecord r = records.get(i);
+				if (!r.isHasMateDownStream())
+					continue;
+				int next = i + r.recordsToNextFragment + 1;
+				if (next < records.size())
+					linked[next] = true;
+				else
+					missing[1] = true;
+			}
+
+			for (int i = 0; i < records.size(); i++) {
+				CramCompressionRecord r = records.get(i);
+				// attached records which are not the head of a mate chain must
+				// be linked from an upstream record:
+				if (!r.isDetached() && !linked[i] && (!r.isHasMateDownStream() || !r.isFirstSegment()))
+					missing[0] = true;
+			}
+			return missing;
+		}
+
+		private void parse(DecodedContainer d) throws IllegalArgumentException, IllegalAccessException {
+			d.records = new ArrayList<CramCompressionRecord>(container.nofRecords);
+			parser.getRecords(container, d.records, ValidationStringency.SILENT);
+
+			while (seeker != null && PartialContainerIO.isPartial(container)) {
+				boolean[] missing = findMissingMates(d.records);
+				int first = container.slices[0].index;
+				int last = container.slices[container.slices.length - 1].index;
+				if (missing[0] && first > 0)
+					first--;
+				if (missing[1] && last < container.landmarks.length - 1)
+					last++;
+				if (first == container.slices[0].index && last == container.slices[container.slices.length - 1].index)
+					break;
 
-			if (params.countOnly && location == null && params.requiredFlags == 0 && params.filteringFlags == 0) {
-				recordCount += c.nofRecords;
-				baseCount += c.bases;
-				continue;
+				try {
+					container = seeker.reread(container, first, last);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				d.container = container;
+				d.records.clear();
+				parser.getRecords(container, d.records, ValidationStringency.SILENT);
+			}
+		}
+
+		@Override
+		public DecodedContainer call() throws IllegalArgumentException, IllegalAccessException {
+			DecodedContainer d = new DecodedContainer();
+			d.container = container;
+			d.ref = ref;
+
+			long time = System.nanoTime();
+			parse(d);
+			d.parseTime = System.nanoTime() - time;
+
+			if (regionSequence != null)
+				loadRegion(d);
+
+			if (shiftIndexes) {
+				d.names = new String[d.records.size()];
+				for (int i = 0; i < d.names.length; i++)
+					d.names[i] = d.records.get(i).readName;
 			}
 
 			time = System.nanoTime();
-			cramRecords.clear();
-			parser.getRecords(c, cramRecords, ValidationStringency.SILENT);
-			parseTime += System.nanoTime() - time;
-
-			switch (c.sequenceId) {
-			case SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX:
-			case -2:
-				ref = new byte[] {};
-				break;
-
-			default:
-				if (prevSeqId < 0 || prevSeqId != c.sequenceId) {
-					SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(c.sequenceId);
-					log.info("Loading reference sequence " + sequence.getSequenceName());
-					ref = referenceSource.getReferenceBases(sequence, true);
-					Utils.upperCase(ref);
-					prevSeqId = c.sequenceId;
+			normalizer.normalize(d.records, d.ref, d.refOffset, container.header.substitutionMatrix);
+			d.normTime = System.nanoTime() - time;
+			return d;
+		}
+	}
+
+	/**
+	 * Reads containers overlapping a list of sorted non-overlapping regions.
+	 * The stream is positioned using the index for each region, but never
+	 * moved back to a container that has already been returned, so that every
+	 * container is read and decoded at most once.
+	 * <p>
+	 * With a CRAI index only the slices listed in the index as overlapping one
+	 * of the regions are read from a container, the other slices are skipped
+	 * without reading their blocks.
+	 */
+	private static class RegionSeeker {
+		private List<AlignmentSliceQuery> regions;
+		private IndexAggregate index;
+		private SeekableStream stream;
+		private CramHeader cramHeader;
+
+		private int current = 0;
+		private boolean positioned = false;
+		private long readUpTo = 0;
+		/**
+		 * Slice offsets to read by container offset, null if the index does
+		 * not describe slices.
+		 */
+		private Map<Long, Set<Integer>> slicesByContainer;
+
+		RegionSeeker(List<AlignmentSliceQuery> regions, IndexAggregate index, SeekableStream stream,
+				CramHeader cramHeader) {
+			this.regions = regions;
+			this.index = index;
+			this.stream = stream;
+			this.cramHeader = cramHeader;
+
+			if (index.getCrai() != null) {
+				slicesByContainer = new HashMap<Long, Set<Integer>>();
+				for (AlignmentSliceQuery region : regions) {
+					for (Entry e : index.getCrai().find(region.sequenceId, region.start,
+							region.end - region.start + 1)) {
+						Set<Integer> offsets = slicesByContainer.get(e.containerStartOffset);
+						if (offsets == null) {
+							offsets = new HashSet<Integer>();
+							slicesByContainer.put(e.containerStartOffset, offsets);
+						}
+						offsets.add(e.sliceOffset);
+					}
 				}
-				break;
 			}
+		}
+
+		/**
+		 * @return the next container to decode or null if all regions are done
+		 */
+		Container next() throws IOException {
+			synchronized (stream) {
+				return readNext();
+			}
+		}
+
+		/**
+		 * Read the container again with a different range of slices. The
+		 * stream position is preserved.
+		 *
+		 * @param container
+		 *            a container returned by {@link #next()}
+		 * @param first
+		 *            index of the first slice to read
+		 * @param last
+		 *            index of the last slice to read
+		 * @return a new container with the slices
+		 */
+		Container reread(Container container, int first, int last) throws IOException {
+			synchronized (stream) {
+				long position = stream.position();
+				stream.seek(container.offset);
+				Container c = ContainerIO.readContainerHeader(cramHeader.getVersion().major, stream);
+				c.offset = container.offset;
+				PartialContainerIO.readSlices(cramHeader.getVersion().major, c, stream, first, last);
+				stream.seek(position);
+				return c;
+			}
+		}
+
+		private Container readNext() throws IOException {
+			while (current < regions.size()) {
+				AlignmentSliceQuery region = regions.get(current);
+				if (!positioned) {
+					log.info("Seeking for the query " + region.toString());
+					long offset = index.seek(region.sequenceId, region.start, region.end, stream);
+					if (offset < 0) {
+						log.warn("Nothing found for query " + region);
+						current++;
+						continue;
+					}
+					if (offset < readUpTo)
+						stream.seek(readUpTo);
+					positioned = true;
+				}
+
+				long offset = stream.position();
+				Container c = ContainerIO.readContainerHeader(cramHeader.getVersion().major, stream);
+				if (c.isEOF() || c.sequenceId != region.sequenceId || c.alignmentStart > region.end) {
+					current++;
+					positioned = false;
+					continue;
+				}
+				c.offset = offset;
+
+				Set<Integer> sliceOffsets = null;
+				if (slicesByContainer != null) {
+					sliceOffsets = slicesByContainer.get(offset);
+					if (sliceOffsets == null) {
+						// not in the index for any of the regions:
+						stream.seek(stream.position() + c.containerByteSize);
+						readUpTo = stream.position();
+						continue;
+					}
+				}
+				PartialContainerIO.readSlices(cramHeader.getVersion().major, c, stream, sliceOffsets);
+				log.debug(String.format("Read %d of %d slices of the container at %d", c.slices.length,
+						c.landmarks.length, offset));
+				readUpTo = stream.position();
+				if (c.slices.length == 0)
+					continue;
+
+				return c;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Converts decoded records into SAM records, filters them and writes them
+	 * out. Containers must be passed in file order.
+	 */
+	private static class RecordWriter {
+		private Params params;
+		private CramHeader cramHeader;
+		private SAMFileWriter writer;
+		private List<AlignmentSliceQuery> regions;
+		private ReferenceSource referenceSource;
+
+		long samTime = 0;
+		long writeTime = 0;
+
+		RecordWriter(Params params, CramHeader cramHeader, SAMFileWriter writer, List<AlignmentSliceQuery> regions,
+				ReferenceSource referenceSource) {
+			this.params = params;
+			this.cramHeader = cramHeader;
+			this.writer = writer;
+			this.regions = regions;
+			this.referenceSource = referenceSource;
+		}
+
+		/**
+		 * Validate the slice reference MD5. For a reference region the MD5 is
+		 * checked against the region bases and only if that is not conclusive
+		 * the whole sequence is loaded.
+		 */
+		private boolean validateRefMD5(Slice s, DecodedContainer d) {
+			if (!d.refRegion)
+				return s.validateRefMD5(d.ref);
+
+			SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(s.sequenceId);
+			int from = s.alignmentStart - 1 - d.refOffset;
+			int len = Math.min(s.alignmentSpan, sequence.getSequenceLength() - s.alignmentStart + 1);
+			if (from >= 0 && len >= 0 && from + len <= d.ref.length) {
+				String md5 = String.format("%032x", new BigInteger(1, s.refMD5));
+				if (md5.equals(Utils.calculateMD5String(d.ref, from, len)))
+					return true;
+			}
+
+			log.info("Loading full reference sequence to validate slice: " + sequence.getSequenceName());
+			byte[] bases = referenceSource.getReferenceBases(sequence, true);
+			return bases != null && s.validateRefMD5(bases);
+		}
 
+		/**
+		 * @return true if no more records are needed
+		 */
+		boolean write(DecodedContainer d) {
+			Container c = d.container;
+			byte[] ref = d.ref;
 			for (int i = 0; i < c.slices.length; i++) {
 				Slice s = c.slices[i];
 				if (s.sequenceId < 0)
 					continue;
-				if (!s.validateRefMD5(ref)) {
-					log.error(String.format(
+				if (!validateRefMD5(s, d)) {
+					String message = String.format(
 							"Reference sequence MD5 mismatch for slice: seq id %d, start %d, span %d, expected MD5 %s",
 							s.sequenceId, s.alignmentStart, s.alignmentSpan,
-							String.format("%032x", new BigInteger(1, s.refMD5))));
+							String.format("%032x", new BigInteger(1, s.refMD5)));
+					log.error(message);
 					if (!params.resilient)
-						System.exit(1);
+						throw new SliceMD5MismatchException(message);
 				}
 			}
 
-			long time1 = System.nanoTime();
-			n.normalize(cramRecords, ref, 0, c.header.substitutionMatrix);
-			long time2 = System.nanoTime();
-			normTime += time2 - time1;
-
 			Cram2SamRecordFactory c2sFactory = new Cram2SamRecordFactory(cramHeader.getSamFileHeader());
 
 			long c2sTime = 0;
 			long sWriteTime = 0;
+			long time = 0;
 
 			boolean enough = false;
-			for (CramCompressionRecord r : cramRecords) {
+			for (CramCompressionRecord r : d.records) {
 				// enforcing a special way to calculate template size:
 				restoreMateInfo(r);
 
-				// check if the record ends before the query start:
-				if (location != null && r.sequenceId == location.sequenceId && r.getAlignmentEnd() < location.start)
-					continue;
+				if (regions != null) {
+					// we got all the reads for random access:
+					if (AlignmentSliceQuery.isAfter(regions, r.sequenceId, r.alignmentStart)) {
+						enough = true;
+						break;
+					}
 
-				// we got all the reads for random access:
-				if (location != null && location.sequenceId == r.sequenceId && location.end < r.alignmentStart) {
-					enough = true;
-					break;
+					if (AlignmentSliceQuery.isOutside(regions, r.sequenceId, r.alignmentStart, r.getAlignmentEnd()))
+						continue;
 				}
 
 				time = System.nanoTime();
@@ -270,14 +800,9 @@ public class Cram2Bam {
 					continue;
 				if (params.filteringFlags != 0 && ((params.filteringFlags & s.getFlags()) != 0))
 					continue;
-				if (params.countOnly) {
-					recordCount++;
-					baseCount += r.readLength;
-					continue;
-				}
 
 				if (ref != null)
-					Utils.calculateMdAndNmTags(s, ref, params.calculateMdTag, params.calculateNmTag);
+					Utils.calculateMdAndNmTags(s, ref, d.refOffset, params.calculateMdTag, params.calculateNmTag);
 				c2sTime += System.nanoTime() - time;
 				samTime += System.nanoTime() - time;
 
@@ -291,21 +816,187 @@ public class Cram2Bam {
 			}
 
 			log.info(String.format("CONTAINER READ: io %dms, parse %dms, norm %dms, convert %dms, BAM write %dms",
-					c.readTime / 1000000, c.parseTime / 1000000, (time2 - time1) / 1000000, c2sTime / 1000000,
+					c.readTime / 1000000, d.parseTime / 1000000, d.normTime / 1000000, c2sTime / 1000000,
 					sWriteTime / 1000000));
 
-			if (enough || (params.outputFile == null && System.out.checkError()))
-				break;
+			return enough || (params.outputFile == null && System.out.checkError());
 		}
+	}
 
-		if (params.countOnly) {
-			System.out.printf("READS: %d; BASES: %d\n", recordCount, baseCount);
+	/**
+	 * Encodes BAM records straight from the CRAM data series with
+	 * {@link ReaderToBAM} and writes them into BGZF blocks, without creating
+	 * {@link CramCompressionRecord} or {@link SAMRecord} objects. Containers
+	 * are decoded one at a time in the calling thread, the reader buffers are
+	 * reused for all of them.
+	 * <p>
+	 * Containers read partially for random access are read again in full, so
+	 * that all mates are available.
+	 */
+	private static class DirectBAMWriter {
+		private Params params;
+		private CramHeader cramHeader;
+		private List<AlignmentSliceQuery> regions;
+		private ReferenceSource referenceSource;
+
+		private int refSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+		private byte[] refBases;
+
+		DirectBAMWriter(Params params, CramHeader cramHeader, List<AlignmentSliceQuery> regions,
+				ReferenceSource referenceSource) {
+			this.params = params;
+			this.cramHeader = cramHeader;
+			this.regions = regions;
+			this.referenceSource = referenceSource;
 		}
 
-		writer.close();
+		private byte[] getReference(int seqId) {
+			if (seqId < 0)
+				return new byte[0];
+			if (seqId != refSeqId) {
+				SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(seqId);
+				log.info("Loading reference sequence " + sequence.getSequenceName());
+				byte[] bases = referenceSource.getReferenceBases(sequence, true);
+				if (bases == null)
+					throw new RuntimeException("Reference sequence not found: " + sequence.getSequenceName());
+				refBases = bases;
+				refSeqId = seqId;
+			}
+			return refBases;
+		}
+
+		private static void writeHeader(OutputStream os, SAMFileHeader header) {
+			StringWriter headerTextWriter = new StringWriter();
+			new SAMTextHeaderCodec().encode(headerTextWriter, header);
+			ParallelBAMFileWriter.writeHeader(new BinaryCodec(os), header, headerTextWriter.toString());
+		}
 
-		log.warn(String.format("TIMES: io %ds, parse %ds, norm %ds, convert %ds, BAM write %ds", readTime / 1000000000,
-				parseTime / 1000000000, normTime / 1000000000, samTime / 1000000000, writeTime / 1000000000));
+		void write(InputStream is, RegionSeeker regionSeeker, ExecutorService compressionPool) throws IOException {
+			OutputStream os;
+			if (params.outputFile == null)
+				os = new BufferedOutputStream(System.out);
+			else
+				os = new BufferedOutputStream(new FileOutputStream(params.outputFile));
+			OutputStream bos = null;
+			try {
+				if (compressionPool == null)
+					bos = new BlockCompressedOutputStream(os, params.outputFile, params.bamCompressionLevel);
+				else
+					bos = new ParallelBlockCompressedOutputStream(os, compressionPool, params.bamCompressionLevel,
+							params.bamBlocksInFlight);
+				writeHeader(bos, cramHeader.getSamFileHeader());
+
+				ReaderToBAM reader = new ReaderToBAM(cramHeader.getSamFileHeader()) {
+					@Override
+					protected byte[] refSeqChanged(int seqID) {
+						return getReference(seqID);
+					}
+				};
+				reader.calculateMdTag = params.calculateMdTag;
+				reader.calculateNmTag = params.calculateNmTag;
+				DataReaderFactory f = new DataReaderFactory();
+				SliceInputViews views = new SliceInputViews();
+
+				long readTime = 0;
+				long decodeTime = 0;
+				long writeTime = 0;
+				long time = 0;
+				boolean enough = false;
+				while (!enough) {
+					if (params.maxContainers-- <= 0)
+						break;
+
+					time = System.nanoTime();
+					Container c;
+					if (regionSeeker == null) {
+						c = ContainerIO.readContainer(cramHeader.getVersion(), is);
+						if (c.isEOF())
+							break;
+					} else {
+						c = regionSeeker.next();
+						if (c == null)
+							break;
+						if (PartialContainerIO.isPartial(c))
+							c = regionSeeker.reread(c, 0, c.landmarks.length - 1);
+					}
+					readTime += System.nanoTime() - time;
+
+					time = System.nanoTime();
+					byte[] ref = getReference(c.sequenceId);
+					for (Slice s : c.slices) {
+						if (s.sequenceId < 0 || s.validateRefMD5(getReference(s.sequenceId)))
+							continue;
+						String message = String.format(
+								"Reference sequence MD5 mismatch for slice: seq id %d, start %d, span %d, expected MD5 %s",
+								s.sequenceId, s.alignmentStart, s.alignmentSpan,
+								String.format("%032x", new BigInteger(1, s.refMD5)));
+						log.error(message);
+						if (!params.resilient)
+							throw new SliceMD5MismatchException(message);
+					}
+
+					reader.reset();
+					for (Slice s : c.slices) {
+						views.reset(s);
+						reader.ref = ref;
+						reader.refOffset = 0;
+						reader.prevAlStart = s.alignmentStart;
+						reader.substitutionMatrix = c.header.substitutionMatrix;
+						try {
+							f.buildReader(reader, views.getCoreInputStream(), views.getExternalInputStreams(), c.header,
+									s.sequenceId);
+						} catch (IllegalAccessException e) {
+							throw new RuntimeException(e);
+						}
+						for (int i = 0; i < s.nofRecords; i++)
+							reader.read();
+					}
+					reader.fixMateInfo();
+					decodeTime += System.nanoTime() - time;
+
+					time = System.nanoTime();
+					enough = write(reader, bos);
+					writeTime += System.nanoTime() - time;
+				}
+
+				log.warn(String.format("TIMES: io %ds, decode %ds, BAM write %ds", readTime / 1000000000,
+						decodeTime / 1000000000, writeTime / 1000000000));
+			} finally {
+				// closing the BGZF stream waits for queued blocks and closes os,
+				// os is closed again in case that fails or bos was not created:
+				try {
+					if (bos != null)
+						bos.close();
+				} finally {
+					os.close();
+				}
+			}
+		}
+
+		/**
+		 * @return true if no more records are needed
+		 */
+		private boolean write(ReaderToBAM reader, OutputStream os) throws IOException {
+			for (int i = 0; i < reader.getRecordCount(); i++) {
+				if (regions != null) {
+					int seqId = reader.getSequenceId(i);
+					int start = reader.getAlignmentStart(i);
+					if (AlignmentSliceQuery.isAfter(regions, seqId, start))
+						return true;
+					if (AlignmentSliceQuery.isOutside(regions, seqId, start, reader.getAlignmentEnd(i)))
+						continue;
+				}
+
+				int flags = reader.getFlags(i);
+				if (params.requiredFlags != 0 && ((params.requiredFlags & flags) == 0))
+					continue;
+				if (params.filteringFlags != 0 && ((params.filteringFlags & flags) != 0))
+					continue;
+
+				reader.write(i, os);
+			}
+			return params.outputFile == null && System.out.checkError();
+		}
 	}
 
 	private static void restoreMateInfo(CramCompressionRecord r) {
@@ -340,7 +1031,7 @@ public class Cram2Bam {
 	}
 
 	private static SAMFileWriter createSAMFileWriter(Params params, CramHeader cramHeader,
-			SAMFileWriterFactory samFileWriterFactory) throws IOException {
+			SAMFileWriterFactory samFileWriterFactory, ExecutorService compressionPool) throws IOException {
 		/*
 		 * building sam writer, sometimes we have to go deeper to get to the
 		 * required functionality:
@@ -364,12 +1055,22 @@ public class Cram2Bam {
 			}
 		} else if (params.outputFile == null) {
 			OutputStream os = new BufferedOutputStream(System.out);
-			if (params.outputBAM) {
-				writer = new SAMFileWriterFactory().makeBAMWriter(cramHeader.getSamFileHeader(), true, os);
+			if (params.outputBAM && compressionPool != null) {
+				writer = new ParallelBAMFileWriter(cramHeader.getSamFileHeader(), true, os, compressionPool,
+						params.bamCompressionLevel, params.bamBlocksInFlight);
+			} else if (params.outputBAM) {
+				writer = BAMFileWriterFactory.makeBAMWriter(cramHeader.getSamFileHeader(), true, os,
+						params.bamCompressionLevel);
 			} else {
 				writer = Utils.createSAMTextWriter(samFileWriterFactory, os, cramHeader.getSamFileHeader(),
 						params.printSAMHeader);
 			}
+		} else if (compressionPool != null && params.outputFile.getName().endsWith(".bam")) {
+			writer = new ParallelBAMFileWriter(cramHeader.getSamFileHeader(), true, params.outputFile, compressionPool,
+					params.bamCompressionLevel, params.bamBlocksInFlight);
+		} else if (params.outputFile.getName().endsWith(".bam")) {
+			writer = samFileWriterFactory.makeBAMWriter(cramHeader.getSamFileHeader(), true, params.outputFile,
+					params.bamCompressionLevel);
 		} else {
 			writer = samFileWriterFactory.makeSAMOrBAMWriter(cramHeader.getSamFileHeader(), true, params.outputFile);
 		}
@@ -417,9 +1118,12 @@ public class Cram2Bam {
 		@Parameter(names = { "--calculate-nm-tag" }, description = "Calculate NM tag.")
 		boolean calculateNmTag = false;
 
-		@Parameter(description = "A region to access specified as <sequence name>[:<start inclusive>[-[<stop inclusive>]]")
+		@Parameter(description = "Regions to access specified as <sequence name>[:<start inclusive>[-[<stop inclusive>]]")
 		List<String> locations;
 
+		@Parameter(names = { "--bed-file" }, converter = FileConverter.class, description = "A BED file with regions to access.")
+		File bedFile;
+
 		@Parameter(names = { "--decrypt" }, description = "Decrypt the file.")
 		boolean decrypt = false;
 
@@ -456,6 +1160,21 @@ public class Cram2Bam {
 		@Parameter(names = { "--password", "-p" }, description = "Password to decrypt the file.")
 		public String password;
 
+		@Parameter(names = { "--decode-threads" }, description = "Number of threads to parse and normalize containers with, 1 means all work is done in the main thread.")
+		int decodeThreads = 1;
+
+		@Parameter(names = { "--bam-compression-level" }, description = "BAM compression level from 0 to 9.")
+		int bamCompressionLevel = Defaults.COMPRESSION_LEVEL;
+
+		@Parameter(names = { "--bam-compression-threads" }, description = "Number of threads to compress BAM blocks with, 1 means the blocks are compressed in the writing thread.")
+		int bamCompressionThreads = 1;
+
+		@Parameter(names = { "--bam-blocks-in-flight" }, description = "Maximum number of BAM blocks being compressed or waiting to be written when compressing with more than one thread.", hidden = true)
+		int bamBlocksInFlight = 64;
+
+		@Parameter(names = { "--direct-bam" }, description = "Encode BAM records directly from the CRAM data without creating SAM records. Requires BAM output, decoding is done in the main thread.")
+		boolean directBAM = false;
+
 		@Parameter(names = { "--max-containers" }, description = "Read only specified number of containers.", hidden = true)
 		long maxContainers = Long.MAX_VALUE;
 	}
@@ -15,26 +15,23 @@
  ******************************************************************************/
 package net.sf.cram;
 
-import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceRecord;
-import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.cram.build.CramIO;
 import htsjdk.samtools.cram.encoding.reader.AbstractFastqReader;
+import htsjdk.samtools.cram.encoding.reader.BufferingFastqReader;
 import htsjdk.samtools.cram.encoding.reader.DataReaderFactory;
 import htsjdk.samtools.cram.encoding.reader.MultiFastqOutputter;
 import htsjdk.samtools.cram.encoding.reader.ReaderToFastq;
-import htsjdk.samtools.cram.io.DefaultBitInputStream;
 import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramHeader;
 import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.cram.structure.SliceInputViews;
 import htsjdk.samtools.seekablestream.SeekableFileStream;
 import htsjdk.samtools.util.Log;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -42,8 +39,13 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPOutputStream;
 
@@ -115,6 +117,7 @@ public class Cram2Fastq {
 		CollatingDumper d = new CollatingDumper(sfs, referenceSource, 3, params.fastqBaseName, params.gzip,
 				params.maxRecords, params.reverse, params.defaultQS, brokenPipe);
 		d.prefix = params.prefix;
+		d.threads = params.threads;
 		d.run();
 
 		if (d.exception != null)
@@ -133,6 +136,14 @@ public class Cram2Fastq {
 		protected Exception exception;
 		private boolean reverse = false;
 		protected AtomicBoolean brokenPipe;
+		protected int threads = 1;
+		// slice streams of the decoding threads:
+		private final ThreadLocal<SliceInputViews> sliceInputViews = new ThreadLocal<SliceInputViews>() {
+			@Override
+			protected SliceInputViews initialValue() {
+				return new SliceInputViews();
+			}
+		};
 
 		public Dumper(InputStream cramIS, ReferenceSource referenceSource, int nofStreams, String fastqBaseName,
 				boolean gzip, long maxRecords, boolean reverse, int defaultQS, AtomicBoolean brokenPipe)
@@ -183,6 +194,11 @@ public class Cram2Fastq {
 
 			reader = newReader();
 			reader.reverseNegativeReads = reverse;
+			if (threads > 1) {
+				doRunParallel();
+				return;
+			}
+
 			MAIN_LOOP: while (!brokenPipe.get()
 					&& (container = ContainerIO.readContainer(cramHeader.getVersion(), cramIS)) != null) {
 				if (container.isEOF())
@@ -190,42 +206,9 @@ public class Cram2Fastq {
 				DataReaderFactory f = new DataReaderFactory();
 
 				for (Slice s : container.slices) {
-					if (s.sequenceId != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX && s.sequenceId != -2) {
-						SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(s.sequenceId);
-
-						if (sequence == null)
-							throw new RuntimeException("Null sequence for id: " + s.sequenceId);
-
-						ref = referenceSource.getReferenceBases(sequence, true);
-
-						if (!s.validateRefMD5(ref)) {
-							log.error(String
-									.format("Reference sequence MD5 mismatch for slice: seq id %d, start %d, span %d, expected MD5 %s",
-											s.sequenceId, s.alignmentStart, s.alignmentSpan,
-											String.format("%032x", new BigInteger(1, s.refMD5))));
-							throw new RuntimeException("Reference checksum mismatch.");
-						}
-					} else
-						ref = new byte[0];
-
-					Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
-					for (Integer exId : s.external.keySet()) {
-						inputMap.put(exId, new ByteArrayInputStream(s.external.get(exId).getRawContent()));
-					}
-
-					reader.referenceSequence = ref;
-					reader.prevAlStart = s.alignmentStart;
-					reader.substitutionMatrix = container.header.substitutionMatrix;
-					reader.recordCounter = 0;
-					try {
-						f.buildReader(reader,
-								new DefaultBitInputStream(new ByteArrayInputStream(s.coreBlock.getRawContent())),
-								inputMap, container.header, s.sequenceId);
-					} catch (IllegalArgumentException e) {
-						throw new RuntimeException(e);
-					} catch (IllegalAccessException e) {
-						throw new RuntimeException(e);
-					}
+					ref = getReference(s);
+					validateReference(s, ref);
+					startSlice(f, sliceInputViews.get(), reader, container, s, ref);
 
 					for (int i = 0; i < s.nofRecords; i++) {
 						reader.read();
@@ -243,6 +226,143 @@ public class Cram2Fastq {
 				reader.finish();
 		}
 
+		/**
+		 * Decode slices on a thread pool into {@link BufferingFastqReader}
+		 * buffers. The buffers are replayed into the reader on this thread in
+		 * slice order, so that mate collation and output stay single threaded.
+		 */
+		private void doRunParallel() throws IOException {
+			log.info("Starting slice decode thread pool, size ", threads);
+			ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			LinkedList<Future<BufferingFastqReader>> inFlight = new LinkedList<Future<BufferingFastqReader>>();
+
+			boolean enough = false;
+			try {
+				while (!enough && !brokenPipe.get()
+						&& (container = ContainerIO.readContainer(cramHeader.getVersion(), cramIS)) != null) {
+					if (container.isEOF())
+						break;
+
+					for (Slice s : container.slices)
+						inFlight.add(pool.submit(new SliceDecoder(container, s, getReference(s))));
+
+					while (!enough && !inFlight.isEmpty()
+							&& (inFlight.size() > 2 * threads || inFlight.getFirst().isDone()))
+						enough = replay(inFlight.removeFirst());
+				}
+
+				while (!enough && !brokenPipe.get() && !inFlight.isEmpty())
+					enough = replay(inFlight.removeFirst());
+			} finally {
+				pool.shutdownNow();
+			}
+
+			if (!brokenPipe.get())
+				reader.finish();
+		}
+
+		/**
+		 * Replay decoded reads respecting the max records limit.
+		 *
+		 * @return true if the limit has been reached
+		 */
+		private boolean replay(Future<BufferingFastqReader> future) throws IOException {
+			BufferingFastqReader decoded;
+			try {
+				decoded = future.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+
+			if (maxRecords > -1 && maxRecords < decoded.getReadCalls()) {
+				decoded.replay(maxRecords + 1);
+				return true;
+			}
+
+			decoded.replay(-1);
+			if (maxRecords > -1)
+				maxRecords -= decoded.getReadCalls();
+			containerHasBeenRead();
+			return false;
+		}
+
+		private class SliceDecoder implements Callable<BufferingFastqReader> {
+			private Container container;
+			private Slice slice;
+			private byte[] ref;
+
+			SliceDecoder(Container container, Slice slice, byte[] ref) {
+				this.container = container;
+				this.slice = slice;
+				this.ref = ref;
+			}
+
+			@Override
+			public BufferingFastqReader call() throws Exception {
+				validateReference(slice, ref);
+
+				BufferingFastqReader bufferingReader = new BufferingFastqReader(reader);
+				startSlice(new DataReaderFactory(), sliceInputViews.get(), bufferingReader, container, slice, ref);
+				for (int i = 0; i < slice.nofRecords; i++)
+					bufferingReader.read();
+
+				return bufferingReader;
+			}
+		}
+
+		private byte[] getReference(Slice s) {
+			if (s.sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX || s.sequenceId == -2)
+				return new byte[0];
+
+			SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(s.sequenceId);
+			if (sequence == null)
+				throw new RuntimeException("Null sequence for id: " + s.sequenceId);
+
+			return referenceSource.getReferenceBases(sequence, true);
+		}
+
+		private static void validateReference(Slice s, byte[] ref) {
+			if (s.sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX || s.sequenceId == -2)
+				return;
+
+			if (!s.validateRefMD5(ref)) {
+				log.error(String.format(
+						"Reference sequence MD5 mismatch for slice: seq id %d, start %d, span %d, expected MD5 %s",
+						s.sequenceId, s.alignmentStart, s.alignmentSpan,
+						String.format("%032x", new BigInteger(1, s.refMD5))));
+				throw new RuntimeException("Reference checksum mismatch.");
+			}
+		}
+
+		private static void startSlice(DataReaderFactory f, SliceInputViews views, AbstractFastqReader reader,
+				Container container, Slice s, byte[] ref) {
+			views.reset(s);
+
+			reader.referenceSequence = ref;
+			reader.prevAlStart = s.alignmentStart;
+			reader.substitutionMatrix = container.header.substitutionMatrix;
+			reader.recordCounter = 0;
+			try {
+				f.buildReader(reader, views.getCoreInputStream(), views.getExternalInputStreams(), container.header,
+						s.sequenceId);
+			} catch (IllegalArgumentException e) {
+				throw new RuntimeException(e);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
 		@Override
 		public void run() {
 			try {
@@ -285,8 +405,11 @@ public class Cram2Fastq {
 		}
 	}
 
+	/**
+	 * Pairs mates with {@link MultiFastqOutputter}. Mates not found in its
+	 * cache are collated on disk and written out at the end.
+	 */
 	private static class CollatingDumper extends Dumper {
-		private FileOutput fo = new FileOutput();
 		private String prefix;
 		private long counter = 1;
 		private MultiFastqOutputter multiFastqOutputter;
@@ -298,10 +421,6 @@ public class Cram2Fastq {
 			super(cramIS, referenceSource, nofStreams, fastqBaseName, gzip, maxRecords, reverse, defaultQS, brokenPipe);
 			this.defaultQS = defaultQS;
 			this.brokenPipe = brokenPipe;
-			fo.file = File.createTempFile(fastqBaseName == null ? "overflow.bam" : fastqBaseName + ".overflow.bam",
-					".tmp");
-			fo.file.deleteOnExit();
-			fo.outputStream = new BufferedOutputStream(new FileOutputStream(fo.file));
 		}
 
 		@Override
@@ -309,7 +428,7 @@ public class Cram2Fastq {
 			if (multiFastqOutputter != null) {
 				counter = multiFastqOutputter.getCounter();
 			}
-			multiFastqOutputter = new MultiFastqOutputter(outputs, fo, referenceSource, cramHeader.getSamFileHeader(),
+			multiFastqOutputter = new MultiFastqOutputter(outputs, referenceSource, cramHeader.getSamFileHeader(),
 					counter);
 			if (prefix != null) {
 				multiFastqOutputter.setPrefix(prefix.getBytes());
@@ -322,83 +441,6 @@ public class Cram2Fastq {
 		@Override
 		protected void containerHasBeenRead() throws IOException {
 		}
-
-		@Override
-		public void doRun() throws IOException {
-			super.doRun();
-
-			fo.close();
-
-			if (fo.empty)
-				return;
-
-			log.info("Sorting overflow BAM: ", fo.file.length());
-			SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
-			SAMFileReader r = new SAMFileReader(fo.file);
-			SAMRecordIterator iterator = r.iterator();
-			if (!iterator.hasNext()) {
-				r.close();
-				fo.file.delete();
-				return;
-			}
-
-			SAMRecord r1 = iterator.next();
-			SAMRecord r2 = null;
-			counter = multiFastqOutputter.getCounter();
-			log.info("Counter=" + counter);
-			while (!brokenPipe.get() && iterator.hasNext()) {
-				r2 = iterator.next();
-				if (r1.getReadName().equals(r2.getReadName())) {
-					print(r1, r2);
-					counter++;
-					r1 = null;
-					if (!iterator.hasNext())
-						break;
-					r1 = iterator.next();
-					r2 = null;
-				} else {
-					print(r1, 0);
-					r1 = r2;
-					r2 = null;
-					counter++;
-				}
-			}
-			if (r1 != null)
-				print(r1, 0);
-			r.close();
-			fo.file.delete();
-		}
-
-		private void print(SAMRecord r1, SAMRecord r2) throws IOException {
-			if (r1.getFirstOfPairFlag()) {
-				print(r1, 1);
-				print(r2, 2);
-			} else {
-				print(r1, 2);
-				print(r2, 1);
-			}
-		}
-
-		private void print(SAMRecord r, int index) throws IOException {
-			OutputStream os = outputs[index];
-			os.write('@');
-			if (prefix != null) {
-				os.write(prefix.getBytes());
-				os.write('.');
-				os.write(String.valueOf(counter).getBytes());
-				os.write(' ');
-			}
-			os.write(r.getReadName().getBytes());
-			if (index > 0) {
-				os.write('/');
-				os.write(48 + index);
-			}
-			os.write('\n');
-			os.write(r.getReadBases());
-			os.write("\n+\n".getBytes());
-			os.write(r.getBaseQualityString().getBytes());
-			os.write('\n');
-		}
 	}
 
 	private static class FileOutput extends OutputStream {
@@ -480,6 +522,9 @@ public class Cram2Fastq {
 
 		@Parameter(names = { "--skip-md5-check" }, description = "Skip MD5 checks when reading the header.")
 		public boolean skipMD5Checks = false;
+
+		@Parameter(names = { "--threads", "-t" }, description = "Number of threads to decode slices with, 1 means all work is done in the main thread.")
+		int threads = 1;
 	}
 
 }
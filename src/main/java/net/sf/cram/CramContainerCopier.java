@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.io.CountingInputStream;
+import htsjdk.samtools.cram.structure.Block;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.ContainerIO;
+import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.cram.index.CramIndex;
+
+/**
+ * Merges CRAM files by copying their containers without decoding them. This
+ * is only possible if the files have the same CRAM version and sequence
+ * dictionary, and their .crai indexes show that concatenating them in some
+ * order gives a coordinate sorted file: each file must end before the next one
+ * starts, and only the last file may have unplaced reads.
+ * <p>
+ * The containers of each file are copied byte for byte, only the file header
+ * and the EOF container are written anew. Records refer to read groups by
+ * their index in the header, so all files must have the same read groups in
+ * the same order. The record counters of the copied containers are not
+ * rewritten and restart with each file, therefore all containers must store
+ * read names: names generated from the counters would repeat. A .crai index
+ * for the result is built from the input indexes by shifting their container
+ * offsets.
+ *
+ * @author vadim
+ */
+public class CramContainerCopier {
+	private static Log log = Log.getInstance(CramContainerCopier.class);
+
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+	private static class Input {
+		File file;
+		CramHeader cramHeader;
+		List<CramIndex.Entry> entries;
+		int firstSequence, firstStart;
+		int lastSequence, lastEnd;
+	}
+
+	private final List<Input> inputs;
+
+	private CramContainerCopier(List<Input> inputs) {
+		this.inputs = inputs;
+	}
+
+	/**
+	 * Check that the files can be merged by copying their containers.
+	 *
+	 * @return a copier for the files in the order they must be copied, or
+	 *         null if the files cannot be merged this way
+	 */
+	public static CramContainerCopier prepare(List<File> files) throws IOException {
+		List<Input> inputs = new ArrayList<Input>(files.size());
+		for (File file : files) {
+			File indexFile = new File(file.getAbsolutePath() + ".crai");
+			if (!indexFile.exists()) {
+				log.info("No .crai index found for " + file.getAbsolutePath());
+				return null;
+			}
+
+			Input input = new Input();
+			input.file = file;
+			InputStream is = new BufferedInputStream(new FileInputStream(file));
+			try {
+				input.cramHeader = CramIO.readCramHeader(is);
+			} catch (RuntimeException e) {
+				log.info("Not a CRAM file: " + file.getAbsolutePath());
+				return null;
+			} finally {
+				is.close();
+			}
+
+			is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				input.entries = CramIndex.readIndex(is);
+			} finally {
+				is.close();
+			}
+
+			if (input.entries.isEmpty())
+				continue;
+			setRange(input);
+			inputs.add(input);
+		}
+
+		if (inputs.isEmpty())
+			return null;
+
+		Input first = inputs.get(0);
+		for (Input input : inputs) {
+			if (!input.cramHeader.getVersion().equals(first.cramHeader.getVersion())) {
+				log.info("CRAM versions differ: " + first.file.getAbsolutePath() + ", " + input.file.getAbsolutePath());
+				return null;
+			}
+			if (!isSameDictionary(first.cramHeader.getSamFileHeader(), input.cramHeader.getSamFileHeader())) {
+				log.info("Sequence dictionaries differ: " + first.file.getAbsolutePath() + ", "
+						+ input.file.getAbsolutePath());
+				return null;
+			}
+			if (!isSameReadGroups(first.cramHeader.getSamFileHeader(), input.cramHeader.getSamFileHeader())) {
+				log.info("Read groups differ: " + first.file.getAbsolutePath() + ", " + input.file.getAbsolutePath());
+				return null;
+			}
+		}
+
+		for (Input input : inputs) {
+			if (!hasReadNames(input)) {
+				log.info("Read names not stored: " + input.file.getAbsolutePath());
+				return null;
+			}
+		}
+
+		Collections.sort(inputs, byFirstPosition);
+		for (int i = 1; i < inputs.size(); i++) {
+			Input previous = inputs.get(i - 1);
+			Input input = inputs.get(i);
+			if (previous.lastSequence == Integer.MAX_VALUE
+					|| compare(previous.lastSequence, previous.lastEnd, input.firstSequence, input.firstStart) > 0) {
+				log.info("Files overlap: " + previous.file.getAbsolutePath() + ", " + input.file.getAbsolutePath());
+				return null;
+			}
+		}
+
+		return new CramContainerCopier(inputs);
+	}
+
+	/**
+	 * Find the first and the last alignment positions of a file from its
+	 * index. Unplaced reads sort after all references.
+	 */
+	private static void setRange(Input input) {
+		input.firstSequence = input.lastSequence = -1;
+		for (CramIndex.Entry e : input.entries) {
+			int sequence = e.sequenceId < 0 ? Integer.MAX_VALUE : e.sequenceId;
+			int end = e.alignmentStart + Math.max(e.alignmentSpan, 1) - 1;
+			if (input.firstSequence < 0
+					|| compare(sequence, e.alignmentStart, input.firstSequence, input.firstStart) < 0) {
+				input.firstSequence = sequence;
+				input.firstStart = e.alignmentStart;
+			}
+			if (input.lastSequence < 0 || compare(sequence, end, input.lastSequence, input.lastEnd) > 0) {
+				input.lastSequence = sequence;
+				input.lastEnd = end;
+			}
+		}
+	}
+
+	private static int compare(int sequence1, int position1, int sequence2, int position2) {
+		if (sequence1 != sequence2)
+			return sequence1 < sequence2 ? -1 : 1;
+		return position1 < position2 ? -1 : (position1 == position2 ? 0 : 1);
+	}
+
+	private static Comparator<Input> byFirstPosition = new Comparator<Input>() {
+
+		@Override
+		public int compare(Input o1, Input o2) {
+			return CramContainerCopier.compare(o1.firstSequence, o1.firstStart, o2.firstSequence, o2.firstStart);
+		}
+	};
+
+	private static boolean isSameDictionary(SAMFileHeader h1, SAMFileHeader h2) {
+		List<SAMSequenceRecord> s1 = h1.getSequenceDictionary().getSequences();
+		List<SAMSequenceRecord> s2 = h2.getSequenceDictionary().getSequences();
+		if (s1.size() != s2.size())
+			return false;
+
+		for (int i = 0; i < s1.size(); i++) {
+			SAMSequenceRecord r1 = s1.get(i);
+			SAMSequenceRecord r2 = s2.get(i);
+			if (!r1.getSequenceName().equals(r2.getSequenceName())
+					|| r1.getSequenceLength() != r2.getSequenceLength())
+				return false;
+
+			String md5 = r1.getAttribute(SAMSequenceRecord.MD5_TAG);
+			String otherMd5 = r2.getAttribute(SAMSequenceRecord.MD5_TAG);
+			if (md5 != null && otherMd5 != null && !md5.equalsIgnoreCase(otherMd5))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read group ids must match in the same order, as records store the index
+	 * of their read group in the header.
+	 */
+	private static boolean isSameReadGroups(SAMFileHeader h1, SAMFileHeader h2) {
+		List<SAMReadGroupRecord> g1 = h1.getReadGroups();
+		List<SAMReadGroupRecord> g2 = h2.getReadGroups();
+		if (g1.size() != g2.size())
+			return false;
+
+		for (int i = 0; i < g1.size(); i++) {
+			if (!g1.get(i).getReadGroupId().equals(g2.get(i).getReadGroupId()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check the compression header of every container of a file for stored
+	 * read names.
+	 */
+	private static boolean hasReadNames(Input input) throws IOException {
+		long length = input.file.length();
+		int major = input.cramHeader.getVersion().major;
+		CountingInputStream is = new CountingInputStream(new BufferedInputStream(new FileInputStream(input.file)));
+		try {
+			CramIO.readCramHeader(is);
+			while (is.getCount() < length) {
+				Container container = ContainerIO.readContainerHeader(major, is);
+				if (container.isEOF())
+					break;
+
+				long dataStart = is.getCount();
+				CompressionHeader header = new CompressionHeader();
+				header.read(Block.readFromInputStream(major, is).getRawContent());
+				if (!header.readNamesIncluded)
+					return false;
+				skipFully(is, container.containerByteSize - (is.getCount() - dataStart));
+			}
+		} finally {
+			is.close();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the files in the order they will be copied
+	 */
+	public List<File> getFiles() {
+		List<File> files = new ArrayList<File>(inputs.size());
+		for (Input input : inputs)
+			files.add(input.file);
+		return files;
+	}
+
+	/**
+	 * @return SAM headers of the files in the order they will be copied
+	 */
+	public List<SAMFileHeader> getHeaders() {
+		List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(inputs.size());
+		for (Input input : inputs)
+			headers.add(input.cramHeader.getSamFileHeader());
+		return headers;
+	}
+
+	/**
+	 * Write a CRAM file with the given header and the containers of all
+	 * inputs.
+	 *
+	 * @param header
+	 *            the SAM header for the output, its sequence dictionary must
+	 *            be the same as of the inputs
+	 * @param name
+	 *            the name to record in the CRAM file definition
+	 * @param indexFile
+	 *            the file to write the .crai index to, null for no index
+	 */
+	public void copy(SAMFileHeader header, String name, OutputStream os, File indexFile) throws IOException {
+		CramHeader cramHeader = new CramHeader(inputs.get(0).cramHeader.getVersion(), name, header);
+		// the length returned by CramIO.writeCramHeader is not exact, measure
+		// the header here as the index needs exact container offsets:
+		ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
+		CramIO.writeCramHeader(cramHeader, headerStream);
+		headerStream.writeTo(os);
+		long offset = headerStream.size();
+
+		CramIndex index = new CramIndex();
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		for (Input input : inputs) {
+			long time = System.nanoTime();
+			CountingInputStream is = new CountingInputStream(new BufferedInputStream(new FileInputStream(input.file)));
+			long dataStart, dataEnd;
+			try {
+				CramIO.readCramHeader(is);
+				dataStart = is.getCount();
+				dataEnd = findEOFContainer(input, is);
+			} finally {
+				is.close();
+			}
+
+			InputStream fis = new FileInputStream(input.file);
+			try {
+				skipFully(fis, dataStart);
+				for (long remaining = dataEnd - dataStart; remaining > 0;) {
+					int read = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read < 0)
+						throw new RuntimeException("Unexpected end of file: " + input.file.getAbsolutePath());
+					os.write(buffer, 0, read);
+					remaining -= read;
+				}
+			} finally {
+				fis.close();
+			}
+
+			long shift = offset - dataStart;
+			for (CramIndex.Entry e : input.entries)
+				e.containerStartOffset += shift;
+			index.addEntries(input.entries);
+			offset += dataEnd - dataStart;
+
+			log.info(String.format("Copied %d bytes from %s in %dms.", dataEnd - dataStart,
+					input.file.getAbsolutePath(), (System.nanoTime() - time) / 1000000));
+		}
+
+		CramIO.issueEOF(cramHeader.getVersion(), os);
+		os.close();
+
+		if (indexFile != null) {
+			OutputStream indexStream = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			index.writeTo(indexStream);
+			indexStream.close();
+		}
+	}
+
+	/**
+	 * Walk the container headers to the EOF container or the end of the file.
+	 *
+	 * @return offset of the EOF container or the file length
+	 */
+	private static long findEOFContainer(Input input, CountingInputStream is) throws IOException {
+		long length = input.file.length();
+		int major = input.cramHeader.getVersion().major;
+		while (is.getCount() < length) {
+			long offset = is.getCount();
+			Container container = ContainerIO.readContainerHeader(major, is);
+			if (container.isEOF())
+				return offset;
+			skipFully(is, container.containerByteSize);
+		}
+		return length;
+	}
+
+	private static void skipFully(InputStream is, long n) throws IOException {
+		while (n > 0) {
+			long skipped = is.skip(n);
+			if (skipped <= 0) {
+				if (is.read() < 0)
+					throw new IOException("Unexpected end of stream.");
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
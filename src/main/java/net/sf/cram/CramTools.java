@@ -26,6 +26,7 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.build.CompressionProfile;
 import htsjdk.samtools.util.Log;
 import net.sf.cram.common.Utils;
 import net.sf.cram.index.CramIndexer;
@@ -143,4 +144,12 @@ public class CramTools {
 			return ValidationStringency.valueOf(s.toUpperCase());
 		}
 	}
+
+	public static class CompressionProfileConverter implements IStringConverter<CompressionProfile> {
+
+		@Override
+		public CompressionProfile convert(String s) {
+			return CompressionProfile.valueOf(s.toUpperCase());
+		}
+	}
 }
@@ -22,6 +22,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -35,6 +36,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -45,11 +47,14 @@ import com.beust.jcommander.Parameters;
 import com.beust.jcommander.converters.FileConverter;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
+import net.sf.cram.common.Utils;
+import net.sf.cram.ref.ReferenceSource;
 
 public class Crambone {
 	private static Log log = Log.getInstance(Crambone.class);
 	private static File cramtoolsJar;
 	private static String javaOpts;
+	private static InProcessRunner inProcessRunner;
 
 	private static void printUsage(JCommander jc) {
 		StringBuilder sb = new StringBuilder();
@@ -82,6 +87,12 @@ public class Crambone {
 
 		cramtoolsJar = params.jarFile;
 		javaOpts = "-Xmx" + params.maxMem_MB + "m";
+		if (params.inProcess)
+			inProcessRunner = new InProcessRunner(params.refFile, params.maxMem_MB);
+		else if (cramtoolsJar == null) {
+			System.out.println("Cramtools jar file is required unless running in process.");
+			System.exit(1);
+		}
 
 		log.info("Starting thread pool, size ", params.poolSize);
 		BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>();
@@ -141,6 +152,8 @@ public class Crambone {
 			executor.awaitTermination(60, TimeUnit.SECONDS);
 		}
 
+		if (inProcessRunner != null)
+			log.info("Reference cache: " + inProcessRunner.referenceSource.getCache());
 		log.info("Done.");
 	}
 
@@ -174,9 +187,12 @@ public class Crambone {
 		@Parameter(names = { "--pool-size", "-P" }, required = false, description = "Thread pool size. Number of cores by default.")
 		int poolSize = Runtime.getRuntime().availableProcessors();
 
-		@Parameter(names = { "--max-mem-MB", "-X" }, required = false, description = "-Xmx java option in megabytes.")
+		@Parameter(names = { "--max-mem-MB", "-X" }, required = false, description = "-Xmx java option in megabytes. When running in process, the memory budget of a task taken from the heap of this JVM.")
 		int maxMem_MB = 4000;
 
+		@Parameter(names = { "--in-process" }, required = false, description = "Run the tasks on the thread pool of this JVM instead of starting a java process for each. The reference is loaded once into a cache shared by all tasks, its size is set with -Dreference-cache.size.")
+		boolean inProcess = false;
+
 		@Parameter(names = { "-h", "--help" }, required = false, description = "Print help and quit")
 		boolean help = false;
 
@@ -310,6 +326,18 @@ public class Crambone {
 			return new ProcessBuilder(list);
 		}
 
+		@Override
+		protected void runInProcess(ReferenceSource referenceSource) throws Exception {
+			Bam2Cram.Params params = new Bam2Cram.Params();
+			params.bamFile = bamFile;
+			params.referenceFasta = refFile;
+			params.outputCramFile = cramFile;
+			if (model != null && model.length() > 0 && !model.matches("^\\s+$"))
+				params.qsSpec = model;
+
+			Bam2Cram.run(params, referenceSource);
+		}
+
 		@Override
 		public String toString() {
 			if (cmd != null)
@@ -359,6 +387,21 @@ public class Crambone {
 			return new ProcessBuilder(list);
 		}
 
+		@Override
+		protected void runInProcess(ReferenceSource referenceSource) throws Exception {
+			Cram2Bam.Params params = new Cram2Bam.Params();
+			params.cramURL = cramFile.getAbsolutePath();
+			params.reference = refFile;
+			params.outputFile = bamFile;
+
+			InputStream is = Utils.openCramInputStream(params.cramURL, false, null);
+			try {
+				Cram2Bam.run(params, is, referenceSource);
+			} finally {
+				is.close();
+			}
+		}
+
 		@Override
 		public String toString() {
 			if (cmd != null)
@@ -413,6 +456,12 @@ public class Crambone {
 
 		protected abstract ProcessBuilder createProcessBuilder();
 
+		/**
+		 * Do the same work as the process would, but in the calling thread.
+		 * An exception means the task has failed.
+		 */
+		protected abstract void runInProcess(ReferenceSource referenceSource) throws Exception;
+
 		protected void createAndWriteDefaultMessageToMarkerFile(File file) throws IOException {
 			log.debug("Creating file ", file.getAbsolutePath());
 			file.createNewFile();
@@ -443,28 +492,34 @@ public class Crambone {
 
 				createAndWriteDefaultMessageToMarkerFile(inProgressMarkerFile);
 
-				ProcessBuilder b = createProcessBuilder();
-				b.directory(destDir);
-				// the following works only in java7, so we'll take a
-				// b.redirectError(errorFile);
-				// b.redirectOutput(outputFile);
-
-				log.debug("Executing ", toString());
-
-				Process process = b.start();
-				processOutput = new BufferedOutputStream(new FileOutputStream(outputFile));
-				processError = new BufferedOutputStream(new FileOutputStream(errorFile));
-				pump = new ProcessPump(process, processOutput, processError);
-				process.waitFor();
-				exitCode = process.exitValue();
-				process.destroy();
-
-				for (Future<Long> f : pump.outputs) {
-					try {
-						log.debug("Process output size " + f.get());
-					} catch (Exception e) {
-						log.error("Process output pump exception.", e);
-						throw e;
+				if (inProcessRunner != null) {
+					processOutput = new BufferedOutputStream(new FileOutputStream(outputFile));
+					processError = new BufferedOutputStream(new FileOutputStream(errorFile));
+					exitCode = inProcessRunner.run(this, processError);
+				} else {
+					ProcessBuilder b = createProcessBuilder();
+					b.directory(destDir);
+					// the following works only in java7, so we'll take a
+					// b.redirectError(errorFile);
+					// b.redirectOutput(outputFile);
+
+					log.debug("Executing ", toString());
+
+					Process process = b.start();
+					processOutput = new BufferedOutputStream(new FileOutputStream(outputFile));
+					processError = new BufferedOutputStream(new FileOutputStream(errorFile));
+					pump = new ProcessPump(process, processOutput, processError);
+					process.waitFor();
+					exitCode = process.exitValue();
+					process.destroy();
+
+					for (Future<Long> f : pump.outputs) {
+						try {
+							log.debug("Process output size " + f.get());
+						} catch (Exception e) {
+							log.error("Process output pump exception.", e);
+							throw e;
+						}
 					}
 				}
 
@@ -544,6 +599,50 @@ public class Crambone {
 		}
 	}
 
+	/**
+	 * Runs tasks in this JVM with a reference source shared by all of them, so
+	 * that reference sequences are loaded once into the shared cache. A task
+	 * waits until its memory budget fits into the heap left after the
+	 * reference cache.
+	 */
+	private static class InProcessRunner {
+		private static final long MB = 1024 * 1024;
+
+		private final ReferenceSource referenceSource;
+		private final Semaphore memory;
+		private final int taskMemory_MB;
+
+		InProcessRunner(File refFile, int taskMemory_MB) {
+			referenceSource = new ReferenceSource(refFile);
+
+			long heap_MB = (Runtime.getRuntime().maxMemory() - referenceSource.getCache().getMaxBytes()) / MB;
+			this.taskMemory_MB = (int) Math.max(1, Math.min(taskMemory_MB, heap_MB));
+			memory = new Semaphore((int) Math.max(this.taskMemory_MB, heap_MB));
+			log.info(String.format("Running tasks in process: %dMB of heap for tasks, %dMB per task.",
+					memory.availablePermits(), this.taskMemory_MB));
+		}
+
+		/**
+		 * @return 0 if the task has completed, 1 if it has failed, the error
+		 *         is printed to the given stream
+		 */
+		int run(Task task, OutputStream error) throws InterruptedException {
+			memory.acquire(taskMemory_MB);
+			try {
+				log.info("Running in process: ", task);
+				task.runInProcess(referenceSource);
+				return 0;
+			} catch (Throwable t) {
+				PrintStream ps = new PrintStream(error);
+				t.printStackTrace(ps);
+				ps.flush();
+				return 1;
+			} finally {
+				memory.release(taskMemory_MB);
+			}
+		}
+	}
+
 	private static class ProcessPump {
 		ExecutorService es = Executors.newFixedThreadPool(2);
 		List<Future<Long>> outputs = new ArrayList<Future<Long>>();
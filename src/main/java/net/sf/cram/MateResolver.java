@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import htsjdk.samtools.cram.build.CramNormalizer;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Links fragments of the same template within a batch of coordinate sorted
+ * CRAM records and decides which records must be stored detached. Primary and
+ * secondary alignments are mated separately.
+ * <p>
+ * Records are grouped by read name with an open addressing hash table of
+ * record indexes, and the chains of fragments are kept in primitive arrays,
+ * so that no objects are created per record.
+ *
+ * @author vadim
+ *
+ */
+public class MateResolver {
+	private static final int NONE = -1;
+
+	private final CramCompressionRecord[] records;
+	private final int[] hashes;
+	private final int[] next;
+	private final int[] previous;
+	// the last fragment of the chain, set for the first fragments only:
+	private final int[] tails;
+	// first fragment indexes plus one, zero for empty slots:
+	private final int[] table;
+	private final int mask;
+
+	private MateResolver(List<CramCompressionRecord> list) {
+		records = list.toArray(new CramCompressionRecord[list.size()]);
+		hashes = new int[records.length];
+		next = new int[records.length];
+		previous = new int[records.length];
+		tails = new int[records.length];
+		Arrays.fill(next, NONE);
+		Arrays.fill(previous, NONE);
+		Arrays.fill(tails, NONE);
+
+		// load factor at most 0.5:
+		int capacity = Integer.highestOneBit(Math.max(records.length, 1)) << 2;
+		table = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Set detached and mate downstream flags, the number of records to the
+	 * next fragment and the next/previous links of the records.
+	 *
+	 * @param records
+	 *            coordinate sorted records with consecutive indexes
+	 */
+	public static void resolve(List<CramCompressionRecord> records) {
+		MateResolver resolver = new MateResolver(records);
+		resolver.link();
+		resolver.detachUnpredictable();
+		resolver.detachUnmated();
+	}
+
+	private static int hash(CramCompressionRecord r) {
+		int h = r.readName.hashCode() * 31 + (r.isSecondaryAlignment() ? 1 : 0);
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Find the first fragment with the same name and secondary flag, or add
+	 * the record as a first fragment.
+	 *
+	 * @return index of the first fragment, or {@link #NONE} if the record has
+	 *         been added
+	 */
+	private int findOrAdd(int index) {
+		CramCompressionRecord r = records[index];
+		int hash = hashes[index] = hash(r);
+		int slot = hash & mask;
+		while (table[slot] != 0) {
+			int first = table[slot] - 1;
+			CramCompressionRecord f = records[first];
+			if (hashes[first] == hash && f.isSecondaryAlignment() == r.isSecondaryAlignment()
+					&& f.readName.equals(r.readName))
+				return first;
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = index + 1;
+		return NONE;
+	}
+
+	private void link() {
+		for (int i = 0; i < records.length; i++) {
+			CramCompressionRecord r = records[i];
+			if (!r.isMultiFragment()) {
+				r.setDetached(true);
+
+				r.setHasMateDownStream(false);
+				r.recordsToNextFragment = -1;
+				r.next = null;
+				r.previous = null;
+				continue;
+			}
+
+			int first = findOrAdd(i);
+			if (first == NONE) {
+				tails[i] = i;
+				continue;
+			}
+
+			int tail = tails[first];
+			CramCompressionRecord prev = records[tail];
+			prev.recordsToNextFragment = r.index - prev.index - 1;
+			next[tail] = i;
+			previous[i] = tail;
+			tails[first] = i;
+
+			prev.next = r;
+			r.previous = prev;
+			prev.setHasMateDownStream(true);
+			r.setHasMateDownStream(false);
+			r.setDetached(false);
+			prev.setDetached(false);
+		}
+	}
+
+	/**
+	 * Detach templates whose mate info cannot be restored from the fragments:
+	 * incomplete templates, unexpected template sizes or mate references.
+	 */
+	private void detachUnpredictable() {
+		for (int i = 0; i < records.length; i++) {
+			if (next[i] == NONE || previous[i] != NONE)
+				continue;
+			CramCompressionRecord r = records[i];
+			int last = tails[i];
+
+			if (r.isFirstSegment() && records[last].isLastSegment()) {
+				final int templateLength = CramNormalizer.computeInsertSize(r, records[last]);
+				if (r.templateSize == templateLength) {
+					last = next[i];
+					while (next[last] != NONE) {
+						if (records[last].templateSize != -templateLength)
+							break;
+
+						last = next[last];
+					}
+					if (records[last].templateSize != -templateLength)
+						detach(i);
+				} else
+					detach(i);
+			} else
+				detach(i);
+
+			if (r.mateSequenceID != records[last].sequenceId || r.sequenceId != records[last].mateSequenceID)
+				detach(i);
+		}
+	}
+
+	/**
+	 * Detach first fragments of templates with no other fragments in the
+	 * batch.
+	 */
+	private void detachUnmated() {
+		for (int i = 0; i < records.length; i++) {
+			if (tails[i] != i)
+				continue;
+			CramCompressionRecord r = records[i];
+			r.setDetached(true);
+
+			r.setHasMateDownStream(false);
+			r.recordsToNextFragment = -1;
+			r.next = null;
+			r.previous = null;
+		}
+	}
+
+	private void detach(int index) {
+		do {
+			CramCompressionRecord r = records[index];
+			r.setDetached(true);
+
+			r.setHasMateDownStream(false);
+			r.recordsToNextFragment = -1;
+		} while ((index = next[index]) != NONE);
+	}
+}
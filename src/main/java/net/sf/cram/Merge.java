@@ -16,18 +16,26 @@
 package net.sf.cram;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 
+import htsjdk.samtools.BAMFileWriterFactory;
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMProgramRecord;
@@ -40,12 +48,18 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.seekablestream.SeekableFileStream;
+import htsjdk.samtools.cram.build.CompressionProfile;
+import htsjdk.samtools.cram.lossy.QualityScorePreservation;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import net.sf.cram.CramTools.LevelConverter;
 import net.sf.cram.CramTools.ValidationStringencyConverter;
 import net.sf.cram.FixBAMFileHeader.MD5MismatchError;
+import net.sf.cram.common.ParallelBAMFileWriter;
+import net.sf.cram.common.ParallelBlockCompressedOutputStream;
+import net.sf.cram.common.ReadAheadIterator;
 import net.sf.cram.common.Utils;
 import net.sf.cram.index.BAMQueryFilteringIterator;
 import net.sf.cram.index.CramIndex;
@@ -57,6 +71,7 @@ import com.beust.jcommander.Parameters;
 import com.beust.jcommander.converters.FileConverter;
 
 public class Merge {
+	private static Log log = Log.getInstance(Merge.class);
 
 	public static final String COMMAND = "merge";
 
@@ -91,6 +106,25 @@ public class Merge {
 			System.exit(1);
 		}
 
+		if (params.cramFormat && params.samFormat) {
+			System.out.println("Only one of SAM and CRAM output formats can be chosen.");
+			System.exit(1);
+		}
+
+		if (params.copyContainers && params.samFormat) {
+			System.out.println("Copied containers are written in CRAM format, SAM output format cannot be chosen.");
+			System.exit(1);
+		}
+
+		// the record merge fallback must write CRAM as well:
+		if (params.copyContainers)
+			params.cramFormat = true;
+
+		if (params.bamCompressionLevel < Deflater.NO_COMPRESSION || params.bamCompressionLevel > Deflater.BEST_COMPRESSION) {
+			System.out.println("Invalid BAM compression level, expecting an integer from 0 to 9.");
+			System.exit(1);
+		}
+
 		ReferenceSource referenceSource = null;
 		if (params.reference != null) {
 			System.setProperty("reference", params.reference.getAbsolutePath());
@@ -101,9 +135,18 @@ public class Merge {
 				referenceSource = new ReferenceSource(new File(prop));
 		}
 
+		if (params.copyContainers) {
+			if (params.region != null)
+				log.warn("Containers cannot be copied for a region, merging records instead.");
+			else if (copyContainers(params, referenceSource))
+				return;
+		}
+
 		AlignmentSliceQuery query = params.region == null ? null : new AlignmentSliceQuery(params.region);
 
-		List<RecordSource> list = readFiles(params.files, params.reference, query, params.validationLevel);
+		SamReaderFactory readerFactory = SamReaderFactory.make().referenceSource(referenceSource)
+				.validationStringency(params.validationLevel);
+		List<RecordSource> list = readFiles(params.files, readerFactory, query);
 
 		StringBuffer mergeComment = new StringBuffer("Merged from:");
 		for (RecordSource source : list) {
@@ -111,7 +154,10 @@ public class Merge {
 		}
 
 		resolveCollisions(list);
-		SAMFileHeader header = mergeHeaders(list);
+		List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(list.size());
+		for (RecordSource source : list)
+			headers.add(source.reader.getFileHeader());
+		SAMFileHeader header = mergeHeaders(headers);
 		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
 		FixBAMFileHeader fix = new FixBAMFileHeader(referenceSource);
 		fix.setConfirmMD5(true);
@@ -126,25 +172,36 @@ public class Merge {
 		fix.addCramtoolsPG(header);
 		header.addComment(mergeComment.toString());
 
+		// the pool is only needed for BAM output:
+		ExecutorService compressionPool = null;
+		if (!params.cramFormat && !params.samFormat && params.bamCompressionThreads > 1)
+			compressionPool = ParallelBlockCompressedOutputStream.createExecutor(params.bamCompressionThreads);
+
 		SAMFileWriter writer = null;
-		if (params.outFile != null)
+		if (params.cramFormat)
+			writer = createCramWriter(params, header, referenceSource);
+		else if (compressionPool != null) {
+			if (params.outFile != null)
+				writer = new ParallelBAMFileWriter(header, true, params.outFile, compressionPool,
+						params.bamCompressionLevel, params.bamBlocksInFlight);
+			else
+				writer = new ParallelBAMFileWriter(header, true, new BufferedOutputStream(System.out), compressionPool,
+						params.bamCompressionLevel, params.bamBlocksInFlight);
+		} else if (params.outFile != null)
 			if (!params.samFormat)
-				writer = new SAMFileWriterFactory().makeBAMWriter(header, true, params.outFile);
+				writer = new SAMFileWriterFactory().makeBAMWriter(header, true, params.outFile,
+						params.bamCompressionLevel);
 			else
 				writer = new SAMFileWriterFactory().makeSAMWriter(header, true, params.outFile);
 		else if (!params.samFormat) {
-			// hack to write BAM format to stdout:
-			File file = File.createTempFile("bam", null);
-			file.deleteOnExit();
-			SAMFileWriter bamWriter = new SAMFileWriterFactory().makeBAMWriter(header, true, System.out);
-			writer = bamWriter;
+			writer = BAMFileWriterFactory.makeBAMWriter(header, true, System.out, params.bamCompressionLevel);
 		}
 
 		else {
 			writer = Utils.createSAMTextWriter(null, System.out, header, params.printSAMHeader);
 		}
 
-		MergedIterator mergedIterator = new MergedIterator(list, header);
+		MergedIterator mergedIterator = new MergedIterator(list, header, params.readAhead);
 		while (mergedIterator.hasNext()) {
 			SAMRecord record = mergedIterator.next();
 			writer.addAlignment(record);
@@ -155,13 +212,91 @@ public class Merge {
 			source.close();
 
 			writer.close();
+		if (compressionPool != null)
+			compressionPool.shutdown();
+
+		if (referenceSource != null)
+			log.info("Reference cache: " + referenceSource.getCache());
 	}
 
-	private static List<RecordSource> readFiles(List<File> files, File refFile,
-			AlignmentSliceQuery query, ValidationStringency ValidationStringency) throws IOException {
+	/**
+	 * Merge CRAM files by copying their containers if their indexes show that
+	 * they do not overlap, see {@link CramContainerCopier}. The .crai index of
+	 * the output file is written next to it.
+	 *
+	 * @return false if the files cannot be merged this way
+	 */
+	private static boolean copyContainers(Params params, ReferenceSource referenceSource) throws IOException {
+		for (File file : params.files)
+			IOUtil.assertFileIsReadable(file);
+
+		CramContainerCopier copier = CramContainerCopier.prepare(params.files);
+		if (copier == null) {
+			log.warn("Containers cannot be copied, merging records instead.");
+			return false;
+		}
+
+		StringBuffer mergeComment = new StringBuffer("Merged from:");
+		for (File file : copier.getFiles())
+			mergeComment.append(" ").append(file.getAbsolutePath());
+
+		SAMFileHeader header = mergeHeaders(copier.getHeaders());
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		new FixBAMFileHeader(referenceSource).addCramtoolsPG(header);
+		header.addComment(mergeComment.toString());
+
+		OutputStream os;
+		String name;
+		File indexFile = null;
+		if (params.outFile != null) {
+			os = new BufferedOutputStream(new FileOutputStream(params.outFile));
+			name = params.outFile.getName();
+			indexFile = new File(params.outFile.getAbsolutePath() + ".crai");
+		} else {
+			os = new BufferedOutputStream(System.out);
+			name = "STDOUT";
+		}
+		copier.copy(header, name, os, indexFile);
+		return true;
+	}
+
+	/**
+	 * Create a writer encoding the merged records into CRAM containers as they
+	 * arrive.
+	 */
+	private static SAMFileWriter createCramWriter(Params params, SAMFileHeader header, ReferenceSource referenceSource)
+			throws IOException {
+		QualityScorePreservation preservation;
+		if (params.losslessQS)
+			preservation = new QualityScorePreservation("*40");
+		else
+			preservation = new QualityScorePreservation(params.qsSpec);
+
+		ContainerPlanner planner = new ContainerPlanner(params.maxContainerSize, params.maxContainerBases,
+				params.maxContainerSpan, params.targetContainerBytes);
+
+		OutputStream os;
+		String name;
+		if (params.outFile != null) {
+			os = new BufferedOutputStream(new FileOutputStream(params.outFile));
+			name = params.outFile.getName();
+		} else {
+			os = new BufferedOutputStream(System.out);
+			name = "STDOUT";
+		}
+		return new StreamingCramWriter(os, header, name, referenceSource, preservation, params.cramThreads,
+				params.maxSliceSize, params.compressionProfile, planner, params.captureAllTags, params.captureTags,
+				params.ignoreTags);
+	}
+
+	/**
+	 * Open the input files with the given reader factory, so that CRAM files
+	 * are decoded with the same reference source as used for the output.
+	 */
+	private static List<RecordSource> readFiles(List<File> files, SamReaderFactory readerFactory,
+			AlignmentSliceQuery query) throws IOException {
 		List<RecordSource> sources = new ArrayList<Merge.RecordSource>(files.size());
 
-		SAMFileReader.setDefaultValidationStringency(ValidationStringency);
 		for (File file : files) {
 			IOUtil.assertFileIsReadable(file);
 
@@ -172,7 +307,7 @@ public class Merge {
 
 			File index = new File(file.getAbsolutePath() + ".bai");
 			if (index.exists()) {
-				SAMFileReader reader = new SAMFileReader(file, index);
+				SamReader reader = readerFactory.open(SamInputResource.of(file).index(index));
 				source.reader = reader;
 				if (query == null)
 					source.it = reader.iterator();
@@ -181,7 +316,7 @@ public class Merge {
 			} else {
 				index = new File(file.getAbsolutePath() + ".crai");
 				if (index.exists()) {
-					SAMFileReader reader = new SAMFileReader(file);
+					SamReader reader = readerFactory.open(file);
 					source.reader = reader;
 					if (query == null)
 						source.it = reader.iterator();
@@ -204,14 +339,14 @@ public class Merge {
 						bis.close();
 
 						SamInputResource sir = SamInputResource.of(is);
-						final SamReader samReader = SamReaderFactory.make().referenceSequence(refFile).open(sir);
+						final SamReader samReader = readerFactory.open(sir);
 						is.seek(entries.get(0).containerStartOffset);
 						BAMQueryFilteringIterator bit = new BAMQueryFilteringIterator(samReader.iterator(), query.sequence, query.start,
 								query.end, BAMQueryFilteringIterator.QueryType.CONTAINED, reader.getFileHeader());
 						source.it = bit;
 					}
 				} else {
-					SAMFileReader reader = new SAMFileReader(file);
+					SamReader reader = readerFactory.open(file);
 					source.reader = reader;
 					source.it = reader.iterator();
 				}
@@ -251,7 +386,7 @@ public class Merge {
 		private String path;
 		private String id;
 		private CloseableIterator<SAMRecord> it;
-		private SAMFileReader reader;
+		private SamReader reader;
 
 		public RecordSource() {
 		}
@@ -265,16 +400,14 @@ public class Merge {
 			if (it != null)
 				it.close();
 			if (reader != null)
-				reader.close();
+				CloserUtil.close(reader);
 		}
 
 	}
 
-	private static SAMFileHeader mergeHeaders(List<RecordSource> sources) {
+	private static SAMFileHeader mergeHeaders(List<SAMFileHeader> headers) {
 		SAMFileHeader header = new SAMFileHeader();
-		for (RecordSource source : sources) {
-			SAMFileHeader h = source.reader.getFileHeader();
-
+		for (SAMFileHeader h : headers) {
 			for (SAMSequenceRecord seq : h.getSequenceDictionary().getSequences()) {
 				if (header.getSequenceDictionary().getSequence(seq.getSequenceName()) == null)
 					header.addSequence(seq);
@@ -297,21 +430,41 @@ public class Merge {
 		return header;
 	}
 
+	/**
+	 * Merges coordinate sorted sources into a single coordinate sorted stream.
+	 * The source with the smallest (reference index, alignment start) of its
+	 * current record is picked from a priority queue, ties are broken by the
+	 * order of the sources. Records without a reference go last. References
+	 * are ordered as in the merged header. Each source may be read ahead on
+	 * its own thread.
+	 */
 	private static class MergedIterator implements SAMRecordIterator {
 		private static String delim = ".";
-		private RecordSource[] sources;
-		private SAMRecord[] records;
-		private SAMRecord next;
 		private SAMFileHeader header;
+		private SourceCursor[] cursors;
+		private PriorityQueue<SourceCursor> queue;
+		private SAMRecord next;
 
-		public MergedIterator(List<RecordSource> list, SAMFileHeader header) {
+		/**
+		 * @param readAhead
+		 *            number of records to read ahead for each source on a
+		 *            separate thread, 0 to read in the merging thread
+		 */
+		public MergedIterator(List<RecordSource> list, SAMFileHeader header, int readAhead) {
 			this.header = header;
-			sources = list.toArray(new RecordSource[list.size()]);
-			records = new SAMRecord[list.size()];
-
-			for (int i = 0; i < records.length; i++) {
-				if (sources[i].it.hasNext())
-					records[i] = sources[i].it.next();
+			cursors = new SourceCursor[list.size()];
+			queue = new PriorityQueue<SourceCursor>(Math.max(1, list.size()), byPosition);
+			for (int i = 0; i < cursors.length; i++) {
+				RecordSource source = list.get(i);
+				CloseableIterator<SAMRecord> it = source.it;
+				if (readAhead > 0) {
+					int batchSize = Math.max(1, readAhead / READ_AHEAD_BATCHES);
+					it = new ReadAheadIterator<SAMRecord>(source.it, batchSize, READ_AHEAD_BATCHES, "merge-read-ahead-"
+							+ source.id);
+				}
+				cursors[i] = new SourceCursor(i, source, it, header);
+				if (cursors[i].advance())
+					queue.add(cursors[i]);
 			}
 
 			advance();
@@ -319,12 +472,13 @@ public class Merge {
 
 		@Override
 		public void close() {
-			if (sources != null)
-				for (RecordSource source : sources)
-					if (source != null)
-						source.close();
+			if (cursors != null)
+				for (SourceCursor cursor : cursors)
+					if (cursor != null)
+						cursor.close();
 
-			records = null;
+			cursors = null;
+			queue = null;
 			next = null;
 		}
 
@@ -334,31 +488,26 @@ public class Merge {
 		}
 
 		private void advance() {
-			int candidateIndex = getIndexOfMinAlignment();
-			if (candidateIndex < 0) {
+			SourceCursor cursor = queue.poll();
+			if (cursor == null) {
 				next = null;
-			} else {
-				next = records[candidateIndex];
-				SAMSequenceRecord sequence = header.getSequence(next.getReferenceName());
+				return;
+			}
 
-				next.setHeader(header);
+			next = cursor.record;
+			int referenceIndex = cursor.referenceIndex;
+			int mateReferenceIndex = cursor.mapReferenceIndex(next.getMateReferenceIndex());
 
-				next.setReferenceIndex(sequence.getSequenceIndex());
+			next.setHeader(header);
+			next.setReferenceIndex(referenceIndex);
+			next.setReadName(cursor.source.id + delim + next.getReadName());
 
-				next.setReadName(sources[candidateIndex].id + delim + next.getReadName());
+			next.setMateReferenceIndex(mateReferenceIndex);
+			if (mateReferenceIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX)
+				next.setMateAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
 
-				if (next.getMateReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-					next.setMateAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
-				} else {
-					SAMSequenceRecord mateSequence = header.getSequence(next.getMateReferenceName());
-					next.setMateReferenceIndex(mateSequence.getSequenceIndex());
-				}
-
-				if (sources[candidateIndex].it.hasNext())
-					records[candidateIndex] = sources[candidateIndex].it.next();
-				else
-					records[candidateIndex] = null;
-			}
+			if (cursor.advance())
+				queue.add(cursor);
 		}
 
 		@Override
@@ -383,23 +532,82 @@ public class Merge {
 			return null;
 		}
 
-		private int getIndexOfMinAlignment() {
-			if (records == null || records.length == 0)
-				return -1;
+		private static Comparator<SourceCursor> byPosition = new Comparator<SourceCursor>() {
+
+			@Override
+			public int compare(SourceCursor o1, SourceCursor o2) {
+				int result = compareInts(o1.sortReferenceIndex, o2.sortReferenceIndex);
+				if (result != 0)
+					return result;
+				result = compareInts(o1.alignmentStart, o2.alignmentStart);
+				if (result != 0)
+					return result;
+				return compareInts(o1.order, o2.order);
+			}
+		};
 
-			int min = Integer.MAX_VALUE;
-			int index = -1;
-			for (int i = 0; i < records.length; i++) {
-				if (records[i] == null)
-					continue;
+		private static int compareInts(int a, int b) {
+			return a < b ? -1 : (a == b ? 0 : 1);
+		}
+	}
 
-				int start = records[i].getAlignmentStart();
-				if (start > 0 && start < min) {
-					min = start;
-					index = i;
-				}
+	private static final int READ_AHEAD_BATCHES = 4;
+
+	/**
+	 * The current record of a source together with its position in the merged
+	 * header.
+	 */
+	private static class SourceCursor {
+		private final int order;
+		private final RecordSource source;
+		private final CloseableIterator<SAMRecord> it;
+		/**
+		 * Source reference index to merged header reference index.
+		 */
+		private final int[] referenceIndexMap;
+
+		private SAMRecord record;
+		private int referenceIndex;
+		private int sortReferenceIndex;
+		private int alignmentStart;
+
+		SourceCursor(int order, RecordSource source, CloseableIterator<SAMRecord> it, SAMFileHeader header) {
+			this.order = order;
+			this.source = source;
+			this.it = it;
+
+			List<SAMSequenceRecord> sequences = source.reader.getFileHeader().getSequenceDictionary().getSequences();
+			referenceIndexMap = new int[sequences.size()];
+			for (int i = 0; i < referenceIndexMap.length; i++)
+				referenceIndexMap[i] = header.getSequenceIndex(sequences.get(i).getSequenceName());
+		}
+
+		int mapReferenceIndex(int sourceIndex) {
+			if (sourceIndex < 0 || sourceIndex >= referenceIndexMap.length)
+				return SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+			return referenceIndexMap[sourceIndex];
+		}
+
+		/**
+		 * @return false if the source is exhausted
+		 */
+		boolean advance() {
+			if (!it.hasNext()) {
+				record = null;
+				return false;
 			}
-			return index;
+			record = it.next();
+			referenceIndex = mapReferenceIndex(record.getReferenceIndex());
+			sortReferenceIndex = referenceIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX ? Integer.MAX_VALUE
+					: referenceIndex;
+			alignmentStart = record.getAlignmentStart();
+			return true;
+		}
+
+		void close() {
+			if (it != source.it)
+				it.close();
+			source.close();
 		}
 	}
 
@@ -414,15 +622,69 @@ public class Merge {
 		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "Path to the reference fasta file, it must be uncompressed and indexed (use 'samtools faidx' for example).")
 		File reference;
 
-		@Parameter(names = { "--output-file" }, converter = FileConverter.class, description = "Path to the output BAM file. Omit for stdout.")
+		@Parameter(names = { "--output-file" }, converter = FileConverter.class, description = "Path to the output BAM or CRAM file. Omit for stdout.")
 		File outFile;
 
 		@Parameter(names = { "--sam-format" }, description = "Output in SAM rather than BAM format.")
 		boolean samFormat = false;
 
+		@Parameter(names = { "--cram-format" }, description = "Output in CRAM rather than BAM format.")
+		boolean cramFormat = false;
+
 		@Parameter(names = { "--sam-header" }, description = "Print SAM file header when output format is text SAM.")
 		boolean printSAMHeader = false;
 
+		@Parameter(names = { "--bam-compression-level" }, description = "BAM compression level from 0 to 9.")
+		int bamCompressionLevel = Defaults.COMPRESSION_LEVEL;
+
+		@Parameter(names = { "--bam-compression-threads" }, description = "Number of threads to compress BAM blocks with, 1 means the blocks are compressed in the writing thread.")
+		int bamCompressionThreads = 1;
+
+		@Parameter(names = { "--bam-blocks-in-flight" }, description = "Maximum number of BAM blocks being compressed or waiting to be written when compressing with more than one thread.", hidden = true)
+		int bamBlocksInFlight = 64;
+
+		@Parameter(names = { "--cram-threads" }, description = "Number of threads to convert and compress CRAM containers with, 1 means all work is done in the main thread.")
+		int cramThreads = 1;
+
+		@Parameter(names = { "--compression-profile" }, description = "CRAM compression speed and size trade off: FAST, BALANCED or ARCHIVAL.", converter = CramTools.CompressionProfileConverter.class)
+		CompressionProfile compressionProfile = CompressionProfile.BALANCED;
+
+		@Parameter(names = { "--lossless-quality-score", "-Q" }, description = "Preserve all quality scores in CRAM output.")
+		boolean losslessQS = false;
+
+		@Parameter(names = { "--lossy-quality-score-spec", "-L" }, description = "A string specifying what quality scores should be preserved in CRAM output.")
+		String qsSpec = "";
+
+		@Parameter(names = { "--ignore-tags" }, description = "Ignore the tags listed in CRAM output, for example 'OQ:XA:XB'")
+		String ignoreTags = "";
+
+		@Parameter(names = { "--capture-tags" }, description = "Capture the tags listed in CRAM output, for example 'OQ:XA:XB'")
+		String captureTags = "";
+
+		@Parameter(names = { "--capture-all-tags" }, description = "Capture all tags in CRAM output.")
+		boolean captureAllTags = false;
+
+		@Parameter(names = { "--max-slice-size" }, hidden = true)
+		int maxSliceSize = 10000;
+
+		@Parameter(names = { "--max-container-size" }, hidden = true)
+		int maxContainerSize = 10000;
+
+		@Parameter(names = { "--max-container-bases" }, description = "Maximum number of bases in a CRAM container, 0 for no limit.")
+		long maxContainerBases = 20000000;
+
+		@Parameter(names = { "--max-container-span" }, description = "Maximum reference span of a CRAM container, 0 for no limit.")
+		int maxContainerSpan = 0;
+
+		@Parameter(names = { "--target-container-bytes" }, description = "Maximum compressed size of a CRAM container estimated from the container cut 32 containers before, 0 for no limit. The estimate does not depend on the number of threads.")
+		long targetContainerBytes = 16 * 1024 * 1024;
+
+		@Parameter(names = { "--read-ahead" }, description = "Number of records to read ahead for each input file on a separate thread, 0 to read all files in one thread.", hidden = true)
+		int readAhead = 1024;
+
+		@Parameter(names = { "--copy-containers" }, description = "Copy CRAM containers without decoding them if the input CRAM files do not overlap according to their .crai indexes, have the same read groups in the same order and store read names. Implies CRAM output format, also when falling back to merging records. Copied read names are kept as they are rather than prefixed with the input file name, so they must not collide between the inputs.")
+		boolean copyContainers = false;
+
 		@Parameter(names = { "--region", "-r" }, description = "Alignment slice specification, for example: chr1:65000-100000.")
 		String region;
 
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.encoding.reader.CountingReader;
+import htsjdk.samtools.cram.encoding.reader.DataReaderFactory;
+import htsjdk.samtools.cram.io.BitInputStream;
+import htsjdk.samtools.cram.io.DefaultBitInputStream;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.EncodingKey;
+import htsjdk.samtools.cram.structure.Slice;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts records and bases of containers without decoding them fully. Only
+ * the bit flags and read lengths are decoded for flag filters, plus alignment
+ * positions and the read features changing the alignment span for regions,
+ * plus the mate data series if the filters include mate flags. Container
+ * headers alone are used if there are no filters at all.
+ * <p>
+ * The counts are the same as of decoding and filtering the records into SAM
+ * records, given the containers are read with
+ * {@link htsjdk.samtools.cram.structure.PartialContainerIO} so that the blocks
+ * of the other data series are never uncompressed.
+ *
+ * @author vadim
+ *
+ */
+public class RecordCounter {
+	/**
+	 * SAM flags restored from mates, all other SAM flags are stored in the
+	 * CRAM bit flags.
+	 */
+	private static final int MATE_FLAGS = SAMFlag.MATE_UNMAPPED.intValue()
+			| SAMFlag.MATE_REVERSE_STRAND.intValue();
+
+	private int requiredFlags;
+	private int filteringFlags;
+	private boolean samFlags;
+	private List<AlignmentSliceQuery> regions;
+	private Set<EncodingKey> required;
+
+	private long recordCount = 0;
+	private long baseCount = 0;
+
+	/**
+	 * @param requiredFlags
+	 *            count only records with any of these flags, 0 for no filter
+	 * @param filteringFlags
+	 *            count only records with none of these flags, 0 for no filter
+	 * @param samFlags
+	 *            filter on SAM flags including mate flags, otherwise on the
+	 *            CRAM bit flags
+	 * @param regions
+	 *            sorted non-overlapping regions as returned by
+	 *            {@link AlignmentSliceQuery#merge(List)}, null to count all
+	 *            records
+	 */
+	public RecordCounter(int requiredFlags, int filteringFlags, boolean samFlags, List<AlignmentSliceQuery> regions) {
+		this.requiredFlags = requiredFlags;
+		this.filteringFlags = filteringFlags;
+		this.samFlags = samFlags;
+		this.regions = regions;
+
+		required = EnumSet.of(EncodingKey.BF_BitFlags, EncodingKey.RL_ReadLength);
+		if (regions != null)
+			required.addAll(EnumSet.of(EncodingKey.RI_RefId, EncodingKey.AP_AlignmentPositionOffset,
+					EncodingKey.FN_NumberOfReadFeatures, EncodingKey.FC_FeatureCode, EncodingKey.IN_Insertion,
+					EncodingKey.SC_SoftClip, EncodingKey.DL_DeletionLength));
+		if (needsMates())
+			required.addAll(EnumSet.of(EncodingKey.CF_CompressionBitFlags, EncodingKey.MF_MateBitFlags,
+					EncodingKey.NF_RecordsToNextFragment));
+	}
+
+	/**
+	 * @return true if the mates must be resolved, which requires all slices of
+	 *         a container
+	 */
+	public boolean needsMates() {
+		return samFlags && ((requiredFlags | filteringFlags) & MATE_FLAGS) != 0;
+	}
+
+	private boolean isHeaderOnly() {
+		return regions == null && requiredFlags == 0 && filteringFlags == 0;
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public long getBaseCount() {
+		return baseCount;
+	}
+
+	/**
+	 * Count the records of the slices read for the container.
+	 *
+	 * @return true if a record after the last region has been found, so that
+	 *         no more containers are needed
+	 * @throws IOException
+	 */
+	public boolean count(Container container) throws IOException {
+		if (isHeaderOnly()) {
+			recordCount += container.nofRecords;
+			baseCount += container.bases;
+			return false;
+		}
+
+		Set<EncodingKey> series = CountingReader.selectDataSeries(container.header, required);
+		Set<Integer> streams = CountingReader.selectStreams(container.header, series);
+
+		int size = 0;
+		for (Slice slice : container.slices)
+			size += slice.nofRecords;
+
+		int[] flags = new int[size];
+		int[] readLengths = new int[size];
+		int[] sequenceIds = new int[size];
+		int[] starts = new int[size];
+		int[] ends = new int[size];
+		// SAM mate flags, known for detached records only until resolved:
+		int[] mateFlags = new int[size];
+		// index of the next fragment, -1 if none, -2 if not attached:
+		int[] links = new int[size];
+
+		int index = 0;
+		CramCompressionRecord r = new CramCompressionRecord();
+		for (Slice slice : container.slices) {
+			Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
+			CountingReader.addInputStreams(inputMap, streams, slice.external);
+			byte[] core = streams.contains(CountingReader.CORE_STREAM) ? slice.coreBlock.getRawContent()
+					: new byte[0];
+			BitInputStream bis = new DefaultBitInputStream(new ByteArrayInputStream(core));
+
+			CountingReader reader = new CountingReader(series);
+			try {
+				new DataReaderFactory().buildReader(reader, bis, inputMap, container.header, slice.sequenceId);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+
+			int alignmentStart = slice.alignmentStart;
+			for (int i = 0; i < slice.nofRecords; i++, index++) {
+				r.compressionFlags = 0;
+				r.mateFlags = 0;
+				r.recordsToNextFragment = -1;
+				reader.read(r);
+
+				flags[index] = r.flags;
+				readLengths[index] = r.readLength;
+				if (r.isMateNegativeStrand())
+					mateFlags[index] |= SAMFlag.MATE_REVERSE_STRAND.intValue();
+				if (r.isMateUnmapped())
+					mateFlags[index] |= SAMFlag.MATE_UNMAPPED.intValue();
+				if (!r.isMultiFragment() || r.isDetached())
+					links[index] = -2;
+				else if (r.isHasMateDownStream())
+					links[index] = index + r.recordsToNextFragment + 1;
+				else
+					links[index] = -1;
+
+				if (regions == null)
+					continue;
+
+				if (container.header.APDelta) {
+					alignmentStart += r.alignmentDelta;
+					r.alignmentStart = alignmentStart;
+				}
+				sequenceIds[index] = r.sequenceId;
+				starts[index] = r.sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX ? 0 : r.alignmentStart;
+				ends[index] = r.isSegmentUnmapped() ? 0 : starts[index] + reader.alignmentSpan - 1;
+			}
+		}
+
+		if (needsMates())
+			resolveMates(flags, links, mateFlags);
+
+		for (int i = 0; i < size; i++) {
+			if (regions != null) {
+				if (AlignmentSliceQuery.isAfter(regions, sequenceIds[i], starts[i]))
+					return true;
+				if (AlignmentSliceQuery.isOutside(regions, sequenceIds[i], starts[i], ends[i]))
+					continue;
+			}
+
+			int f = samFlags ? toSamFlags(flags[i], mateFlags[i]) : flags[i];
+			if (requiredFlags != 0 && (requiredFlags & f) == 0)
+				continue;
+			if (filteringFlags != 0 && (filteringFlags & f) != 0)
+				continue;
+
+			recordCount++;
+			baseCount += readLengths[i];
+		}
+		return false;
+	}
+
+	/**
+	 * Set SAM mate flags of attached records from the linked records, the same way
+	 * as mate info is restored for SAM records: a record takes the flags of the
+	 * next fragment and the last fragment takes the flags of the previous one.
+	 */
+	private static void resolveMates(int[] flags, int[] links, int[] mateFlags) {
+		int[] next = new int[flags.length];
+		int[] previous = new int[flags.length];
+		Arrays.fill(next, -1);
+		Arrays.fill(previous, -1);
+		for (int i = 0; i < flags.length; i++) {
+			if (links[i] == -2) {
+				next[i] = -1;
+				previous[i] = -1;
+			} else if (links[i] >= 0) {
+				if (links[i] >= flags.length)
+					throw new RuntimeException("Mate record not found in the container: " + links[i]);
+				next[i] = links[i];
+				previous[links[i]] = i;
+			}
+		}
+
+		for (int i = 0; i < flags.length; i++) {
+			if (links[i] == -2)
+				continue;
+			int mate = next[i] >= 0 ? next[i] : previous[i];
+			if (mate < 0)
+				continue;
+			mateFlags[i] = 0;
+			if ((flags[mate] & SAMFlag.READ_REVERSE_STRAND.intValue()) != 0)
+				mateFlags[i] |= SAMFlag.MATE_REVERSE_STRAND.intValue();
+			if ((flags[mate] & SAMFlag.READ_UNMAPPED.intValue()) != 0)
+				mateFlags[i] |= SAMFlag.MATE_UNMAPPED.intValue();
+		}
+	}
+
+	private static int toSamFlags(int flags, int mateFlags) {
+		if ((flags & SAMFlag.READ_PAIRED.intValue()) == 0)
+			return flags & ~MATE_FLAGS;
+		return (flags & ~MATE_FLAGS) | mateFlags;
+	}
+}
@@ -7,6 +7,7 @@ import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramCompressionRecord;
 import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.cram.structure.PartialContainerIO;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.RuntimeEOFException;
 
@@ -72,46 +73,38 @@ public class Refless {
 		Log.setGlobalLogLevel(params.logLevel);
 
 		ContainerParser parser = new ContainerParser(cramHeader.getSamFileHeader());
+		RecordCounter counter = null;
+		if (params.countOnly)
+			counter = new RecordCounter(params.requiredFlags, params.filteringFlags, false, null);
 		Container c = null;
-		long recordCount = 0L;
-		long baseCount = 0L;
 		ArrayList<CramCompressionRecord> cramRecords = new ArrayList<CramCompressionRecord>();
 		while (true) {
 			if (params.maxContainers-- <= 0)
 				break;
 
+			if (counter != null) {
+				// only the blocks needed for counting are uncompressed:
+				c = PartialContainerIO.readContainer(cramHeader.getVersion().major, is);
+				if (c.isEOF())
+					break;
+				counter.count(c);
+				continue;
+			}
+
 			c = ContainerIO.readContainer(cramHeader.getVersion(), is);
 			if (c.isEOF())
 				break;
 
-			if (params.countOnly && params.requiredFlags == 0 && params.filteringFlags == 0) {
-				recordCount += c.nofRecords;
-				baseCount += c.bases;
-				continue;
-			}
-
 			cramRecords.clear();
 			try {
 				parser.getRecords(c, cramRecords, ValidationStringency.SILENT);
 			} catch (Exception e) {
 				throw new RuntimeEOFException(e);
 			}
-
-			for (CramCompressionRecord r : cramRecords) {
-				if (params.requiredFlags != 0 && ((params.requiredFlags & r.flags) == 0))
-					continue;
-				if (params.filteringFlags != 0 && ((params.filteringFlags & r.flags) != 0))
-					continue;
-				if (params.countOnly) {
-					recordCount++;
-					baseCount += r.readLength;
-					continue;
-				}
-			}
 		}
 
-		if (params.countOnly)
-			System.out.printf("READS: %d; BASES: %d\n", recordCount, baseCount);
+		if (counter != null)
+			System.out.printf("READS: %d; BASES: %d\n", counter.getRecordCount(), counter.getBaseCount());
 	}
 
 	@Parameters(commandDescription = "CRAM to BAM conversion. ")
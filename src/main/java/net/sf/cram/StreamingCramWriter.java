@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.build.CompressionProfile;
+import htsjdk.samtools.cram.build.ContainerFactory;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.common.CramVersions;
+import htsjdk.samtools.cram.lossy.QualityScorePreservation;
+import htsjdk.samtools.cram.ref.ReferenceTracks;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.ContainerIO;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.cram.ref.ReferenceSource;
+
+/**
+ * A SAM writer that encodes records into CRAM containers as they arrive, the
+ * same way as {@link Bam2Cram} does for a BAM file. Containers are cut by a
+ * {@link ContainerPlanner} and at reference changes, and either built in the
+ * calling thread or by a {@link ContainerPipeline}. Reference bases are taken
+ * from the given reference source, so that a reader decoding CRAM with the
+ * same source does not load them again.
+ *
+ * @author vadim
+ */
+public class StreamingCramWriter implements SAMFileWriter {
+	private static Log log = Log.getInstance(StreamingCramWriter.class);
+
+	private final CramHeader cramHeader;
+	private final OutputStream os;
+	private final ReferenceSource referenceSource;
+	private final QualityScorePreservation preservation;
+	private final int maxSliceSize;
+	private final boolean captureAllTags;
+	private final String captureTags;
+	private final String ignoreTags;
+
+	private final ContainerFactory containerFactory;
+	private final ContainerPlanner planner;
+	private final ContainerPipeline pipeline;
+
+	private List<SAMRecord> samRecords;
+	private int prevSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX - 1;
+	private byte[] ref;
+	private ReferenceTracks tracks;
+	private long offset;
+	private boolean closed = false;
+
+	/**
+	 * Write the CRAM file header straight away.
+	 *
+	 * @param header
+	 *            header of the records, the sequences must have their MD5
+	 *            checksums set
+	 * @param name
+	 *            the name to record in the CRAM file definition
+	 * @param threads
+	 *            number of threads to build containers with, 1 to build them
+	 *            in the calling thread
+	 * @param profile
+	 *            the compression profile for the containers
+	 * @param planner
+	 *            the planner to cut containers
+	 */
+	public StreamingCramWriter(OutputStream os, SAMFileHeader header, String name, ReferenceSource referenceSource,
+			QualityScorePreservation preservation, int threads, int maxSliceSize, CompressionProfile profile,
+			ContainerPlanner planner, boolean captureAllTags, String captureTags, String ignoreTags)
+			throws IOException {
+		this.os = os;
+		this.referenceSource = referenceSource;
+		this.preservation = preservation;
+		this.maxSliceSize = maxSliceSize;
+		this.captureAllTags = captureAllTags;
+		this.captureTags = captureTags;
+		this.ignoreTags = ignoreTags;
+		this.planner = planner;
+
+		cramHeader = new CramHeader(CramVersions.CRAM_v3, name, header);
+		offset = CramIO.writeCramHeader(cramHeader, os);
+		containerFactory = new ContainerFactory(header, maxSliceSize, profile, ContainerPlanner.ESTIMATE_LAG);
+		samRecords = new ArrayList<SAMRecord>(maxSliceSize);
+
+		if (threads > 1)
+			pipeline = new ContainerPipeline(threads, cramHeader, os, offset, containerFactory, preservation,
+					captureAllTags, captureTags, ignoreTags, planner);
+		else
+			pipeline = null;
+	}
+
+	@Override
+	public void addAlignment(SAMRecord samRecord) {
+		try {
+			if (samRecord.getReferenceIndex() != prevSeqId || planner.isFull(samRecord)) {
+				if (!samRecords.isEmpty()) {
+					planner.cut();
+					writeContainer();
+				}
+			}
+
+			if (samRecord.getReferenceIndex() != prevSeqId) {
+				prevSeqId = samRecord.getReferenceIndex();
+				if (prevSeqId != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+					SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(prevSeqId);
+					ref = referenceSource.getReferenceBases(sequence, true);
+					if (ref == null)
+						throw new RuntimeException("Reference sequence not found: " + sequence.getSequenceName());
+					tracks = new ReferenceTracks(sequence.getSequenceIndex(), sequence.getSequenceName(), ref);
+				} else {
+					ref = new byte[0];
+					tracks = new ReferenceTracks(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX,
+							SAMRecord.NO_ALIGNMENT_REFERENCE_NAME, ref);
+				}
+			}
+
+			samRecords.add(samRecord);
+			planner.add(samRecord);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeContainer() throws IOException {
+		if (pipeline != null) {
+			pipeline.submit(samRecords, ref, tracks);
+			samRecords = new ArrayList<SAMRecord>(maxSliceSize);
+			return;
+		}
+
+		long convertNanos = System.nanoTime();
+		List<CramCompressionRecord> records = Bam2Cram.convert(samRecords, cramHeader, ref, tracks, preservation,
+				captureAllTags, captureTags, ignoreTags);
+		convertNanos = System.nanoTime() - convertNanos;
+		samRecords.clear();
+
+		Container container;
+		try {
+			container = containerFactory.buildContainer(records);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		for (Slice s : container.slices)
+			s.setRefMD5(ref);
+		records.clear();
+
+		long len = ContainerIO.writeContainer(cramHeader.getVersion(), container, os);
+		container.offset = offset;
+		offset += len;
+		planner.written(container.bases, len);
+
+		log.info(String.format(
+				"CONTAINER WRITE TIMES: records build time %dms, header build time %dms, slices build time %dms, io time %dms.",
+				convertNanos / 1000000, container.buildHeaderTime / 1000000, container.buildSlicesTime / 1000000,
+				container.writeTime / 1000000));
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return cramHeader.getSamFileHeader();
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progress) {
+	}
+
+	/**
+	 * Write out the remaining records and the EOF container and close the
+	 * stream.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+
+		try {
+			if (!samRecords.isEmpty()) {
+				planner.cut();
+				writeContainer();
+			}
+			if (pipeline != null)
+				offset = pipeline.finish();
+
+			CramIO.issueEOF(cramHeader.getVersion(), os);
+			os.close();
+		} catch (IOException e) {
+			if (pipeline != null)
+				pipeline.abort();
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.common;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriterImpl;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BinaryCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A BAM writer compressing the output with
+ * {@link ParallelBlockCompressedOutputStream}. Sorting is done by
+ * {@link SAMFileWriterImpl} in the same way as for htsjdk BAM writers, BAM
+ * indexing is not supported.
+ *
+ * @author vadim
+ */
+public class ParallelBAMFileWriter extends SAMFileWriterImpl {
+	private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+	private final OutputStream os;
+	private final BinaryCodec codec;
+	private final String filename;
+	private BAMRecordCodec recordCodec;
+
+	/**
+	 * @param filename
+	 *            the name to report in errors, may be null
+	 */
+	public ParallelBAMFileWriter(SAMFileHeader header, boolean presorted, ParallelBlockCompressedOutputStream os,
+			String filename) {
+		this.os = os;
+		this.filename = filename;
+		codec = new BinaryCodec(os);
+		setSortOrder(header.getSortOrder(), presorted);
+		setHeader(header);
+	}
+
+	public ParallelBAMFileWriter(SAMFileHeader header, boolean presorted, OutputStream os, ExecutorService executor,
+			int compressionLevel, int maxBlocksInFlight) {
+		this(header, presorted, new ParallelBlockCompressedOutputStream(os, executor, compressionLevel,
+				maxBlocksInFlight), null);
+	}
+
+	public ParallelBAMFileWriter(SAMFileHeader header, boolean presorted, File file, ExecutorService executor,
+			int compressionLevel, int maxBlocksInFlight) throws IOException {
+		this(header, presorted, new ParallelBlockCompressedOutputStream(new BufferedOutputStream(new FileOutputStream(
+				file)), executor, compressionLevel, maxBlocksInFlight), file.getAbsolutePath());
+	}
+
+	/**
+	 * Write the binary BAM header: magic, header text and the reference
+	 * sequences.
+	 */
+	public static void writeHeader(BinaryCodec codec, SAMFileHeader header, String textHeader) {
+		codec.writeBytes(BAM_MAGIC);
+		codec.writeString(textHeader, true, false);
+		codec.writeInt(header.getSequenceDictionary().size());
+		for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+			codec.writeString(sequence.getSequenceName(), true, true);
+			codec.writeInt(sequence.getSequenceLength());
+		}
+	}
+
+	@Override
+	protected void writeHeader(String textHeader) {
+		writeHeader(codec, getFileHeader(), textHeader);
+	}
+
+	@Override
+	protected void writeAlignment(SAMRecord alignment) {
+		if (recordCodec == null) {
+			recordCodec = new BAMRecordCodec(getFileHeader());
+			recordCodec.setOutputStream(os, filename);
+		}
+		recordCodec.encode(alignment);
+	}
+
+	@Override
+	protected void finish() {
+		codec.close();
+	}
+
+	@Override
+	protected String getFilename() {
+		return filename;
+	}
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.common;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BGZF_ID1;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BGZF_ID2;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BGZF_LEN;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.GZIP_FLG;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.GZIP_ID1;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.GZIP_ID2;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.GZIP_XFL;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.GZIP_XLEN;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A BGZF output stream that deflates blocks on a thread pool and writes the
+ * compressed blocks in the original order. The blocks are the same as written
+ * by {@link htsjdk.samtools.util.BlockCompressedOutputStream}: up to 64KB of
+ * data each, stored uncompressed if deflate does not make them small enough,
+ * and an empty block terminates the stream.
+ * <p>
+ * No more than the given number of blocks are compressed or waiting to be
+ * written at any time, the writing thread waits for the oldest block when the
+ * limit is reached. Several streams may share the same executor.
+ *
+ * @author vadim
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+	/**
+	 * Deflaters of the current thread by compression level.
+	 */
+	private static final ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>() {
+		@Override
+		protected Deflater[] initialValue() {
+			return new Deflater[Deflater.BEST_COMPRESSION + 1];
+		}
+	};
+
+	private final OutputStream os;
+	private final ExecutorService executor;
+	private final int compressionLevel;
+	private final int maxBlocksInFlight;
+
+	private final LinkedList<Future<Block>> inFlight = new LinkedList<Future<Block>>();
+	private final LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+	private byte[] buffer = new byte[DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+	private int bufferLength = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param os
+	 *            the stream to write the compressed blocks to
+	 * @param executor
+	 *            the pool to compress the blocks with
+	 * @param compressionLevel
+	 *            deflate compression level from 0 to 9
+	 * @param maxBlocksInFlight
+	 *            maximum number of blocks submitted for compression but not
+	 *            yet written
+	 */
+	public ParallelBlockCompressedOutputStream(OutputStream os, ExecutorService executor, int compressionLevel,
+			int maxBlocksInFlight) {
+		if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+		if (maxBlocksInFlight < 1)
+			throw new IllegalArgumentException("At least one block in flight is required.");
+
+		this.os = os;
+		this.executor = executor;
+		this.compressionLevel = compressionLevel;
+		this.maxBlocksInFlight = maxBlocksInFlight;
+	}
+
+	/**
+	 * Create a pool of daemon threads for compressing blocks.
+	 */
+	public static ExecutorService createExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BGZF deflater");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[bufferLength++] = (byte) b;
+		if (bufferLength == buffer.length)
+			submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int size = Math.min(len, buffer.length - bufferLength);
+			System.arraycopy(b, off, buffer, bufferLength, size);
+			bufferLength += size;
+			off += size;
+			len -= size;
+			if (bufferLength == buffer.length)
+				submitBlock();
+		}
+	}
+
+	/**
+	 * Compress the buffered data into a block and write out all blocks.
+	 */
+	@Override
+	public void flush() throws IOException {
+		submitBlock();
+		while (!inFlight.isEmpty())
+			writeBlock(inFlight.removeFirst());
+		os.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		flush();
+		os.write(EMPTY_GZIP_BLOCK);
+		os.close();
+		closed = true;
+	}
+
+	private void submitBlock() throws IOException {
+		if (bufferLength == 0)
+			return;
+
+		final byte[] data = buffer;
+		final int length = bufferLength;
+		inFlight.add(executor.submit(new Callable<Block>() {
+			@Override
+			public Block call() {
+				return compress(data, length, compressionLevel);
+			}
+		}));
+
+		buffer = freeBuffers.isEmpty() ? new byte[DEFAULT_UNCOMPRESSED_BLOCK_SIZE] : freeBuffers.removeFirst();
+		bufferLength = 0;
+
+		while (!inFlight.isEmpty() && (inFlight.size() >= maxBlocksInFlight || inFlight.getFirst().isDone()))
+			writeBlock(inFlight.removeFirst());
+	}
+
+	private void writeBlock(Future<Block> future) throws IOException {
+		Block block;
+		try {
+			block = future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		os.write(block.compressed, 0, block.size);
+		freeBuffers.add(block.data);
+	}
+
+	private static class Block {
+		byte[] data;
+		byte[] compressed;
+		int size;
+	}
+
+	private static Block compress(byte[] data, int length, int compressionLevel) {
+		Block block = new Block();
+		block.data = data;
+		block.compressed = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+
+		int compressedSize = deflate(data, length, compressionLevel, block.compressed);
+		if (compressedSize < 0)
+			// too large to fit, store instead:
+			compressedSize = deflate(data, length, Deflater.NO_COMPRESSION, block.compressed);
+		if (compressedSize < 0)
+			throw new IllegalStateException("Failed to fit block into BGZF size limit.");
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(data, 0, length);
+
+		block.size = BLOCK_HEADER_LENGTH + compressedSize + BLOCK_FOOTER_LENGTH;
+		byte[] b = block.compressed;
+		b[0] = GZIP_ID1;
+		b[1] = (byte) GZIP_ID2;
+		b[2] = GZIP_CM_DEFLATE;
+		b[3] = GZIP_FLG;
+		b[8] = GZIP_XFL;
+		b[9] = (byte) GZIP_OS_UNKNOWN;
+		writeShort(b, 10, GZIP_XLEN);
+		b[12] = BGZF_ID1;
+		b[13] = BGZF_ID2;
+		writeShort(b, 14, BGZF_LEN);
+		writeShort(b, 16, block.size - 1);
+		int footer = BLOCK_HEADER_LENGTH + compressedSize;
+		writeInt(b, footer, (int) crc32.getValue());
+		writeInt(b, footer + 4, length);
+		return block;
+	}
+
+	/**
+	 * @return size of the deflated data or -1 if it does not fit into a block
+	 */
+	private static int deflate(byte[] data, int length, int compressionLevel, byte[] out) {
+		Deflater[] threadDeflaters = deflaters.get();
+		Deflater deflater = threadDeflaters[compressionLevel];
+		if (deflater == null) {
+			deflater = new Deflater(compressionLevel, true);
+			threadDeflaters[compressionLevel] = deflater;
+		}
+
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int size = deflater.deflate(out, BLOCK_HEADER_LENGTH, out.length - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH);
+		return deflater.finished() ? size : -1;
+	}
+
+	private static void writeShort(byte[] b, int at, int value) {
+		b[at] = (byte) (value & 0xFF);
+		b[at + 1] = (byte) ((value >> 8) & 0xFF);
+	}
+
+	private static void writeInt(byte[] b, int at, int value) {
+		writeShort(b, at, value);
+		writeShort(b, at + 2, value >>> 16);
+	}
+}
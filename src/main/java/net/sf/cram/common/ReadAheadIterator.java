@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.common;
+
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An iterator that reads another iterator ahead on its own daemon thread.
+ * Elements are handed over in batches through a bounded queue, so no more
+ * than the given number of batches are held in memory at any time. An
+ * exception thrown by the underlying iterator is rethrown to the consumer
+ * after the elements read before it.
+ * <p>
+ * The underlying iterator is not closed, {@link #close()} only stops the
+ * reading thread so that the caller can close it safely.
+ *
+ * @author vadim
+ */
+public class ReadAheadIterator<T> implements CloseableIterator<T> {
+	private final List<T> END = Collections.emptyList();
+
+	private final BlockingQueue<List<T>> queue;
+	private final Thread thread;
+	private volatile Throwable error;
+	private Iterator<T> batch = null;
+	private boolean done = false;
+
+	/**
+	 * @param it
+	 *            the iterator to read ahead
+	 * @param batchSize
+	 *            number of elements to hand over at once
+	 * @param maxBatches
+	 *            maximum number of batches read ahead
+	 * @param name
+	 *            name of the reading thread
+	 */
+	public ReadAheadIterator(final Iterator<T> it, final int batchSize, int maxBatches, String name) {
+		if (batchSize < 1 || maxBatches < 1)
+			throw new IllegalArgumentException("Batch size and number of batches must be positive.");
+
+		queue = new ArrayBlockingQueue<List<T>>(maxBatches);
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					List<T> list = new ArrayList<T>(batchSize);
+					while (it.hasNext()) {
+						list.add(it.next());
+						if (list.size() == batchSize) {
+							queue.put(list);
+							list = new ArrayList<T>(batchSize);
+						}
+					}
+					if (!list.isEmpty())
+						queue.put(list);
+				} catch (InterruptedException e) {
+					return;
+				} catch (Throwable t) {
+					error = t;
+				}
+
+				try {
+					queue.put(END);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (batch == null || !batch.hasNext()) {
+			if (done)
+				return false;
+
+			List<T> list;
+			try {
+				list = queue.take();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+
+			if (list == END) {
+				done = true;
+				batch = null;
+				if (error instanceof RuntimeException)
+					throw (RuntimeException) error;
+				if (error instanceof Error)
+					throw (Error) error;
+				if (error != null)
+					throw new RuntimeException(error);
+				return false;
+			}
+			batch = list.iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return batch.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stop the reading thread and wait for it to finish.
+	 */
+	@Override
+	public void close() {
+		done = true;
+		batch = null;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		queue.clear();
+	}
+}
@@ -450,13 +450,23 @@ public class Utils {
 	 * @return
 	 */
 	public static void calculateMdAndNmTags(SAMRecord record, byte[] ref, boolean calcMD, boolean calcNM) {
+		calculateMdAndNmTags(record, ref, 0, calcMD, calcNM);
+	}
+
+	/**
+	 * @param refOffset
+	 *            zero-based reference position of the first base in the ref
+	 *            array
+	 */
+	public static void calculateMdAndNmTags(SAMRecord record, byte[] ref, int refOffset, boolean calcMD,
+			boolean calcNM) {
 		if (!calcMD && !calcNM)
 			return;
 
 		Cigar cigar = record.getCigar();
 		List<CigarElement> cigarElements = cigar.getCigarElements();
 		byte[] seq = record.getReadBases();
-		int start = record.getAlignmentStart() - 1;
+		int start = record.getAlignmentStart() - 1 - refOffset;
 		int i, x, y, u = 0;
 		int nm = 0;
 		StringBuffer str = new StringBuffer();
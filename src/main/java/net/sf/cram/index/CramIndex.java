@@ -19,13 +19,12 @@ import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.cram.encoding.reader.DataReaderFactory;
 import htsjdk.samtools.cram.encoding.reader.RefSeqIdReader;
 import htsjdk.samtools.cram.encoding.reader.RefSeqIdReader.Span;
-import htsjdk.samtools.cram.io.DefaultBitInputStream;
 import htsjdk.samtools.cram.structure.CompressionHeader;
 import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.CramCompressionRecord;
 import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.cram.structure.SliceInputViews;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -33,7 +32,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -41,6 +39,7 @@ import java.util.Scanner;
 
 public class CramIndex {
 	private List<Entry> entries = new ArrayList<CramIndex.Entry>();
+	private final SliceInputViews sliceInputViews = new SliceInputViews();
 
 	public void addContainer(Container c) throws IOException, IllegalArgumentException, IllegalAccessException {
 		if (c.isEOF())
@@ -48,7 +47,7 @@ public class CramIndex {
 		for (int i = 0; i < c.slices.length; i++) {
 			Slice s = c.slices[i];
 			if (s.sequenceId == -2) {
-				this.entries.addAll(getMutliRefEntries(c.header, s, c.offset, c.landmarks));
+				this.entries.addAll(getMutliRefEntries(c.header, s, c.offset, c.landmarks, sliceInputViews));
 			} else {
 				Entry e = new Entry();
 				e.sequenceId = c.sequenceId;
@@ -65,6 +64,14 @@ public class CramIndex {
 		}
 	}
 
+	/**
+	 * Add entries read from another index, for example with container offsets
+	 * shifted to a new file.
+	 */
+	public void addEntries(Collection<Entry> entries) {
+		this.entries.addAll(entries);
+	}
+
 	public void writeTo(OutputStream os) throws IOException {
 		Collections.sort(entries, byStartDesc);
 		for (Entry e : entries) {
@@ -75,16 +82,13 @@ public class CramIndex {
 	}
 
 	private static Collection<Entry> getMutliRefEntries(CompressionHeader header, Slice slice, long containerOffset,
-			int[] landmarks) throws IllegalArgumentException, IllegalAccessException, IOException {
+			int[] landmarks, SliceInputViews views) throws IllegalArgumentException, IllegalAccessException,
+			IOException {
 		final DataReaderFactory dataReaderFactory = new DataReaderFactory();
-		final Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
-		for (final Integer exId : slice.external.keySet()) {
-			inputMap.put(exId, new ByteArrayInputStream(slice.external.get(exId).getRawContent()));
-		}
+		views.reset(slice);
 
 		final RefSeqIdReader reader = new RefSeqIdReader(slice.sequenceId, slice.alignmentStart);
-		dataReaderFactory.buildReader(reader,
-				new DefaultBitInputStream(new ByteArrayInputStream(slice.coreBlock.getRawContent())), inputMap, header,
+		dataReaderFactory.buildReader(reader, views.getCoreInputStream(), views.getExternalInputStreams(), header,
 				slice.sequenceId);
 		reader.APDelta = header.APDelta;
 
@@ -210,7 +214,7 @@ public class CramIndex {
 		}
 	};
 
-	private static Comparator<Entry> byStart = new Comparator<Entry>() {
+	static Comparator<Entry> byStart = new Comparator<Entry>() {
 
 		@Override
 		public int compare(Entry o1, Entry o2) {
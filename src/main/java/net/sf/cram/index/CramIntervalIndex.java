@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.cram.index.CramIndex.Entry;
+
+/**
+ * An in-memory CRAM index for repeated alignment queries. Entries of each
+ * reference sequence are sorted by alignment start and kept in primitive
+ * arrays together with a running maximum of alignment ends. A query finds the
+ * first entry that can reach the query start and the last entry starting
+ * before the query end with two binary searches, so that only the entries in
+ * between are inspected.
+ * <p>
+ * The results are the same as of {@link CramIndex#find(List, int, int, int)}.
+ *
+ * @author vadim
+ *
+ */
+public class CramIntervalIndex {
+	private Map<Integer, SequenceEntries> sequences = new HashMap<Integer, SequenceEntries>();
+	private int size = 0;
+
+	public CramIntervalIndex(List<Entry> entries) {
+		Map<Integer, List<Entry>> bySequence = new HashMap<Integer, List<Entry>>();
+		for (Entry e : entries) {
+			List<Entry> list = bySequence.get(e.sequenceId);
+			if (list == null) {
+				list = new ArrayList<Entry>();
+				bySequence.put(e.sequenceId, list);
+			}
+			list.add(e);
+		}
+
+		for (Map.Entry<Integer, List<Entry>> me : bySequence.entrySet())
+			sequences.put(me.getKey(), new SequenceEntries(me.getValue()));
+		size = entries.size();
+	}
+
+	/**
+	 * Read a gzipped CRAI index.
+	 */
+	public static CramIntervalIndex fromCraiFile(File file) throws IOException {
+		InputStream is = new GZIPInputStream(new FileInputStream(file));
+		try {
+			return new CramIntervalIndex(CramIndex.readIndex(is));
+		} finally {
+			is.close();
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find index entries overlapping the query.
+	 *
+	 * @param seqId
+	 *            reference sequence id
+	 * @param start
+	 *            alignment start, 1-based, less than 1 means the whole
+	 *            sequence
+	 * @param span
+	 *            alignment span, less than 1 means the whole sequence
+	 * @return entries sorted by alignment start and container offset
+	 */
+	public List<Entry> find(int seqId, int start, int span) {
+		SequenceEntries s = sequences.get(seqId);
+		if (s == null)
+			return new ArrayList<Entry>();
+
+		if (start < 1 || span < 1) {
+			List<Entry> list = new ArrayList<Entry>(s.entries.length);
+			Collections.addAll(list, s.entries);
+			return list;
+		}
+
+		List<Entry> list = new ArrayList<Entry>();
+		if (seqId < 0)
+			return list;
+
+		long queryEnd = (long) start + span;
+		// the first entry whose running max end is after the query start:
+		int from = s.firstReaching(start);
+		// the first entry starting at or after the query end:
+		int to = s.firstStartingAt(queryEnd);
+		for (int i = from; i < to; i++)
+			if (s.ends[i] > start)
+				list.add(s.entries[i]);
+
+		return list;
+	}
+
+	private static class SequenceEntries {
+		Entry[] entries;
+		int[] starts;
+		long[] ends;
+		long[] maxEnds;
+
+		SequenceEntries(List<Entry> list) {
+			entries = list.toArray(new Entry[list.size()]);
+			Arrays.sort(entries, CramIndex.byStart);
+
+			starts = new int[entries.length];
+			ends = new long[entries.length];
+			maxEnds = new long[entries.length];
+			long maxEnd = Long.MIN_VALUE;
+			for (int i = 0; i < entries.length; i++) {
+				starts[i] = entries[i].alignmentStart;
+				ends[i] = (long) entries[i].alignmentStart + entries[i].alignmentSpan;
+				maxEnd = Math.max(maxEnd, ends[i]);
+				maxEnds[i] = maxEnd;
+			}
+		}
+
+		int firstReaching(long position) {
+			int low = 0;
+			int high = maxEnds.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (maxEnds[mid] > position)
+					high = mid;
+				else
+					low = mid + 1;
+			}
+			return low;
+		}
+
+		int firstStartingAt(long position) {
+			int low = 0;
+			int high = starts.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (starts[mid] >= position)
+					high = mid;
+				else
+					low = mid + 1;
+			}
+			return low;
+		}
+	}
+}
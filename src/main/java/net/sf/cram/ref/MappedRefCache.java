@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import htsjdk.samtools.cram.io.InputStreamUtils;
+import htsjdk.samtools.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory mapped access to sequence files in a local reference cache (for
+ * example REF_CACHE) where each file contains the bases of one sequence named
+ * by its MD5.
+ * <p>
+ * A file is verified against its MD5 once, after that a sidecar stamp file
+ * (the file name with '.md5' appended) records the MD5, the length and the
+ * modification time of the file. As long as the stamp matches the file the
+ * verification is skipped, so that readers only pay for the pages they actually
+ * touch.
+ * <p>
+ * Mappings used for region access are kept for reuse up to a total size (the
+ * mapped-reference-cache.size system property in bytes, 4GB by default), the
+ * least recently used ones are released first. Whole sequences read into
+ * memory are not kept mapped.
+ *
+ * @author vadim
+ */
+public class MappedRefCache {
+	private static Log log = Log.getInstance(MappedRefCache.class);
+	public static final String STAMP_EXTENSION = ".md5";
+
+	private final LinkedHashMap<String, MappedByteBuffer> mapped = new LinkedHashMap<String, MappedByteBuffer>(16,
+			0.75f, true);
+	private long maxBytes = Long.parseLong(System.getProperty("mapped-reference-cache.size",
+			Long.toString(4L * 1024 * 1024 * 1024)));
+	private long bytes = 0;
+
+	/**
+	 * Map a cached sequence file into memory, verifying it unless it has a
+	 * valid stamp.
+	 *
+	 * @param file
+	 *            the cached sequence file
+	 * @param md5
+	 *            the expected MD5 of the file content
+	 * @return a read-only buffer with the whole sequence positioned at 0
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 * @throws RuntimeException
+	 *             if the file content does not match the MD5
+	 */
+	public synchronized ByteBuffer map(File file, String md5) throws IOException {
+		MappedByteBuffer buf = mapped.get(md5);
+		if (buf == null) {
+			buf = mapAndVerify(file, md5);
+			mapped.put(md5, buf);
+			bytes += buf.capacity();
+			evict();
+		}
+		return buf.duplicate();
+	}
+
+	private static MappedByteBuffer mapAndVerify(File file, String md5) throws IOException {
+		MappedByteBuffer buf;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		if (!isStamped(file, md5)) {
+			String actualMD5 = calculateMD5String(buf.duplicate());
+			if (!md5.equals(actualMD5))
+				throw new RuntimeException("MD5 mismatch for cached file: " + file.getAbsolutePath());
+			stamp(file, md5);
+		}
+		return buf;
+	}
+
+	/**
+	 * Drop the least recently used mappings over the size limit, the most
+	 * recent one is always kept. A dropped mapping is released by the garbage
+	 * collector once no buffer views of it are left.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, MappedByteBuffer>> iterator = mapped.entrySet().iterator();
+		while (bytes > maxBytes && mapped.size() > 1) {
+			Map.Entry<String, MappedByteBuffer> eldest = iterator.next();
+			iterator.remove();
+			bytes -= eldest.getValue().capacity();
+		}
+	}
+
+	/**
+	 * Get a zero-copy view of a part of a cached sequence.
+	 *
+	 * @param file
+	 *            the cached sequence file
+	 * @param md5
+	 *            the expected MD5 of the file content
+	 * @param start
+	 *            zero-based offset of the first base
+	 * @param length
+	 *            number of bases, truncated at the end of the sequence
+	 * @return a read-only buffer with the bases
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 */
+	public ByteBuffer getRegion(File file, String md5, int start, int length) throws IOException {
+		ByteBuffer buf = map(file, md5);
+		buf.position(Math.min(start, buf.limit()));
+		buf.limit(Math.min(buf.position() + length, buf.limit()));
+		return buf.slice();
+	}
+
+	/**
+	 * Read a whole cached sequence into a byte array. The file is not kept
+	 * mapped for this, the caller holds the bases in memory anyway.
+	 */
+	public byte[] getBytes(File file, String md5) throws IOException {
+		ByteBuffer buf;
+		synchronized (this) {
+			buf = mapped.get(md5);
+		}
+		buf = buf == null ? mapAndVerify(file, md5) : buf.duplicate();
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		return data;
+	}
+
+	public synchronized void clear() {
+		mapped.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * @return total size of the files kept mapped
+	 */
+	public synchronized long getMappedBytes() {
+		return bytes;
+	}
+
+	private static File getStampFile(File file) {
+		return new File(file.getPath() + STAMP_EXTENSION);
+	}
+
+	private static String stampContent(File file, String md5) {
+		return String.format("%s\t%d\t%d\n", md5, file.length(), file.lastModified());
+	}
+
+	/**
+	 * @return true if the file has a stamp confirming the MD5 and the file has
+	 *         not been changed since
+	 */
+	public static boolean isStamped(File file, String md5) {
+		File stampFile = getStampFile(file);
+		if (!stampFile.exists())
+			return false;
+
+		try {
+			FileInputStream fis = new FileInputStream(stampFile);
+			String content = new String(InputStreamUtils.readFully(fis));
+			fis.close();
+			return content.equals(stampContent(file, md5));
+		} catch (IOException e) {
+			log.warn("Failed to read stamp file: " + stampFile.getAbsolutePath());
+			return false;
+		}
+	}
+
+	/**
+	 * Record that the file content has been verified against the MD5. Failures
+	 * are not fatal, the file will be verified again next time.
+	 */
+	public static void stamp(File file, String md5) {
+		File stampFile = getStampFile(file);
+		try {
+			FileOutputStream fos = new FileOutputStream(stampFile);
+			fos.write(stampContent(file, md5).getBytes());
+			fos.close();
+		} catch (IOException e) {
+			log.warn("Failed to write stamp file: " + stampFile.getAbsolutePath());
+		}
+	}
+
+	private static String calculateMD5String(ByteBuffer buf) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(buf);
+			return String.format("%032x", new BigInteger(1, md5.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
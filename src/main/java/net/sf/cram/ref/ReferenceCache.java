@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import htsjdk.samtools.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded in-memory cache of reference bases keyed by sequence MD5.
+ * Sequences are evicted in least recently used order once the total number of
+ * cached bases exceeds the budget. The most recently added sequence is always
+ * kept even if it alone exceeds the budget.
+ * <p>
+ * The bases are expected to be already upper cased and to match the MD5, so
+ * that a hit can be returned as is. Cached arrays are shared and must not be
+ * modified. A single cache can be shared between reference sources backed by
+ * different fasta files only as long as callers key the bases by their actual
+ * content checksum rather than by an unverified header MD5.
+ *
+ * @author vadim
+ */
+public class ReferenceCache {
+	private static Log log = Log.getInstance(ReferenceCache.class);
+
+	private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long maxBytes;
+	private long bytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public ReferenceCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param md5
+	 *            sequence md5, null counts as a miss
+	 * @return cached bases or null if not found
+	 */
+	public synchronized byte[] get(String md5) {
+		byte[] bases = md5 == null ? null : cache.get(md5);
+		if (bases == null)
+			misses++;
+		else
+			hits++;
+		return bases;
+	}
+
+	public synchronized void put(String md5, byte[] bases) {
+		byte[] previous = cache.put(md5, bases);
+		if (previous != null)
+			bytes -= previous.length;
+		bytes += bases.length;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, byte[]>> iterator = cache.entrySet().iterator();
+		while (bytes > maxBytes && cache.size() > 1) {
+			Map.Entry<String, byte[]> eldest = iterator.next();
+			iterator.remove();
+			bytes -= eldest.getValue().length;
+			evictions++;
+			log.debug(String.format("Evicted reference from memory cache: md5=%s, length=%d", eldest.getKey(),
+					eldest.getValue().length));
+		}
+	}
+
+	public synchronized boolean contains(String md5) {
+		return cache.containsKey(md5);
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getSize() {
+		return cache.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("sequences %d, bytes %d of %d, hits %d, misses %d, evictions %d", cache.size(), bytes,
+				maxBytes, hits, misses, evictions);
+	}
+}
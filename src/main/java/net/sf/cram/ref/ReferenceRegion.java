@@ -53,6 +53,33 @@ public class ReferenceRegion {
 		this.arraySpan = (int) (alignmentEnd - alignmentStart) + 1;
 	}
 
+	/**
+	 * Create a region backed by an array holding only the bases of the region.
+	 * 
+	 * @param bases
+	 *            the region bases
+	 * @param sequenceIndex
+	 * @param sequenceName
+	 * @param alignmentStart
+	 *            1-based position of the first base in the array
+	 */
+	public ReferenceRegion(byte[] bases, int sequenceIndex, String sequenceName, long alignmentStart) {
+		this.array = bases;
+		this.index = sequenceIndex;
+		this.name = sequenceName;
+		this.alignmentStart = alignmentStart;
+		this.alignmentEnd = alignmentStart + bases.length - 1;
+		this.arrayStart = 0;
+		this.arraySpan = bases.length;
+	}
+
+	/**
+	 * @return zero-based reference position of the first element of the array
+	 */
+	public int refOffset() {
+		return (int) (alignmentStart - 1 - arrayStart);
+	}
+
 	public int arrayPosition(long alignmentPosition) {
 		int arrayPosition = (int) (arrayStart + (alignmentPosition - alignmentStart));
 
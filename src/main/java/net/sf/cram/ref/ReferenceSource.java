@@ -28,12 +28,11 @@ import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -49,7 +48,7 @@ import net.sf.cram.common.Utils;
  * is expected similar to that of samtools:
  * <ul>
  * <li>
- * Search in memory cache by sequence name.</li>
+ * Search in memory cache by sequence name or MD5.</li>
  * <li>
  * Use local fasta file is supplied as a reference file and cache the found
  * sequence in memory.</li>
@@ -69,6 +68,15 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 	private static String REF_CACHE = System.getenv("REF_CACHE");
 	private static String REF_PATH = System.getenv("REF_PATH");
 	private static List<PathPattern> refPatterns = new ArrayList<PathPattern>();
+	/*
+	 * The shared cache holds strong references, so whatever it holds is taken
+	 * from the heap available to the rest of the program. By default it may
+	 * grow to a quarter of the maximum heap, use the reference-cache.size
+	 * system property (in bytes) to change this.
+	 */
+	private static ReferenceCache sharedCache = new ReferenceCache(Long.parseLong(System.getProperty(
+			"reference-cache.size", Long.toString(Runtime.getRuntime().maxMemory() / 4))));
+	private static MappedRefCache mappedRefCache = new MappedRefCache();
 
 	static {
 		if (REF_PATH == null)
@@ -86,10 +94,17 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 	private int downloadTriesBeforeFailing = 2;
 
 	/*
-	 * In-memory cache of ref bases by sequence name. Garbage collector will
-	 * automatically clean it if memory is low.
+	 * In-memory cache of ref bases by md5, shared by all reference sources
+	 * unless replaced. The name map remembers md5 of sequences loaded by this
+	 * source.
+	 */
+	private ReferenceCache cache = sharedCache;
+	private Map<String, String> md5ByName = new HashMap<String, String>();
+	/*
+	 * Set by findBases when the bases have been found by md5 and therefore
+	 * already verified against it.
 	 */
-	private Map<String, WeakReference<byte[]>> cacheW = new HashMap<String, WeakReference<byte[]>>();
+	private boolean foundByMD5 = false;
 
 	public ReferenceSource() {
 	}
@@ -109,61 +124,142 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 	}
 
 	@Override
-	public void clearCache() {
-		cacheW.clear();
+	public synchronized void clearCache() {
+		md5ByName.clear();
+		cache.clear();
 	}
 
-	private byte[] findInCache(String name) {
-		WeakReference<byte[]> r = cacheW.get(name);
-		if (r != null) {
-			byte[] bytes = r.get();
-			if (bytes != null)
-				return bytes;
-		}
-		return null;
+	public ReferenceCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Use a different memory cache instead of the one shared by all reference
+	 * sources.
+	 * 
+	 * @param cache
+	 *            the cache to use
+	 */
+	public synchronized void setCache(ReferenceCache cache) {
+		this.cache = cache;
 	}
 
 	@Override
 	public synchronized byte[] getReferenceBases(SAMSequenceRecord record, boolean tryNameVariants) {
-		byte[] bases = findBases(record, tryNameVariants);
+		String name = record.getSequenceName();
+		String md5 = md5ByName.get(name);
+		if (md5 == null)
+			md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+
+		byte[] bases = cache.get(md5);
+		if (bases != null) {
+			log.debug("Reference found in memory cache: name=" + name + ", md5=" + md5);
+			if (record.getAttribute(SAMSequenceRecord.MD5_TAG) == null)
+				record.setAttribute(SAMSequenceRecord.MD5_TAG, md5);
+			return bases;
+		}
+
+		String headerMD5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+		foundByMD5 = false;
+		bases = findBases(record, tryNameVariants);
 		if (bases == null)
 			return null;
+		// upper case once before the bases are shared through the cache:
+		Utils.upperCase(bases);
 
-		cacheW.put(record.getSequenceName(), new WeakReference<byte[]>(bases));
-
-		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
-		if (md5 == null) {
+		// the cache is shared and keyed by content, so the header md5 is only
+		// trusted for sequences found and verified by md5:
+		boolean md5FromData = !foundByMD5;
+		if (md5FromData) {
 			md5 = Utils.calculateMD5String(bases);
-			record.setAttribute(SAMSequenceRecord.MD5_TAG, md5);
-		}
+			if (headerMD5 == null)
+				record.setAttribute(SAMSequenceRecord.MD5_TAG, md5);
+			else if (!headerMD5.equals(md5))
+				log.warn(String.format("Reference sequence MD5 mismatch: name=%s, header md5=%s, bases md5=%s",
+						name, headerMD5, md5));
+		} else
+			md5 = headerMD5;
+
+		cache.put(md5, bases);
+		md5ByName.put(name, md5);
 
 		if (REF_CACHE != null)
-			addToRefCache(md5, bases);
+			addToRefCache(md5, bases, md5FromData);
 
 		return bases;
 	}
 
-	protected byte[] findBases(SAMSequenceRecord record, boolean tryNameVariants) {
-		{ // check cache by sequence name:
-			String name = record.getSequenceName();
-			byte[] bases = findInCache(name);
+	/**
+	 * Get a region of a reference sequence without loading the whole sequence
+	 * if possible. The bases are upper cased. If the sequence is already in
+	 * memory the region is backed by the full sequence, otherwise only the
+	 * region bases are read from a local cache file, an indexed fasta file or
+	 * the @SQ:UR location. A full load is the last resort.
+	 * 
+	 * @param record
+	 *            the sequence
+	 * @param start
+	 *            1-based inclusive start
+	 * @param end
+	 *            1-based inclusive end, truncated to the sequence length
+	 * @return the region or null if the sequence is not found
+	 */
+	public synchronized ReferenceRegion getRegion(SAMSequenceRecord record, long start, long end) {
+		String name = record.getSequenceName();
+		start = Math.max(1, start);
+		if (record.getSequenceLength() > 0)
+			end = Math.min(end, record.getSequenceLength());
+
+		String md5 = md5ByName.get(name);
+		if (md5 == null)
+			md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+
+		// cached bases are already upper cased and must not be modified:
+		byte[] bases = cache.get(md5);
+		if (bases != null) {
+			end = Math.min(end, bases.length);
+			return new ReferenceRegion(bases, record.getSequenceIndex(), name, start, end);
+		}
+
+		if (end >= start) {
+			bases = findRegionBases(record, start, end);
 			if (bases != null) {
-				log.debug("Reference found in memory cache by name: " + name);
-				return bases;
+				Utils.upperCase(bases);
+				return new ReferenceRegion(bases, record.getSequenceIndex(), name, start);
 			}
 		}
 
-		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
-		{ // check cache by md5:
-			if (md5 != null) {
-				byte[] bases = findInCache(md5);
-				if (bases != null) {
-					log.debug("Reference found in memory cache by md5: " + md5);
-					return bases;
-				}
-			}
+		log.debug("Loading full reference sequence for region: " + name);
+		bases = getReferenceBases(record, true);
+		if (bases == null)
+			return null;
+		return new ReferenceRegion(bases, record.getSequenceIndex(), name, start, Math.min(end, bases.length));
+	}
+
+	private byte[] findRegionBases(SAMSequenceRecord record, long start, long end) {
+		int length = (int) (end - start + 1);
+		ByteBuffer buf = getReferenceRegion(record, (int) start - 1, length);
+		if (buf != null && buf.remaining() == length) {
+			byte[] bases = new byte[length];
+			buf.get(bases);
+			return bases;
 		}
 
+		String name = record.getSequenceName();
+		if (rsFile != null && rsFile.isIndexed() && fastaSequenceIndex != null
+				&& fastaSequenceIndex.hasIndexEntry(name))
+			return rsFile.getSubsequenceAt(name, start, end).getBases();
+
+		if (record.getAttribute(SAMSequenceRecord.URI_TAG) != null) {
+			ReferenceSequenceFromSeekable s = ReferenceSequenceFromSeekable.fromString(record
+					.getAttribute(SAMSequenceRecord.URI_TAG));
+			return s.getSubsequenceAt(name, start, end);
+		}
+		return null;
+	}
+
+	protected byte[] findBases(SAMSequenceRecord record, boolean tryNameVariants) {
+		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
 		byte[] bases;
 
 		{ // try to fetch sequence by name:
@@ -184,6 +280,7 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 					throw new RuntimeException(e);
 				}
 			if (bases != null) {
+				foundByMD5 = true;
 				return bases;
 			}
 		}
@@ -266,16 +363,43 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 				}
 			}
 		} else {
+			File file = new File(path);
+			if (file.exists())
+				return mappedRefCache.getBytes(file, md5);
+		}
+		return null;
+	}
+
+	/**
+	 * Get a part of a reference sequence directly from a memory mapped local
+	 * cache file without loading the whole sequence.
+	 * 
+	 * @param record
+	 *            the sequence, must have MD5
+	 * @param start
+	 *            zero-based offset of the first base
+	 * @param length
+	 *            number of bases
+	 * @return a read-only buffer with the bases as stored in the cache or null
+	 *         if the sequence is not available in a local cache
+	 */
+	public ByteBuffer getReferenceRegion(SAMSequenceRecord record, int start, int length) {
+		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+		if (md5 == null)
+			return null;
+
+		for (PathPattern p : refPatterns) {
+			String path = p.format(md5);
+			if (isURL(path))
+				continue;
+
 			File file = new File(path);
 			if (file.exists()) {
-				FileInputStream fis = new FileInputStream(file);
-				byte[] data = InputStreamUtils.readFully(fis);
-				fis.close();
-
-				if (confirmMD5(md5, data))
-					return data;
-				else
-					throw new RuntimeException("MD5 mismatch for cached file: " + file.getAbsolutePath());
+				try {
+					return mappedRefCache.getRegion(file, md5, start, length);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
 			}
 		}
 		return null;
@@ -294,7 +418,14 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 		return null;
 	}
 
-	private static void addToRefCache(String md5, byte[] data) {
+	/**
+	 * Write the bases to REF_CACHE unless already there.
+	 * 
+	 * @param md5FromData
+	 *            true if the md5 has been calculated from the data, only then
+	 *            the file is stamped as verified
+	 */
+	private static void addToRefCache(String md5, byte[] data, boolean md5FromData) {
 		File cachedFile = new File(new PathPattern(REF_CACHE).format(md5));
 		if (!cachedFile.exists()) {
 			log.debug(String.format("Adding to REF_CACHE: md5=%s, length=%d", md5, data.length));
@@ -306,6 +437,8 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 				fos.write(data);
 				fos.close();
 				tmpFile.renameTo(cachedFile);
+				if (md5FromData)
+					MappedRefCache.stamp(cachedFile, md5);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
@@ -324,8 +457,8 @@ public class ReferenceSource extends htsjdk.samtools.cram.ref.ReferenceSource {
 		assertThat(bases, is(notNullValue()));
 		assertThat(bases.length, is(record.getSequenceLength()));
 		assertThat(Utils.calculateMD5String(bases), is(record.getAttribute(SAMSequenceRecord.MD5_TAG)));
-		assertThat(s.cacheW.containsKey(record.getSequenceName()), is(true));
-		assertThat(s.cacheW.containsKey(md5), is(false));
+		assertThat(s.md5ByName.get(record.getSequenceName()), is(md5));
+		assertThat(s.getCache().contains(md5), is(true));
 	}
 
 	private boolean confirmMD5(String md5, byte[] data) {
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.ref.ReferenceTracks;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates reference coverage and mismatches of reads in int arrays before
+ * adding them to {@link ReferenceTracks}. Coverage of a CIGAR element is a
+ * range update of a difference array and the read bases of a match element are
+ * compared with the reference in one pass, so that the tracks are updated once
+ * per reference position instead of once per base of every read.
+ * <p>
+ * For coordinate sorted reads positions are added to the tracks as soon as no
+ * later read can cover them, so the arrays only need to span the reads
+ * overlapping each other. {@link #flush()} must be called after the last read.
+ *
+ * @author vadim
+ *
+ */
+public class ReferenceTracksAccumulator {
+	private static final int INITIAL_SIZE = 1 << 12;
+
+	private final ReferenceTracks tracks;
+	private final byte[] ref;
+
+	// coverage differences and mismatches, index 0 is the start position:
+	private int[] coverage = new int[INITIAL_SIZE];
+	private int[] mismatches = new int[INITIAL_SIZE];
+	private int start = 1;
+	// the position after the last one with a value:
+	private int end = 1;
+
+	/**
+	 * @param tracks
+	 *            the tracks to update
+	 * @param ref
+	 *            bases of the tracks reference sequence
+	 */
+	public ReferenceTracksAccumulator(ReferenceTracks tracks, byte[] ref) {
+		this.tracks = tracks;
+		this.ref = ref;
+	}
+
+	public void add(SAMRecord record) {
+		byte[] bases = record.getReadBases();
+		if (bases.length == 0 || record.getAlignmentStart() == SAMRecord.NO_ALIGNMENT_START)
+			return;
+
+		int alignmentStart = record.getAlignmentStart();
+		// the first position after the alignment:
+		int alignmentEnd = alignmentStart + record.getCigar().getReferenceLength();
+		ensure(alignmentStart, alignmentEnd + 1);
+
+		int refPos = alignmentStart;
+		int readPos = 0;
+		for (CigarElement ce : record.getCigar().getCigarElements()) {
+			CigarOperator operator = ce.getOperator();
+			int length = ce.getLength();
+			if (operator.consumesReferenceBases()) {
+				coverage[refPos - start]++;
+				coverage[refPos + length - start]--;
+			}
+
+			switch (operator) {
+			case M:
+			case X:
+			case EQ:
+				int offset = refPos - start;
+				int refOffset = refPos - 1;
+				int size = Math.min(length, ref.length - refOffset);
+				for (int i = 0; i < size; i++) {
+					if (bases[readPos + i] != ref[refOffset + i])
+						mismatches[offset + i]++;
+				}
+				break;
+
+			default:
+				break;
+			}
+
+			readPos += operator.consumesReadBases() ? length : 0;
+			refPos += operator.consumesReferenceBases() ? length : 0;
+		}
+		end = Math.max(end, alignmentEnd + 1);
+	}
+
+	/**
+	 * Add all accumulated values to the tracks.
+	 */
+	public void flush() {
+		flush(end);
+	}
+
+	/**
+	 * Make room for positions from the alignment start to the exclusive end,
+	 * flushing positions before the alignment start if needed.
+	 */
+	private void ensure(int alignmentStart, int alignmentEnd) {
+		if (alignmentStart < start) {
+			// not sorted, start over:
+			flush(end);
+			start = end = alignmentStart;
+		}
+		if (alignmentEnd - start <= coverage.length)
+			return;
+
+		flush(alignmentStart);
+		if (start < alignmentStart)
+			start = end = alignmentStart;
+		if (alignmentEnd - start > coverage.length) {
+			int size = Integer.highestOneBit(alignmentEnd - start) << 1;
+			coverage = Arrays.copyOf(coverage, size);
+			mismatches = Arrays.copyOf(mismatches, size);
+		}
+	}
+
+	/**
+	 * Add the values of positions before the given one to the tracks and move
+	 * the start there, or to the end if it is before the position.
+	 */
+	private void flush(int position) {
+		int upTo = Math.min(position, end);
+		int count = upTo - start;
+		int depth = 0;
+		for (int i = 0; i < count; i++) {
+			depth += coverage[i];
+			if (depth != 0)
+				tracks.addCoverage(start + i, depth);
+			if (mismatches[i] != 0)
+				tracks.addMismatches(start + i, mismatches[i]);
+		}
+
+		int remaining = end - upTo;
+		System.arraycopy(coverage, count, coverage, 0, remaining);
+		System.arraycopy(mismatches, count, mismatches, 0, remaining);
+		Arrays.fill(coverage, remaining, remaining + count, 0);
+		Arrays.fill(mismatches, remaining, remaining + count, 0);
+		if (remaining > 0)
+			// the depth carried over to the new start:
+			coverage[0] += depth;
+		start = upTo;
+	}
+}
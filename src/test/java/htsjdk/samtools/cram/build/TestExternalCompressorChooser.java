@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.build;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import htsjdk.samtools.cram.encoding.ExternalCompressor;
+import htsjdk.samtools.cram.structure.BlockCompressionMethod;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestExternalCompressorChooser {
+	private static final int KEY = 1;
+
+	private static List<ExternalCompressor> candidates() {
+		return Arrays.asList(ExternalCompressor.createRAW(), ExternalCompressor.createGZIP());
+	}
+
+	/**
+	 * All byte values in a cycle: GZIP wins.
+	 */
+	private static byte[] cycle() {
+		byte[] data = new byte[16 * 1024];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		return data;
+	}
+
+	/**
+	 * Random bytes of about the same entropy: RAW wins.
+	 */
+	private static byte[] random(long seed) {
+		byte[] data = new byte[16 * 1024];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void testChoiceIsReusedOnlyAfterLag() {
+		ExternalCompressorChooser chooser = new ExternalCompressorChooser(candidates(), 2);
+		assertThat(chooser.choose(0, KEY, cycle()).getMethod(), is(BlockCompressionMethod.GZIP));
+		assertThat(chooser.choose(1, KEY, random(1)).getMethod(), is(BlockCompressionMethod.RAW));
+		// the choice for container 0 is reused although it does not fit:
+		assertThat(chooser.choose(2, KEY, random(2)).getMethod(), is(BlockCompressionMethod.GZIP));
+		assertThat(chooser.choose(3, KEY, random(3)).getMethod(), is(BlockCompressionMethod.RAW));
+	}
+
+	@Test
+	public void testChoicesDoNotDependOnBuildOrder() {
+		final int lag = 4;
+		final int containers = 200;
+		byte[][] data = new byte[containers][];
+		Random random = new Random(0);
+		for (int i = 0; i < containers; i++)
+			data[i] = random.nextInt(8) == 0 ? cycle() : random(i);
+
+		ExternalCompressorChooser inOrder = new ExternalCompressorChooser(candidates(), lag);
+		BlockCompressionMethod[] expected = new BlockCompressionMethod[containers];
+		for (int i = 0; i < containers; i++)
+			expected[i] = inOrder.choose(i, KEY, data[i]).getMethod();
+
+		// build each run of lag containers backwards, all containers lag
+		// before are built already:
+		ExternalCompressorChooser reversed = new ExternalCompressorChooser(candidates(), lag);
+		for (int start = 0; start < containers; start += lag) {
+			for (int i = Math.min(start + lag, containers) - 1; i >= start; i--)
+				assertThat(reversed.choose(i, KEY, data[i]).getMethod(), is(expected[i]));
+		}
+	}
+}
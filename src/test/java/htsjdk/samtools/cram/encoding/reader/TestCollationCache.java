@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.encoding.reader;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class TestCollationCache {
+
+	private static FastqRead read(String name, int templateIndex) {
+		return new FastqRead(1, name.getBytes(), true, templateIndex, "A".getBytes(), "!".getBytes());
+	}
+
+	@Test
+	public void testRemoveByName() {
+		CollationCache<FastqRead> cache = new CollationCache<FastqRead>();
+		FastqRead[] reads = new FastqRead[10000];
+		for (int i = 0; i < reads.length; i++) {
+			reads[i] = read("read" + i, 1);
+			cache.add(reads[i]);
+		}
+		assertThat(cache.size(), is(reads.length));
+
+		for (int i = reads.length - 1; i >= 0; i -= 2)
+			assertThat(cache.remove(read("read" + i, 2)), sameInstance(reads[i]));
+		assertThat(cache.remove(read("read1", 2)), nullValue());
+		assertThat(cache.remove(read("absent", 2)), nullValue());
+		assertThat(cache.size(), is(reads.length / 2));
+	}
+
+	@Test
+	public void testRemoveOldestInInsertionOrder() {
+		CollationCache<FastqRead> cache = new CollationCache<FastqRead>();
+		FastqRead[] reads = new FastqRead[5000];
+		for (int i = 0; i < reads.length; i++) {
+			reads[i] = read("read" + i, 1);
+			cache.add(reads[i]);
+		}
+		for (int i = 1; i < reads.length; i += 3)
+			cache.remove(reads[i]);
+
+		for (int i = 0; i < reads.length; i++) {
+			if (i % 3 == 1)
+				continue;
+			assertThat(cache.removeOldest(), sameInstance(reads[i]));
+		}
+		assertThat(cache.isEmpty(), is(true));
+		assertThat(cache.removeOldest(), nullValue());
+	}
+}
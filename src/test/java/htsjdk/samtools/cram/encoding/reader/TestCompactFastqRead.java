@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.encoding.reader;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestCompactFastqRead {
+
+	private static void assertSameAsFastqRead(NameArena arena, String name, int templateIndex, byte[] bases,
+			byte[] scores) {
+		CompactFastqRead read = new CompactFastqRead(arena, name.getBytes(), templateIndex, bases.length, bases,
+				scores);
+		for (boolean appendSegmentIndex : new boolean[] { true, false }) {
+			FastqRead expected = new FastqRead(bases.length, name.getBytes(), appendSegmentIndex, templateIndex,
+					bases, scores);
+			assertThat(new String(read.toFastq(appendSegmentIndex)), is(new String(expected.data)));
+		}
+
+		byte[] unpacked = new byte[bases.length];
+		read.getBases(unpacked);
+		assertThat(unpacked, is(bases));
+	}
+
+	@Test
+	public void testRenderSameAsFastqRead() {
+		Random random = new Random(0);
+		NameArena arena = new NameArena(100);
+		byte[] alphabet = "ACGTN".getBytes();
+		for (int i = 0; i < 1000; i++) {
+			byte[] bases = new byte[random.nextInt(150)];
+			int symbols = i % 2 == 0 ? 4 : 5;
+			for (int j = 0; j < bases.length; j++)
+				bases[j] = alphabet[random.nextInt(symbols)];
+
+			byte[] scores = new byte[bases.length];
+			if (i % 3 == 0)
+				Arrays.fill(scores, (byte) '?');
+			else
+				for (int j = 0; j < scores.length; j++)
+					scores[j] = (byte) (33 + random.nextInt(40));
+
+			assertSameAsFastqRead(arena, "read" + i, i % 3, bases, i % 7 == 0 ? null : scores);
+		}
+	}
+
+	@Test
+	public void testSameName() {
+		NameArena arena = new NameArena(10);
+		byte[] bases = "ACGT".getBytes();
+		CompactFastqRead read1 = new CompactFastqRead(arena, "name1".getBytes(), 1, 4, bases, null);
+		CompactFastqRead read2 = new CompactFastqRead(arena, "name1".getBytes(), 2, 4, bases, null);
+		CompactFastqRead read3 = new CompactFastqRead(arena, "name2".getBytes(), 2, 4, bases, null);
+		assertThat(read1.hasSameName(read2), is(true));
+		assertThat(read1.getNameHash() == read2.getNameHash(), is(true));
+		assertThat(read1.hasSameName(read3), is(false));
+		assertThat(read1.compareTo(read3) < 0, is(true));
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.encoding.reader;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestExternalFastqCollator {
+
+	private static List<String> collate(long bufferSize, int pairs, int singles) throws IOException {
+		List<String[]> reads = new ArrayList<String[]>();
+		for (int i = 0; i < pairs; i++) {
+			reads.add(new String[] { "pair" + i, "1" });
+			reads.add(new String[] { "pair" + i, "2" });
+		}
+		for (int i = 0; i < singles; i++)
+			reads.add(new String[] { "single" + i, String.valueOf(i % 3) });
+		Collections.shuffle(reads, new Random(0));
+
+		ExternalFastqCollator collator = new ExternalFastqCollator(bufferSize, null);
+		long generation = 0;
+		for (String[] read : reads) {
+			byte[] name = read[0].getBytes();
+			byte[] bases = (read[0] + "/" + read[1]).getBytes();
+			collator.add(name, 0, name.length, Integer.valueOf(read[1]), generation++, bases.length, bases, 0, bases,
+					0);
+		}
+
+		final List<String> result = new ArrayList<String>();
+		collator.finish(new ExternalFastqCollator.Handler() {
+
+			@Override
+			public void pair(ExternalFastqCollator.Record first, ExternalFastqCollator.Record second) {
+				result.add(new String(first.bases) + " " + new String(second.bases));
+			}
+
+			@Override
+			public void single(ExternalFastqCollator.Record read) {
+				result.add(new String(read.bases));
+			}
+		});
+		assertThat(collator.isEmpty(), is(true));
+		return result;
+	}
+
+	@Test
+	public void testPairsAllMates() throws IOException {
+		List<String> result = collate(1000, 1000, 100);
+		assertThat(result.size(), is(1100));
+		for (String s : result) {
+			if (s.startsWith("pair")) {
+				String name = s.substring(0, s.indexOf('/'));
+				assertThat(s, is(name + "/1 " + name + "/2"));
+			}
+		}
+	}
+
+	@Test
+	public void testSameResultForAnyBufferSize() throws IOException {
+		List<String> expected = collate(Long.MAX_VALUE, 1000, 100);
+		// small enough for multiple merge passes:
+		assertThat(collate(500, 1000, 100), is(expected));
+		assertThat(collate(20000, 1000, 100), is(expected));
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package htsjdk.samtools.cram.io;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestByteBufferBitInputStream {
+
+	@Test
+	public void testSameAsDefault() throws IOException {
+		Random random = new Random(0);
+		byte[] data = new byte[10000];
+		random.nextBytes(data);
+
+		DefaultBitInputStream expected = new DefaultBitInputStream(new ByteArrayInputStream(data));
+		ByteBufferBitInputStream bis = new ByteBufferBitInputStream();
+		bis.setBuffer(ByteBuffer.wrap(data));
+
+		long bits = data.length * 8L;
+		while (bits > 64) {
+			switch (random.nextInt(3)) {
+			case 0:
+				assertThat(bis.readBit(), is(expected.readBit()));
+				bits--;
+				break;
+			case 1:
+				int n = random.nextInt(32);
+				assertThat(bis.readBits(n), is(expected.readBits(n)));
+				bits -= n;
+				break;
+			default:
+				int m = random.nextInt(65);
+				assertThat(bis.readLongBits(m), is(expected.readLongBits(m)));
+				bits -= m;
+				break;
+			}
+		}
+	}
+
+	@Test
+	public void testSetBuffer() throws IOException {
+		ByteBufferBitInputStream bis = new ByteBufferBitInputStream(ByteBuffer.wrap(new byte[] { (byte) 0xF0 }));
+		assertThat(bis.readBits(3), is(7));
+
+		bis.setBuffer(ByteBuffer.wrap(new byte[] { 0x0F }));
+		assertThat(bis.readBits(4), is(0));
+		assertThat(bis.readBits(4), is(15));
+	}
+
+	@Test(expected = EOFException.class)
+	public void testEOF() throws IOException {
+		ByteBufferBitInputStream bis = new ByteBufferBitInputStream(ByteBuffer.wrap(new byte[] { 1 }));
+		bis.readBits(9);
+	}
+}
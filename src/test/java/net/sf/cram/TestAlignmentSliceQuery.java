@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestAlignmentSliceQuery {
+
+	private static AlignmentSliceQuery query(int sequenceId, int start, int end) {
+		AlignmentSliceQuery q = new AlignmentSliceQuery("seq" + sequenceId, start, end);
+		q.sequenceId = sequenceId;
+		return q;
+	}
+
+	private static AlignmentSliceQuery query(int sequenceId, String spec) {
+		AlignmentSliceQuery q = new AlignmentSliceQuery(spec);
+		q.sequenceId = sequenceId;
+		return q;
+	}
+
+	@Test
+	public void testFromBedFile() throws IOException {
+		File file = File.createTempFile("regions", ".bed");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write("# comment\n");
+		writer.write("track name=test\n");
+		writer.write("browser position chr1:1-100\n");
+		writer.write("\n");
+		writer.write("chr1\t0\t100\n");
+		writer.write("chr2 99 100 name 0 +\n");
+		writer.write("chr3\n");
+		writer.close();
+
+		List<AlignmentSliceQuery> queries = AlignmentSliceQuery.fromBedFile(file);
+		assertEquals(3, queries.size());
+
+		// 0-based half-open to 1-based inclusive:
+		assertEquals("chr1", queries.get(0).sequence);
+		assertEquals(1, queries.get(0).start);
+		assertEquals(100, queries.get(0).end);
+
+		assertEquals("chr2", queries.get(1).sequence);
+		assertEquals(100, queries.get(1).start);
+		assertEquals(100, queries.get(1).end);
+
+		// whole sequence:
+		assertEquals("chr3", queries.get(2).sequence);
+		assertEquals(Integer.MAX_VALUE, queries.get(2).end);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testInvalidBedLine() throws IOException {
+		File file = File.createTempFile("regions", ".bed");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write("chr1\t0\n");
+		writer.close();
+
+		AlignmentSliceQuery.fromBedFile(file);
+	}
+
+	@Test
+	public void testMerge() {
+		List<AlignmentSliceQuery> merged = AlignmentSliceQuery.merge(Arrays.asList(query(1, 50, 60),
+				query(0, 300, 400), query(0, 100, 200), query(0, 150, 250), query(0, 251, 260), query(0, 262, 270)));
+
+		assertEquals(4, merged.size());
+		// overlapping and then adjacent:
+		assertEquals(0, merged.get(0).sequenceId);
+		assertEquals(100, merged.get(0).start);
+		assertEquals(260, merged.get(0).end);
+		// a gap of one base is not merged:
+		assertEquals(262, merged.get(1).start);
+		assertEquals(270, merged.get(1).end);
+		assertEquals(300, merged.get(2).start);
+		assertEquals(400, merged.get(2).end);
+		// other sequences are not merged even if the positions overlap:
+		assertEquals(1, merged.get(3).sequenceId);
+		assertEquals(50, merged.get(3).start);
+	}
+
+	@Test
+	public void testMergeWholeSequence() {
+		List<AlignmentSliceQuery> merged = AlignmentSliceQuery.merge(Arrays.asList(query(0, 100, 200),
+				query(0, "chr1"), query(0, "chr1:500"), query(1, 10, 20)));
+
+		assertEquals(2, merged.size());
+		assertEquals(0, merged.get(0).sequenceId);
+		assertEquals(Integer.MAX_VALUE, merged.get(0).end);
+		assertEquals(1, merged.get(1).sequenceId);
+		assertEquals(10, merged.get(1).start);
+		assertEquals(20, merged.get(1).end);
+
+		// the query is not changed:
+		AlignmentSliceQuery open = query(2, "chr3:500");
+		merged = AlignmentSliceQuery.merge(Arrays.asList(open, query(2, 100, 600)));
+		assertEquals(1, merged.size());
+		assertEquals(100, merged.get(0).start);
+		assertEquals(Integer.MAX_VALUE, merged.get(0).end);
+		assertEquals(500, open.start);
+	}
+
+	@Test
+	public void testIsOutside() {
+		List<AlignmentSliceQuery> regions = AlignmentSliceQuery.merge(Arrays.asList(query(0, 100, 200),
+				query(0, 300, 400), query(2, 1000, 2000)));
+
+		// before, between and after the regions:
+		assertTrue(AlignmentSliceQuery.isOutside(regions, 0, 10, 99));
+		assertTrue(AlignmentSliceQuery.isOutside(regions, 0, 201, 299));
+		assertTrue(AlignmentSliceQuery.isOutside(regions, 0, 401, 500));
+
+		// straddling the edges or spanning a region:
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 90, 100));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 200, 210));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 250, 300));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 50, 500));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 2, 1500, 1600));
+
+		// unmapped reads with end 0 are at their start:
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 150, 0));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 400, 0));
+		assertTrue(AlignmentSliceQuery.isOutside(regions, 0, 250, 0));
+		assertTrue(AlignmentSliceQuery.isOutside(regions, 0, 401, 0));
+
+		// sequences without regions are not filtered:
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 1, 150, 160));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, -1, 0, 0));
+	}
+
+	@Test
+	public void testIsOutsideWholeSequence() {
+		List<AlignmentSliceQuery> regions = AlignmentSliceQuery.merge(Arrays.asList(query(0, "chr1")));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 1, 10));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, 1, 0));
+		assertFalse(AlignmentSliceQuery.isOutside(regions, 0, Integer.MAX_VALUE - 10, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testIsAfter() {
+		List<AlignmentSliceQuery> regions = AlignmentSliceQuery.merge(Arrays.asList(query(0, 100, 200),
+				query(2, 1000, 2000)));
+		assertFalse(AlignmentSliceQuery.isAfter(regions, 0, 500));
+		assertFalse(AlignmentSliceQuery.isAfter(regions, 2, 2000));
+		assertTrue(AlignmentSliceQuery.isAfter(regions, 2, 2001));
+	}
+}
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.build.ContainerFactory;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.common.CramVersions;
+import htsjdk.samtools.cram.common.Version;
+import htsjdk.samtools.cram.lossy.QualityScorePreservation;
+import htsjdk.samtools.cram.ref.ReferenceTracks;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.ContainerIO;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.cram.structure.Slice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.cram.index.CramIndex;
+import net.sf.cram.ref.ReferenceSource;
+
+import org.junit.Test;
+
+public class TestCramContainerCopier {
+	private static final int READ_LENGTH = 10;
+	private static final byte[] REF = new byte[1000];
+	static {
+		for (int i = 0; i < REF.length; i++)
+			REF[i] = (byte) "ACGT".charAt(i % 4);
+	}
+
+	private static SAMFileHeader header(String... readGroups) {
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", REF.length));
+		for (String id : readGroups) {
+			SAMReadGroupRecord rg = new SAMReadGroupRecord(id);
+			rg.setSample(id);
+			header.addReadGroup(rg);
+		}
+		return header;
+	}
+
+	private static File write(String name, SAMFileHeader header, int start, boolean preserveReadNames)
+			throws IOException, IllegalAccessException {
+		return write(name, header, start, 0, preserveReadNames);
+	}
+
+	/**
+	 * Write a CRAM file with a container of 10 reads starting at the given
+	 * position and, if any, a container of unplaced reads. A .crai index is
+	 * written next to it.
+	 */
+	private static File write(String name, SAMFileHeader header, int start, int unplaced, boolean preserveReadNames)
+			throws IOException, IllegalAccessException {
+		List<SAMRecord> placedRecords = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 10; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName(name + "." + i);
+			record.setReferenceIndex(0);
+			record.setAlignmentStart(start + i);
+			record.setCigarString(READ_LENGTH + "M");
+			record.setReadBases(Arrays.copyOfRange(REF, start + i - 1, start + i - 1 + READ_LENGTH));
+			record.setBaseQualities(new byte[READ_LENGTH]);
+			record.setMappingQuality(30);
+			record.setAttribute("RG", header.getReadGroups().get(i % header.getReadGroups().size()).getId());
+			placedRecords.add(record);
+		}
+
+		List<SAMRecord> unplacedRecords = new ArrayList<SAMRecord>();
+		for (int i = 0; i < unplaced; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName(name + ".unplaced." + i);
+			record.setReadUnmappedFlag(true);
+			record.setReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+			record.setAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
+			record.setReadBases(Arrays.copyOfRange(REF, i, i + READ_LENGTH));
+			record.setBaseQualities(new byte[READ_LENGTH]);
+			record.setAttribute("RG", header.getReadGroups().get(i % header.getReadGroups().size()).getId());
+			unplacedRecords.add(record);
+		}
+
+		File file = File.createTempFile(name, ".cram");
+		file.deleteOnExit();
+		CramHeader cramHeader = new CramHeader(CramVersions.CRAM_v3, name, header);
+		ContainerFactory factory = new ContainerFactory(header, 10000);
+		factory.setPreserveReadNames(preserveReadNames);
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+		// the lengths returned by CramIO.writeCramHeader and
+		// ContainerIO.writeContainer are not exact, measure them for the index:
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		CramIO.writeCramHeader(cramHeader, buf);
+		buf.writeTo(os);
+		long offset = buf.size();
+
+		CramIndex index = new CramIndex();
+		List<CramCompressionRecord> records = Bam2Cram.convert(placedRecords, cramHeader, REF, new ReferenceTracks(0,
+				"chr1", REF), new QualityScorePreservation("*40"), false, null, null);
+		Container container = factory.buildContainer(records);
+		for (Slice s : container.slices)
+			s.setRefMD5(REF);
+		container.offset = offset;
+		offset += writeContainer(cramHeader, container, os);
+		index.addContainer(container);
+
+		if (!unplacedRecords.isEmpty()) {
+			byte[] noRef = new byte[0];
+			records = Bam2Cram.convert(unplacedRecords, cramHeader, noRef, new ReferenceTracks(
+					SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX, SAMRecord.NO_ALIGNMENT_REFERENCE_NAME, noRef),
+					new QualityScorePreservation("*40"), false, null, null);
+			container = factory.buildContainer(records);
+			for (Slice s : container.slices)
+				s.setRefMD5(noRef);
+			container.offset = offset;
+			offset += writeContainer(cramHeader, container, os);
+			index.addContainer(container);
+		}
+
+		CramIO.issueEOF(cramHeader.getVersion(), os);
+		os.close();
+
+		File indexFile = new File(file.getAbsolutePath() + ".crai");
+		indexFile.deleteOnExit();
+		os = new GZIPOutputStream(new FileOutputStream(indexFile));
+		index.writeTo(os);
+		os.close();
+
+		return file;
+	}
+
+	/**
+	 * @return the exact number of bytes written
+	 */
+	private static int writeContainer(CramHeader cramHeader, Container container, OutputStream os)
+			throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		ContainerIO.writeContainer(cramHeader.getVersion(), container, buf);
+		buf.writeTo(os);
+		return buf.size();
+	}
+
+	/**
+	 * Check that every .crai entry of the file points at a container starting
+	 * at the entry's position.
+	 *
+	 * @return number of index entries
+	 */
+	private static int assertIndexed(File file) throws IOException {
+		InputStream is = new GZIPInputStream(new FileInputStream(file.getAbsolutePath() + ".crai"));
+		List<CramIndex.Entry> entries = CramIndex.readIndex(is);
+		is.close();
+
+		for (CramIndex.Entry e : entries) {
+			is = new BufferedInputStream(new FileInputStream(file));
+			try {
+				Version version = CramIO.readCramHeader(is).getVersion();
+				is.close();
+
+				is = new FileInputStream(file);
+				assertEquals(e.containerStartOffset, is.skip(e.containerStartOffset));
+				Container container = ContainerIO.readContainer(version, new BufferedInputStream(is));
+				assertFalse(container.isEOF());
+				assertEquals(e.sequenceId, container.sequenceId);
+
+				// the entry's slice starts at its landmark in the container:
+				int sliceIndex = Arrays.binarySearch(container.landmarks, e.sliceOffset);
+				assertTrue(sliceIndex >= 0);
+				assertEquals(e.alignmentStart, container.slices[sliceIndex].alignmentStart);
+			} finally {
+				is.close();
+			}
+		}
+		return entries.size();
+	}
+
+	private static File writeReference() throws IOException {
+		File file = File.createTempFile("ref", ".fa");
+		file.deleteOnExit();
+		OutputStream os = new FileOutputStream(file);
+		os.write(">chr1\n".getBytes());
+		os.write(REF);
+		os.write('\n');
+		os.close();
+
+		File indexFile = new File(file.getAbsolutePath() + ".fai");
+		indexFile.deleteOnExit();
+		os = new FileOutputStream(indexFile);
+		os.write(String.format("chr1\t%d\t6\t%d\t%d\n", REF.length, REF.length, REF.length + 1).getBytes());
+		os.close();
+		return file;
+	}
+
+	@Test
+	public void testFixtureIndex() throws IOException, IllegalAccessException {
+		assertEquals(2, assertIndexed(write("first", header("A"), 1, 5, true)));
+	}
+
+	@Test
+	public void testCopy() throws IOException, IllegalAccessException {
+		File f1 = write("first", header("A", "B"), 1, true);
+		File f2 = write("second", header("A", "B"), 300, true);
+		File f3 = write("third", header("A", "B"), 600, 5, true);
+		CramContainerCopier copier = CramContainerCopier.prepare(Arrays.asList(f3, f1, f2));
+		assertNotNull(copier);
+		assertEquals(Arrays.asList(f1, f2, f3), copier.getFiles());
+
+		File out = File.createTempFile("merged", ".cram");
+		out.deleteOnExit();
+		File indexFile = new File(out.getAbsolutePath() + ".crai");
+		indexFile.deleteOnExit();
+		copier.copy(header("A", "B"), out.getName(), new BufferedOutputStream(new FileOutputStream(out)), indexFile);
+
+		assertEquals(4, assertIndexed(out));
+
+		SamReader reader = SamReaderFactory.make().referenceSource(new ReferenceSource(writeReference()))
+				.validationStringency(ValidationStringency.SILENT).open(out);
+		List<String> names = new ArrayList<String>();
+		int previousStart = 0;
+		for (SAMRecord record : reader) {
+			names.add(record.getReadName());
+			if (!record.getReadUnmappedFlag()) {
+				assertTrue(record.getAlignmentStart() >= previousStart);
+				previousStart = record.getAlignmentStart();
+			}
+		}
+		reader.close();
+
+		assertEquals(35, names.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("first." + i, names.get(i));
+			assertEquals("second." + i, names.get(10 + i));
+			assertEquals("third." + i, names.get(20 + i));
+		}
+		for (int i = 0; i < 5; i++)
+			assertEquals("third.unplaced." + i, names.get(30 + i));
+	}
+
+	@Test
+	public void testOverlap() throws IOException, IllegalAccessException {
+		File f1 = write("first", header("A"), 1, true);
+		File f2 = write("second", header("A"), 15, true);
+		assertNull(CramContainerCopier.prepare(Arrays.asList(f1, f2)));
+	}
+
+	@Test
+	public void testUnplacedNotLast() throws IOException, IllegalAccessException {
+		File f1 = write("first", header("A"), 1, 5, true);
+		File f2 = write("second", header("A"), 500, true);
+		assertNull(CramContainerCopier.prepare(Arrays.asList(f1, f2)));
+	}
+
+	@Test
+	public void testSameReadGroups() throws IOException, IllegalAccessException {
+		File f1 = write("first", header("A", "B"), 1, true);
+		File f2 = write("second", header("A", "B"), 500, true);
+		assertNotNull(CramContainerCopier.prepare(Arrays.asList(f2, f1)));
+	}
+
+	@Test
+	public void testReadGroupsInOtherOrder() throws IOException, IllegalAccessException {
+		File f1 = write("first", header("A", "B"), 1, true);
+		File f2 = write("second", header("B", "A"), 500, true);
+		assertNull(CramContainerCopier.prepare(Arrays.asList(f1, f2)));
+	}
+
+	@Test
+	public void testOtherReadGroups() throws IOException, IllegalAccessException {
+		File f1 = write("first", header("A"), 1, true);
+		File f2 = write("second", header("A", "B"), 500, true);
+		assertNull(CramContainerCopier.prepare(Arrays.asList(f1, f2)));
+	}
+
+	@Test
+	public void testReadNamesNotStored() throws IOException, IllegalAccessException {
+		File f1 = write("first", header("A"), 1, true);
+		File f2 = write("second", header("A"), 500, false);
+		assertNull(CramContainerCopier.prepare(Arrays.asList(f1, f2)));
+	}
+}
@@ -15,9 +15,12 @@
  ******************************************************************************/
 package net.sf.cram.index;
 
+import static org.junit.Assert.assertEquals;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import net.sf.cram.index.CramIndex;
 import net.sf.cram.index.CramIndex.Entry;
@@ -88,4 +91,28 @@ public class TestIndex {
 		System.out.println();
 	}
 
+	@Test
+	public void testIntervalIndex() {
+		Random random = new Random(0);
+		List<CramIndex.Entry> list = new ArrayList<CramIndex.Entry>();
+		for (int i = 0; i < 1000; i++) {
+			Entry e = new Entry();
+			e.sequenceId = random.nextInt(4) - 1;
+			e.alignmentStart = 1 + random.nextInt(10000);
+			e.alignmentSpan = random.nextInt(i % 10 == 0 ? 5000 : 200);
+			e.containerStartOffset = i;
+			list.add(e);
+		}
+
+		CramIntervalIndex index = new CramIntervalIndex(list);
+		for (int i = 0; i < 1000; i++) {
+			int seqId = random.nextInt(5) - 1;
+			int start = random.nextInt(11000) - 10;
+			int span = random.nextInt(300) - 10;
+
+			List<Entry> expected = CramIndex.find(list, seqId, start, span);
+			List<Entry> found = index.find(seqId, start, span);
+			assertEquals(expected, found);
+		}
+	}
 }
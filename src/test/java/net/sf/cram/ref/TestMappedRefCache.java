@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.sf.cram.common.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedRefCache {
+	private static final byte[] BASES = "ACGTACGTNNACGT".getBytes();
+	private static final String MD5 = Utils.calculateMD5String(BASES);
+
+	private File file;
+
+	@Before
+	public void before() throws IOException {
+		file = File.createTempFile("ref", ".seq");
+		write(file, BASES);
+	}
+
+	@After
+	public void after() {
+		new File(file.getPath() + MappedRefCache.STAMP_EXTENSION).delete();
+		file.delete();
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+	}
+
+	private static byte[] toBytes(ByteBuffer buf) {
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		return data;
+	}
+
+	@Test
+	public void testMapAndStamp() throws IOException {
+		assertThat(MappedRefCache.isStamped(file, MD5), is(false));
+
+		MappedRefCache cache = new MappedRefCache();
+		assertThat(toBytes(cache.map(file, MD5)), is(BASES));
+		assertThat(MappedRefCache.isStamped(file, MD5), is(true));
+		assertThat(cache.getMappedBytes(), is((long) BASES.length));
+
+		assertThat(new MappedRefCache().getBytes(file, MD5), is(BASES));
+	}
+
+	@Test
+	public void testWrongMD5() throws IOException {
+		String wrongMD5 = Utils.calculateMD5String("ACGT".getBytes());
+		try {
+			new MappedRefCache().map(file, wrongMD5);
+			fail("Expecting MD5 mismatch.");
+		} catch (RuntimeException e) {
+		}
+		assertThat(MappedRefCache.isStamped(file, wrongMD5), is(false));
+	}
+
+	@Test
+	public void testStaleStamp() throws IOException {
+		new MappedRefCache().map(file, MD5);
+		assertThat(MappedRefCache.isStamped(file, MD5), is(true));
+
+		// same length, different bases and a later modification time:
+		byte[] changed = BASES.clone();
+		changed[0] = 'T';
+		write(file, changed);
+		file.setLastModified(file.lastModified() + 10000);
+		assertThat(MappedRefCache.isStamped(file, MD5), is(false));
+
+		try {
+			new MappedRefCache().map(file, MD5);
+			fail("Expecting MD5 mismatch.");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testRegion() throws IOException {
+		MappedRefCache cache = new MappedRefCache();
+		assertThat(new String(toBytes(cache.getRegion(file, MD5, 4, 4))), is("ACGT"));
+
+		// truncated at the end of the sequence:
+		assertThat(new String(toBytes(cache.getRegion(file, MD5, 10, 100))), is("ACGT"));
+
+		// past the end of the sequence:
+		assertThat(cache.getRegion(file, MD5, BASES.length + 5, 10).remaining(), is(0));
+	}
+}
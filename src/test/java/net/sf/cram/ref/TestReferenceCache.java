@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class TestReferenceCache {
+
+	@Test
+	public void test() {
+		ReferenceCache cache = new ReferenceCache(25);
+		cache.put("a", new byte[10]);
+		cache.put("b", new byte[10]);
+
+		// touch 'a' so that 'b' becomes the eldest:
+		assertThat(cache.get("a"), is(notNullValue()));
+		cache.put("c", new byte[10]);
+
+		assertThat(cache.contains("a"), is(true));
+		assertThat(cache.contains("b"), is(false));
+		assertThat(cache.contains("c"), is(true));
+		assertThat(cache.getBytes(), is(20L));
+		assertThat(cache.getEvictions(), is(1L));
+
+		assertThat(cache.get("b"), is(nullValue()));
+		assertThat(cache.getHits(), is(1L));
+		assertThat(cache.getMisses(), is(1L));
+
+		// a single sequence over the budget is still kept:
+		cache.put("d", new byte[100]);
+		assertThat(cache.getSize(), is(1));
+		assertThat(cache.contains("d"), is(true));
+		assertThat(cache.getEvictions(), is(3L));
+	}
+}
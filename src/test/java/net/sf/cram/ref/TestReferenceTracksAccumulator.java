@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2013 EMBL-EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.ref.ReferenceTracks;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestReferenceTracksAccumulator {
+
+	private static SAMRecord record(SAMFileHeader header, int start, String cigar, String bases) {
+		SAMRecord record = new SAMRecord(header);
+		record.setAlignmentStart(start);
+		record.setCigarString(cigar);
+		record.setReadString(bases);
+		return record;
+	}
+
+	@Test
+	public void test() {
+		SAMFileHeader header = new SAMFileHeader();
+		byte[] ref = "ACGTACGTACGTACGTACGT".getBytes();
+		ReferenceTracks tracks = new ReferenceTracks(0, "s", ref);
+		ReferenceTracksAccumulator accumulator = new ReferenceTracksAccumulator(tracks, ref);
+
+		// soft clip, then one mismatch at 4:
+		accumulator.add(record(header, 2, "2S4M", "TTCGAA"));
+		// deletion of 7-8 and a mismatch at 10:
+		accumulator.add(record(header, 5, "2M2D2M", "ACAA"));
+		// before the previous read:
+		accumulator.add(record(header, 3, "1M", "G"));
+		accumulator.flush();
+
+		int[] coverage = { 0, 1, 2, 1, 2, 1, 1, 1, 1, 1, 0 };
+		int[] mismatches = { 0, 0, 0, 1, 0, 0, 0, 0, 0, 1, 0 };
+		for (int i = 0; i < coverage.length; i++) {
+			assertThat(tracks.coverageAt(i + 1), is((short) coverage[i]));
+			assertThat(tracks.mismatchesAt(i + 1), is((short) mismatches[i]));
+		}
+	}
+
+	@Test
+	public void testSameAsPerBase() {
+		SAMFileHeader header = new SAMFileHeader();
+		Random random = new Random(0);
+		byte[] ref = new byte[100000];
+		for (int i = 0; i < ref.length; i++)
+			ref[i] = "ACGT".getBytes()[random.nextInt(4)];
+
+		ReferenceTracks expected = new ReferenceTracks(0, "s", ref);
+		ReferenceTracks tracks = new ReferenceTracks(0, "s", ref);
+		ReferenceTracksAccumulator accumulator = new ReferenceTracksAccumulator(tracks, ref);
+
+		int start = 1;
+		for (int r = 0; r < 5000; r++) {
+			start += random.nextInt(r % 1000 == 0 ? 10000 : 30);
+			int length = 10 + random.nextInt(90);
+			StringBuilder bases = new StringBuilder();
+			for (int i = 0; i < length + 5; i++)
+				bases.append("ACGT".charAt(random.nextInt(4)));
+			SAMRecord record = record(header, start, "5S" + length + "M3D" + random.nextInt(6000) + "N",
+					bases.toString());
+			accumulator.add(record);
+
+			int refPos = start;
+			for (int i = 0; i < length; i++, refPos++) {
+				expected.addCoverage(refPos, 1);
+				if (record.getReadBases()[5 + i] != expected.baseAt(refPos))
+					expected.addMismatches(refPos, 1);
+			}
+			int skipped = record.getCigar().getReferenceLength() - length;
+			for (int i = 0; i < skipped; i++, refPos++)
+				expected.addCoverage(refPos, 1);
+		}
+		accumulator.flush();
+
+		for (int i = 1; i <= ref.length; i++) {
+			assertThat(tracks.coverageAt(i), is(expected.coverageAt(i)));
+			assertThat(tracks.mismatchesAt(i), is(expected.mismatchesAt(i)));
+		}
+	}
+}